@@ -32,5 +32,5 @@ public class UtilsAndCommons {
     public static final String AUTH_STORE = "00-00---000-AUTH_STORE-000---00-00";
 
     public static final String DATA_BASE_DIR =
-            EnvUtil.getMmqHome() + File.separator + "data" + File.separator + "auth";
+            EnvUtil.getDataDir() + File.separator + "auth";
 }
@@ -26,6 +26,7 @@ import org.monkey.mmq.core.consistency.persistent.StandalonePersistentServicePro
 import org.monkey.mmq.core.distributed.ProtocolManager;
 import org.monkey.mmq.core.env.EnvUtil;
 import org.monkey.mmq.core.exception.MmqException;
+import org.monkey.mmq.core.storage.KvNamespace;
 import org.monkey.mmq.core.consistency.matedata.Datum;
 import org.monkey.mmq.core.consistency.matedata.Record;
 import org.monkey.mmq.core.consistency.matedata.RecordListener;
@@ -36,7 +37,11 @@ import org.monkey.mmq.core.actor.metadata.system.SystemInfoMateData;
 import org.springframework.stereotype.Component;
 
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Persistent consistency service delegate.
@@ -98,13 +103,23 @@ public class MqttPersistentConsistencyServiceDelegateImpl implements PersistentC
     private BasePersistentServiceProcessor createNewPersistentServiceProcessor(ProtocolManager protocolManager) throws Exception {
         final BasePersistentServiceProcessor processor =
                 EnvUtil.getStandaloneMode() ? new StandalonePersistentServiceProcessor(this.baseDir,
-                        Constants.MQTT_PERSISTENT_BROKER_GROUP, this::getClassOfRecordFromKey)
+                        storageNamespaces(), Constants.MQTT_PERSISTENT_BROKER_GROUP, this::getClassOfRecordFromKey)
                         : new PersistentServiceProcessor(protocolManager, this.baseDir,
-                        Constants.MQTT_PERSISTENT_BROKER_GROUP, this::getClassOfRecordFromKey);
+                        storageNamespaces(), Constants.MQTT_PERSISTENT_BROKER_GROUP, this::getClassOfRecordFromKey);
         processor.afterConstruct();
         return processor;
     }
 
+    private List<KvNamespace> storageNamespaces() {
+        return Stream.of(KvNamespace.fromProperties("session", UtilsAndCommons.SESSION_STORE),
+                KvNamespace.fromProperties("subscribe", UtilsAndCommons.SUBSCRIBE_STORE),
+                KvNamespace.fromProperties("publish", UtilsAndCommons.PUBLISH_STORE),
+                KvNamespace.fromProperties("pubrel", UtilsAndCommons.PUBREL_STORE),
+                KvNamespace.fromProperties("retain", UtilsAndCommons.RETAIN_STORE),
+                KvNamespace.fromProperties("message-id", UtilsAndCommons.MESSAGE_Id_STORE))
+                .filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
     protected Class<? extends Record> getClassOfRecordFromKey(String key) {
         if (KeyBuilder.matchSessionStoreKey(key)) {
             return ClientMateData.class;
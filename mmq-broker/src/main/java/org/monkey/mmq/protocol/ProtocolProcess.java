@@ -18,6 +18,7 @@ package org.monkey.mmq.protocol;
 
 import akka.actor.ActorSystem;
 import org.monkey.mmq.auth.service.IMqttAuthService;
+import org.monkey.mmq.config.service.RuleEngineRouter;
 import org.monkey.mmq.core.cluster.ServerMemberManager;
 import org.monkey.mmq.metrics.GlobalMQTTMessageCounter;
 import org.monkey.mmq.service.*;
@@ -63,6 +64,9 @@ public class ProtocolProcess {
 	@Autowired
 	private ActorSystem actorSystem;
 
+	@Autowired
+	private RuleEngineRouter ruleEngineRouter;
+
 	public final ServerMemberManager memberManager;
 
 	public ProtocolProcess(ServerMemberManager memberManager) {
@@ -177,7 +181,7 @@ public class ProtocolProcess {
 	public Publish publish() {
 		if (publish == null) {
 			publish = new Publish(sessionStoreService, subscribeStoreService, messageStoreService,
-					dupPublishMessageStoreService, memberManager.getSelf(), actorSystem);
+					dupPublishMessageStoreService, memberManager.getSelf(), actorSystem, ruleEngineRouter);
 		}
 		return publish;
 	}
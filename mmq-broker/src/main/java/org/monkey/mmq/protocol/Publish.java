@@ -20,6 +20,7 @@ import akka.actor.ActorRef;
 import akka.actor.ActorSelection;
 import akka.actor.ActorSystem;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.*;
@@ -36,6 +37,7 @@ import org.monkey.mmq.core.actor.metadata.message.SessionMateData;
 import org.monkey.mmq.core.actor.metadata.subscribe.SubscribeMateData;
 import org.monkey.mmq.core.actor.message.PublishMessage;
 import org.monkey.mmq.config.matedata.RuleEngineMessage;
+import org.monkey.mmq.config.service.RuleEngineRouter;
 import org.monkey.mmq.metrics.GlobalMQTTMessageCounter;
 import org.monkey.mmq.service.*;
 
@@ -57,19 +59,23 @@ public class Publish {
 
 	private ActorSystem actorSystem;
 
+	private RuleEngineRouter ruleEngineRouter;
+
 	private final Member local;
 
 	public Publish(SessionStoreService sessionStoreService, SubscribeStoreService subscribeStoreService,
 				   RetainMessageStoreService retainMessageStoreService,
 				   DupPublishMessageStoreService dupPublishMessageStoreService,
 				   Member local,
-				   ActorSystem actorSystem) {
+				   ActorSystem actorSystem,
+				   RuleEngineRouter ruleEngineRouter) {
 		this.sessionStoreService = sessionStoreService;
 		this.subscribeStoreService = subscribeStoreService;
 		this.retainMessageStoreService = retainMessageStoreService;
 		this.dupPublishMessageStoreService = dupPublishMessageStoreService;
 		this.local = local;
 		this.actorSystem = actorSystem;
+		this.ruleEngineRouter = ruleEngineRouter;
 	}
 
 	public void processPublish(Channel channel, MqttPublishMessage msg) throws MmqException {
@@ -97,15 +103,22 @@ public class Publish {
 		ActorSelection actorPublishSelection = actorSystem.actorSelection("/user/" + clientId);
 		actorPublishSelection.tell(publishMessage, ActorRef.noSender());
 
-		RuleEngineMessage ruleEngineMessage = new RuleEngineMessage();
-		ruleEngineMessage.setUsername(sessionStore.getUser());
-		ruleEngineMessage.setMessage(InternalMessage.newBuilder()
-				.setTopic(msg.variableHeader().topicName())
-				.setMqttQoS(msg.fixedHeader().qosLevel().value())
-				.setMessageBytes(ByteString.copyFrom(messageBytes))
-				.setDup(false).setRetain(false).setMessageId(msg.variableHeader().packetId()).build());
-		ActorSelection actorSelection = actorSystem.actorSelection("/user/rule*");
-		actorSelection.tell(ruleEngineMessage, ActorRef.noSender());
+		// 只投递给FROM主题和消息信息条件匹配的规则, 主题没有匹配的规则时不构建消息
+		RuleEngineRouter.Matched matched = ruleEngineRouter.match(msg.variableHeader().topicName());
+		if (!matched.isEmpty()) {
+			RuleEngineMessage ruleEngineMessage = new RuleEngineMessage();
+			ruleEngineMessage.setUsername(sessionStore.getUser());
+			ruleEngineMessage.setMessage(InternalMessage.newBuilder()
+					.setTopic(msg.variableHeader().topicName())
+					.setMqttQoS(msg.fixedHeader().qosLevel().value())
+					// messageBytes不再修改, 不复制
+					.setMessageBytes(UnsafeByteOperations.unsafeWrap(messageBytes))
+					.setClientId(clientId)
+					.setDup(false).setRetain(false).setMessageId(msg.variableHeader().packetId()).build());
+			for (ActorRef rule : matched.filter(ruleEngineMessage)) {
+				rule.tell(ruleEngineMessage, ActorRef.noSender());
+			}
+		}
 		
 		// retain=1, 保留消息
 		if (msg.fixedHeader().isRetain()) {
@@ -0,0 +1,103 @@
+package org.monkey.mmq.config.codec;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.monkey.mmq.core.utils.JacksonUtils;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * 按规则引用的属性解析json, 与完整解析对比结果、耗时和内存分配
+ *
+ * @author solley
+ */
+public class ProjectedJsonDecoderTest {
+
+    private static final int ROUNDS = 20000;
+
+    private final PayloadDecoder projected = new ProjectedJsonDecoder(new HashSet<>(Arrays.asList("deviceId", "sensor.temp", "status")));
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testProjection() throws Exception {
+        byte[] payload = payload();
+        Map<String, Object> full = PayloadDecoders.JSON.decode(new ByteArrayInputStream(payload));
+        Map<String, Object> map = projected.decode(new ByteArrayInputStream(payload));
+
+        assertEquals(3, map.size());
+        assertEquals(full.get("deviceId"), map.get("deviceId"));
+        assertEquals(full.get("status"), map.get("status"));
+        assertEquals(((Map<String, Object>) full.get("sensor")).get("temp"), ((Map<String, Object>) map.get("sensor")).get("temp"));
+        assertEquals(1, ((Map<String, Object>) map.get("sensor")).size());
+        // 不是对象的数据
+        assertNull(projected.decode(new ByteArrayInputStream("[1,2]".getBytes())));
+    }
+
+    /**
+     * 耗时和内存分配对比, 不在单元测试中执行, 需要时手动运行
+     */
+    @Test
+    @Ignore("benchmark")
+    public void testBenchmark() throws Exception {
+        byte[] payload = payload();
+        long[] fullCost = run(PayloadDecoders.JSON, payload);
+        long[] projectedCost = run(projected, payload);
+        System.out.printf("payload %d bytes, %d rounds%n", payload.length, ROUNDS);
+        System.out.printf("full:      %d ms, %d bytes allocated per payload%n", fullCost[0], fullCost[1]);
+        System.out.printf("projected: %d ms, %d bytes allocated per payload%n", projectedCost[0], projectedCost[1]);
+    }
+
+    private static long[] run(PayloadDecoder decoder, byte[] payload) throws Exception {
+        // 预热
+        for (int i = 0; i < ROUNDS; i++) {
+            decoder.decode(new ByteArrayInputStream(payload));
+        }
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            decoder.decode(new ByteArrayInputStream(payload));
+        }
+        long cost = (System.nanoTime() - start) / 1000000;
+        return new long[]{cost, (allocatedBytes() - allocated) / ROUNDS};
+    }
+
+    /**
+     * 当前线程分配的字节数, 虚拟机不支持时为0
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * 约8KB的设备数据, 规则引用的属性在前面
+     */
+    private static byte[] payload() {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("deviceId", "dev-0001");
+        Map<String, Object> sensor = new HashMap<>();
+        sensor.put("temp", 36.5);
+        sensor.put("humidity", 60);
+        payload.put("sensor", sensor);
+        payload.put("status", "online");
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> channel = new HashMap<>();
+            channel.put("value", i * 1.5);
+            channel.put("unit", "kPa");
+            channel.put("ts", 1600000000000L + i);
+            payload.put("channel" + i, channel);
+        }
+        return JacksonUtils.toJsonBytes(payload);
+    }
+}
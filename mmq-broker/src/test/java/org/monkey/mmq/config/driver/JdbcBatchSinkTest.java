@@ -0,0 +1,65 @@
+package org.monkey.mmq.config.driver;
+
+import org.junit.Test;
+import org.springframework.expression.Expression;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * sql模板转换为预编译语句
+ *
+ * @author solley
+ */
+public class JdbcBatchSinkTest {
+
+    @Test
+    public void testPrepare() {
+        List<Expression> parameters = new ArrayList<>();
+        List<Boolean> quoted = new ArrayList<>();
+        String sql = JdbcBatchSink.prepare("insert into t(a, b, c) values(#{a}, '#{b}', 'it''s')", parameters, quoted);
+
+        assertEquals("insert into t(a, b, c) values(?, ?, 'it''s')", sql);
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(parameters.get(0).getExpressionString(),
+                parameters.get(1).getExpressionString()));
+        assertEquals(Arrays.asList(false, true), quoted);
+        assertTrue(JdbcBatchSink.bindsValuesOnly(sql, parameters.size()));
+    }
+
+    @Test
+    public void testEscapedQuote() {
+        List<Expression> parameters = new ArrayList<>();
+        List<Boolean> quoted = new ArrayList<>();
+
+        // 转义的引号不结束字面量, 字面量中的占位符无法绑定
+        assertNull(JdbcBatchSink.prepare("insert into t(a) values('it''s #{a}')", parameters, quoted));
+        assertNull(JdbcBatchSink.prepare("insert into t(a) values('''#{a}')", new ArrayList<>(), new ArrayList<>()));
+        assertEquals("insert into t(a, b) values('''', ?)", JdbcBatchSink.prepare(
+                "insert into t(a, b) values('''', '#{b}')", new ArrayList<>(), new ArrayList<>()));
+    }
+
+    @Test
+    public void testUnterminatedLiteral() {
+        assertNull(JdbcBatchSink.prepare("insert into t(a, b) values(#{a}, 'b)", new ArrayList<>(), new ArrayList<>()));
+        assertNull(JdbcBatchSink.prepare("insert into t(a) values(#{a)", new ArrayList<>(), new ArrayList<>()));
+    }
+
+    @Test
+    public void testNotValue() {
+        assertFalse(bindsValuesOnly("insert into #{table}(a) values(#{a})"));
+        assertFalse(bindsValuesOnly("delete from t where #{filter}"));
+        assertFalse(bindsValuesOnly("delete from t where a = #{a} and #{filter}"));
+        assertFalse(bindsValuesOnly("update t set a = #{a} where b = #{b} limit #{limit}"));
+        assertTrue(bindsValuesOnly("update t set a = #{a} + 1 where b = #{b} and c in (#{c}, 1)"));
+        assertTrue(bindsValuesOnly("insert into t(a) values(#{a}) on duplicate key update a = #{a}"));
+    }
+
+    private static boolean bindsValuesOnly(String template) {
+        List<Expression> parameters = new ArrayList<>();
+        String sql = JdbcBatchSink.prepare(template, parameters, new ArrayList<>());
+        return sql != null && JdbcBatchSink.bindsValuesOnly(sql, parameters.size());
+    }
+}
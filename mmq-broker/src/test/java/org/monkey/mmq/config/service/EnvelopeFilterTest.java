@@ -0,0 +1,65 @@
+package org.monkey.mmq.config.service;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.monkey.mmq.config.matedata.RuleEngineMessage;
+import org.monkey.mmq.core.entity.InternalMessage;
+
+import static org.junit.Assert.*;
+
+/**
+ * 消息信息上的条件在解析数据前过滤
+ *
+ * @author solley
+ */
+public class EnvelopeFilterTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @Before
+    public void setUp() {
+        Metrics.addRegistry(registry);
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.removeRegistry(registry);
+        registry.close();
+    }
+
+    @Test
+    public void testFilter() {
+        PlainSelect select = EnvelopeFilter.parse("select temp from \"sensors/#\" where topic(1) like 'room%' and qos() > 0 and username() = 'u1' and temp > 30");
+        EnvelopeFilter filter = EnvelopeFilter.of("test", select);
+
+        assertNotNull(filter);
+        assertEquals("temp > 30", String.valueOf(select.getWhere()));
+        assertTrue(filter.test(message("sensors/room1/temp", 1, "u1")));
+        assertFalse(filter.test(message("sensors/hall/temp", 1, "u1")));
+        assertFalse(filter.test(message("sensors/room1/temp", 0, "u1")));
+        assertFalse(filter.test(message("sensors/room1/temp", 1, "u2")));
+        // 层级不存在时为null
+        assertFalse(filter.test(message("sensors", 1, "u1")));
+        assertEquals(0.8, registry.get("mmq_rule").tag("rule", "test").tag("name", "envelope_reject_ratio")
+                .gauge().value(), 0.0001);
+        filter.remove();
+
+        assertNull(EnvelopeFilter.of("test", EnvelopeFilter.parse("select temp from test where temp > 30")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotPushed() {
+        EnvelopeFilter.compile("select temp from test where topic() = 'test' or temp > 30");
+    }
+
+    private static RuleEngineMessage message(String topic, int qos, String username) {
+        RuleEngineMessage message = new RuleEngineMessage();
+        message.setUsername(username);
+        message.setMessage(InternalMessage.newBuilder().setTopic(topic).setMqttQoS(qos).setClientId("c1").build());
+        return message;
+    }
+}
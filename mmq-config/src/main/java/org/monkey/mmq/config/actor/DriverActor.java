@@ -7,8 +7,11 @@ import akka.actor.ActorSystem;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import org.monkey.mmq.core.actor.message.SystemMessage;
 import org.monkey.mmq.config.driver.DriverFactory;
+import org.monkey.mmq.config.driver.ResourceDriver;
 import org.monkey.mmq.config.matedata.DriverMessage;
-import org.monkey.mmq.core.exception.MmqException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.monkey.mmq.core.common.Constants.RULE_ENGINE;
 
@@ -21,31 +24,97 @@ import static org.monkey.mmq.core.common.Constants.RULE_ENGINE;
  **/
 public class DriverActor extends AbstractActor {
 
+    /**
+     * Running actor of every resource.
+     */
+    private static final Map<String, ActorRef> ACTORS = new ConcurrentHashMap<>();
+
     private ActorSystem actorSystem;
 
-    public DriverActor(ActorSystem actorSystem) {
+    private final String resourceId;
+
+    public DriverActor(ActorSystem actorSystem, String resourceId) {
         this.actorSystem = actorSystem;
+        this.resourceId = resourceId;
+    }
+
+    /**
+     * Name of an actor of a resource. Each actor gets its own name, the name of a stopped actor is released
+     * asynchronously and can not be reused right away.
+     *
+     * @param resourceId  resource id
+     * @param incarnation number of the actor, unique per resource
+     * @return actor name
+     */
+    public static String actorName(String resourceId, long incarnation) {
+        return resourceId + "-" + incarnation;
+    }
+
+    /**
+     * Resource of an actor named by {@link #actorName}.
+     *
+     * @param actorName actor name
+     * @return resource id
+     */
+    public static String resourceId(String actorName) {
+        int index = actorName.lastIndexOf('-');
+        return index < 0 ? actorName : actorName.substring(0, index);
+    }
+
+    /**
+     * Running actor of a resource.
+     *
+     * @param resourceId resource id
+     * @return actor, null if the resource has no running actor
+     */
+    public static ActorRef get(String resourceId) {
+        return ACTORS.get(resourceId);
+    }
+
+    @Override
+    public void preStart() {
+        ACTORS.put(resourceId, getSelf());
+    }
+
+    @Override
+    public void postStop() {
+        ACTORS.remove(resourceId, getSelf());
     }
 
     @Override
     public Receive createReceive() {
         return receiveBuilder().match(DriverMessage.class, msg -> {
+            DriverBreaker breaker = DriverBreaker.get(resourceId);
+            if (breaker != null && !breaker.allow()) {
+                // 熔断时不调用驱动, 邮箱可溢出时放回邮箱头部等待恢复, 否则快速失败
+                if (!DriverMailbox.hold(resourceId, msg)) {
+                    breaker.rejected();
+                }
+                return;
+            }
+            long start = System.nanoTime();
             try {
-                DriverFactory.getResourceDriverByEnum(msg.getResourcesMateData().getType()).handle(msg.getProperty(),
-                        msg.getResourcesMateData(),
-                        msg.getRuleEngineMessage().getMessage().getTopic(),
-                        msg.getRuleEngineMessage().getMessage().getMqttQoS(),
-                        msg.getRuleEngineMessage().getMessage().getAddress(),
-                        msg.getRuleEngineMessage().getUsername());
-            } catch (MmqException e) {
-                SystemMessage systemMessage = new SystemMessage();
-                systemMessage.setTopic(RULE_ENGINE);
-                systemMessage.setPayload(e.getMessage());
-                systemMessage.setMqttQoS(MqttQoS.AT_LEAST_ONCE);
-                ActorSelection actorRef = actorSystem.actorSelection("/user/driver");
-                actorRef.tell(systemMessage, ActorRef.noSender());
+                ResourceDriver driver = DriverFactory.getResourceDriverByEnum(msg.getResourcesMateData().getType());
+                driver.handle(msg);
+                // 异步写入的结果由驱动在完成后上报
+                if (breaker != null && !driver.isAsync(msg.getResourcesMateData())) {
+                    breaker.success(start);
+                }
+            } catch (Exception e) {
+                boolean opened = breaker != null && breaker.failure(start, e);
+                notify(opened ? "circuit of resource " + resourceId + " is open: " + e.getMessage() : e.getMessage());
             }
-
+        }).match(DriverBreaker.Resume.class, msg -> {
+            // 熔断半开或关闭, 邮箱随后交回保留的消息
         }).build();
     }
+
+    private void notify(String payload) {
+        SystemMessage systemMessage = new SystemMessage();
+        systemMessage.setTopic(RULE_ENGINE);
+        systemMessage.setPayload(payload);
+        systemMessage.setMqttQoS(MqttQoS.AT_LEAST_ONCE);
+        ActorSelection actorRef = actorSystem.actorSelection("/user/driver");
+        actorRef.tell(systemMessage, ActorRef.noSender());
+    }
 }
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.actor;
+
+import akka.actor.ActorRef;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import org.monkey.mmq.config.config.Loggers;
+import org.monkey.mmq.config.driver.DriverFactory;
+import org.monkey.mmq.config.driver.DriverMetrics;
+import org.monkey.mmq.config.matedata.ResourcesMateData;
+import org.monkey.mmq.core.executor.ExecutorFactory;
+import org.monkey.mmq.core.executor.NameThreadFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.monkey.mmq.config.actor.DriverMailbox.longValue;
+import static org.monkey.mmq.config.config.Constants.*;
+
+/**
+ * Circuit breaker of a resource, consulted by the {@link DriverActor} before each dispatch.
+ *
+ * <p>{@code breakerFailures} consecutive failures open the breaker. While open, messages are not sent to the
+ * driver: they are held in order by the mailbox if it spills, otherwise failed fast. The resource is probed
+ * in the background with {@code testConnect} every {@code breakerProbeMs}; a successful probe half-opens the
+ * breaker and lets one trial message through, which closes the breaker on success or opens it again on failure.
+ * A trial without a result after {@code breakerTrialTimeoutMs}, such as an async write whose completion is lost
+ * with its connection, opens the breaker again as well.
+ *
+ * <p>Drivers writing asynchronously, see {@link org.monkey.mmq.config.driver.ResourceDriver#isAsync}, report
+ * the results of their writes with {@link #completed} instead.
+ *
+ * <p>The state is published as the {@code mmq_driver} gauge {@code breaker_state} (0 closed, 1 half-open,
+ * 2 open), dispatch latency and results as meters of type dispatch.
+ *
+ * @author solley
+ */
+public final class DriverBreaker {
+
+    private static final int DEFAULT_FAILURES = 5;
+
+    private static final long DEFAULT_PROBE_MS = 5000L;
+
+    private static final long DEFAULT_TRIAL_TIMEOUT_MS = 30000L;
+
+    private static final Map<String, DriverBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService PROBER = ExecutorFactory.newScheduledExecutorService(2,
+            new NameThreadFactory("org.monkey.mmq.config.actor.driver-probe"));
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    /**
+     * Sent to a driver actor when its breaker half-opens or closes, so the messages held by its mailbox are
+     * dispatched again.
+     */
+    public static final class Resume {
+
+        static final Resume INSTANCE = new Resume();
+
+        private Resume() {
+        }
+    }
+
+    private final ResourcesMateData resourcesMateData;
+
+    private final int failureThreshold;
+
+    private final long probeMs;
+
+    private final long trialTimeoutMs;
+
+    private final DriverMetrics metrics;
+
+    private final Counter rejected;
+
+    private final Gauge stateGauge;
+
+    private volatile State state = State.CLOSED;
+
+    private int failures;
+
+    private volatile boolean trialInFlight;
+
+    private long openedAt;
+
+    private volatile String lastError;
+
+    private ScheduledFuture<?> probe;
+
+    private ScheduledFuture<?> trialTimeout;
+
+    private DriverBreaker(ResourcesMateData resourcesMateData) {
+        String resourceId = resourcesMateData.getResourceID();
+        Map<String, Object> resource = resourcesMateData.getResource();
+        this.resourcesMateData = resourcesMateData;
+        this.failureThreshold = (int) longValue(resource.get(BREAKER_FAILURES), DEFAULT_FAILURES);
+        this.probeMs = Math.max(100L, longValue(resource.get(BREAKER_PROBE_MS), DEFAULT_PROBE_MS));
+        this.trialTimeoutMs = Math.max(100L, longValue(resource.get(BREAKER_TRIAL_TIMEOUT_MS), DEFAULT_TRIAL_TIMEOUT_MS));
+        this.metrics = new DriverMetrics(resourceId, "dispatch", "handle_latency");
+        this.rejected = Metrics.counter("mmq_driver", "resource", resourceId, "type", "dispatch", "name", "rejected");
+        this.stateGauge = Gauge.builder("mmq_driver", this, breaker -> breaker.state.ordinal())
+                .tags("resource", resourceId, "type", "dispatch", "name", "breaker_state")
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Create the breaker of a resource, a previous breaker of the resource is closed and its state is dropped.
+     *
+     * @param resourcesMateData resource
+     */
+    public static void configure(ResourcesMateData resourcesMateData) {
+        remove(resourcesMateData.getResourceID());
+        BREAKERS.put(resourcesMateData.getResourceID(), new DriverBreaker(resourcesMateData));
+    }
+
+    public static void remove(String resourceId) {
+        DriverBreaker old = BREAKERS.remove(resourceId);
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    /**
+     * Breaker of a resource.
+     *
+     * @param resourceId resource id
+     * @return breaker, null if the resource is not configured
+     */
+    public static DriverBreaker get(String resourceId) {
+        return BREAKERS.get(resourceId);
+    }
+
+    /**
+     * Health of every resource.
+     *
+     * @return health by resource id
+     */
+    public static Map<String, Map<String, Object>> health() {
+        Map<String, Map<String, Object>> health = new LinkedHashMap<>();
+        BREAKERS.forEach((resourceId, breaker) -> health.put(resourceId, breaker.status()));
+        return health;
+    }
+
+    /**
+     * Record the result of a write completed after its dispatch.
+     *
+     * @param resourceId resource id
+     * @param startNanos {@link System#nanoTime()} at the start of the write
+     * @param cause      failure, null if the write succeeded
+     */
+    public static void completed(String resourceId, long startNanos, Throwable cause) {
+        DriverBreaker breaker = BREAKERS.get(resourceId);
+        if (breaker == null) {
+            return;
+        }
+        if (cause == null) {
+            breaker.success(startNanos);
+        } else {
+            breaker.failure(startNanos, cause);
+        }
+    }
+
+    private synchronized Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("state", state);
+        status.put("failures", failures);
+        status.put("openedAt", state == State.OPEN ? openedAt : null);
+        status.put("lastError", lastError);
+        return status;
+    }
+
+    /**
+     * Whether a message may be dispatched to the driver, only one trial message passes a half-open breaker.
+     *
+     * @return false if the message should be held or failed
+     */
+    public synchronized boolean allow() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                trialTimeout = PROBER.schedule(this::trialTimedOut, trialTimeoutMs, TimeUnit.MILLISECONDS);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether messages are held back from the driver, while open or while the trial message of a half-open
+     * breaker is in flight.
+     *
+     * @return true if the mailbox should keep the messages
+     */
+    public boolean isHolding() {
+        State current = state;
+        return current == State.OPEN || (current == State.HALF_OPEN && trialInFlight);
+    }
+
+    public synchronized void success(long startNanos) {
+        metrics.latency(startNanos);
+        metrics.written(1);
+        failures = 0;
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            cancelTrialTimeout();
+            state = State.CLOSED;
+            Loggers.CONFIG_SERVER.info("circuit of resource {} is closed.", resourcesMateData.getResourceID());
+            resume();
+        }
+    }
+
+    /**
+     * Record a failed dispatch.
+     *
+     * @return true if the failure opened the breaker
+     */
+    public synchronized boolean failure(long startNanos, Throwable cause) {
+        metrics.latency(startNanos);
+        metrics.failed(1);
+        failures++;
+        lastError = cause == null ? null : cause.getMessage();
+        boolean trip = state == State.HALF_OPEN || (state == State.CLOSED && failureThreshold > 0 && failures >= failureThreshold);
+        if (trip) {
+            open();
+        }
+        return trip;
+    }
+
+    public void rejected() {
+        rejected.increment();
+    }
+
+    private void open() {
+        state = State.OPEN;
+        trialInFlight = false;
+        cancelTrialTimeout();
+        openedAt = System.currentTimeMillis();
+        Loggers.CONFIG_SERVER.warn("circuit of resource {} is open after {} failures: {}",
+                resourcesMateData.getResourceID(), failures, lastError);
+        if (probe == null || probe.isDone()) {
+            probe = PROBER.scheduleWithFixedDelay(this::probe, probeMs, probeMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void trialTimedOut() {
+        if (state != State.HALF_OPEN || !trialInFlight) {
+            return;
+        }
+        lastError = "trial message got no result in " + trialTimeoutMs + " ms";
+        open();
+    }
+
+    private void cancelTrialTimeout() {
+        if (trialTimeout != null) {
+            trialTimeout.cancel(false);
+            trialTimeout = null;
+        }
+    }
+
+    private void probe() {
+        boolean healthy;
+        try {
+            healthy = DriverFactory.getResourceDriverByEnum(resourcesMateData.getType()).testConnect(resourcesMateData);
+        } catch (Exception e) {
+            healthy = false;
+        }
+        if (!healthy) {
+            return;
+        }
+        synchronized (this) {
+            if (state != State.OPEN) {
+                return;
+            }
+            state = State.HALF_OPEN;
+            if (probe != null) {
+                probe.cancel(false);
+                probe = null;
+            }
+        }
+        Loggers.CONFIG_SERVER.info("resource {} is reachable again, circuit is half-open.", resourcesMateData.getResourceID());
+        resume();
+    }
+
+    /**
+     * Wake the driver actor up, so the messages held by its mailbox are dispatched again.
+     */
+    private void resume() {
+        ActorRef driver = DriverActor.get(resourcesMateData.getResourceID());
+        if (driver != null) {
+            driver.tell(Resume.INSTANCE, ActorRef.noSender());
+        }
+    }
+
+    private synchronized void close() {
+        if (probe != null) {
+            probe.cancel(false);
+            probe = null;
+        }
+        cancelTrialTimeout();
+        metrics.remove();
+        Metrics.globalRegistry.remove(rejected);
+        Metrics.globalRegistry.remove(stateGauge);
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.actor;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import com.alibaba.fastjson.JSON;
+import com.typesafe.config.Config;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import org.monkey.mmq.config.config.Loggers;
+import org.monkey.mmq.config.matedata.DriverMessage;
+import org.monkey.mmq.config.matedata.ResourcesMateData;
+import org.monkey.mmq.config.matedata.RuleEngineMessage;
+import org.monkey.mmq.core.entity.InternalMessage;
+import org.monkey.mmq.core.env.EnvUtil;
+import org.monkey.mmq.core.executor.ExecutorFactory;
+import org.monkey.mmq.core.executor.NameThreadFactory;
+import scala.Option;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.monkey.mmq.config.config.Constants.*;
+
+/**
+ * Bounded mailbox of a driver actor. The capacity and the overflow policy are read from the config of the
+ * resource of the actor, so a slow sink can not grow its mailbox without limit. The sender is never blocked, a
+ * message arriving at a full mailbox is handled right away by the policy:
+ * <ul>
+ *     <li>{@code drop}: the message is dropped, the default</li>
+ *     <li>{@code spill}: the message is appended to a spill file under the data dir, spilled messages are read
+ *     back in order when the mailbox drains and are kept across restarts. The spill files are forced to the disk
+ *     every {@link #SYNC_INTERVAL_MS}</li>
+ * </ul>
+ * Once a message is spilled, later messages are spilled too until the file is read back, to keep the order.
+ * Dropped messages are logged as a warning at most every {@link #DROP_WARN_INTERVAL_MS}.
+ * While the {@link DriverBreaker} of the resource holds messages, the message taken by the actor is put back at the
+ * head of the mailbox, and neither it, the queued messages nor the spill file are handed to the actor until the
+ * breaker lets messages through again, so the order is kept.
+ * Queue depth, dropped and spilled messages are published as {@code mmq_driver} meters of type mailbox.
+ *
+ * @author solley
+ */
+public class DriverMailbox implements MailboxType, ProducesMessageQueue<DriverMailbox.DriverMessageQueue> {
+
+    /**
+     * Config path of the mailbox, see reference.conf.
+     */
+    public static final String MAILBOX_ID = "mmq.driver-mailbox";
+
+    private static final int DEFAULT_CAPACITY = 10000;
+
+    private static final long DEFAULT_SPILL_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final long SYNC_INTERVAL_MS = 100L;
+
+    private static final long DROP_WARN_INTERVAL_MS = 10000L;
+
+    private static final int REPLAY_BATCH = 1000;
+
+    private static final Map<String, Settings> SETTINGS = new ConcurrentHashMap<>();
+
+    private static final Map<String, DriverMessageQueue> QUEUES = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService SYNCER = ExecutorFactory.newSingleScheduledExecutorService(
+            new NameThreadFactory("org.monkey.mmq.config.actor.driver-spill-sync"));
+
+    static {
+        SYNCER.scheduleWithFixedDelay(() -> QUEUES.values().forEach(DriverMessageQueue::syncSpill),
+                SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public DriverMailbox(ActorSystem.Settings settings, Config config) {
+    }
+
+    /**
+     * Set the mailbox settings of a resource, called before its driver actor is created and on every update.
+     *
+     * @param resourcesMateData resource
+     */
+    public static void configure(ResourcesMateData resourcesMateData) {
+        SETTINGS.put(resourcesMateData.getResourceID(), new Settings(resourcesMateData));
+    }
+
+    /**
+     * Remove the settings of a deleted resource, its spill file is deleted when the actor stops.
+     *
+     * @param resourceId resource id
+     */
+    public static void remove(String resourceId) {
+        SETTINGS.remove(resourceId);
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        String resourceId = owner.isDefined() ? DriverActor.resourceId(owner.get().path().name()) : "unknown";
+        DriverMessageQueue queue = new DriverMessageQueue(resourceId, system.isDefined() ? system.get() : null);
+        QUEUES.put(resourceId, queue);
+        return queue;
+    }
+
+    /**
+     * Put a message taken by the actor back at the head of the mailbox, used while the breaker of the resource
+     * holds messages. It is handed to the actor again first once the breaker lets messages through.
+     *
+     * @param resourceId resource id
+     * @param current    message taken by the actor, the oldest one
+     * @return false if the mailbox of the resource does not spill
+     */
+    static boolean hold(String resourceId, DriverMessage current) {
+        DriverMessageQueue queue = QUEUES.get(resourceId);
+        Settings settings = SETTINGS.get(resourceId);
+        if (queue == null || settings == null || settings.policy != Policy.SPILL) {
+            return false;
+        }
+        queue.hold(current);
+        return true;
+    }
+
+    /**
+     * Message queue of one driver actor.
+     */
+    public static final class DriverMessageQueue implements MessageQueue {
+
+        private final String resourceId;
+
+        private final ActorSystem system;
+
+        private final Queue<Envelope> queue = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger depth = new AtomicInteger();
+
+        private final Object spillLock = new Object();
+
+        private volatile SpillFile spill;
+
+        private volatile long spillPending;
+
+        /**
+         * Message put back by the actor while held, older than every queued and spilled message.
+         */
+        private volatile Envelope parked;
+
+        private volatile long lastDropWarn;
+
+        private final Counter dropped;
+
+        private final Counter spilled;
+
+        private final Gauge queueDepth;
+
+        DriverMessageQueue(String resourceId, ActorSystem system) {
+            this.resourceId = resourceId;
+            this.system = system;
+            this.dropped = Metrics.counter("mmq_driver", "resource", resourceId, "type", "mailbox", "name", "dropped");
+            this.spilled = Metrics.counter("mmq_driver", "resource", resourceId, "type", "mailbox", "name", "spilled");
+            this.queueDepth = Gauge.builder("mmq_driver", this, DriverMessageQueue::numberOfMessages)
+                    .tags("resource", resourceId, "type", "mailbox", "name", "queue_depth")
+                    .register(Metrics.globalRegistry);
+            openSpill();
+        }
+
+        private void openSpill() {
+            try {
+                SpillFile file = new SpillFile(Paths.get(EnvUtil.getDataDir(), "driver-spill", resourceId + ".spill").toFile());
+                synchronized (spillLock) {
+                    spill = file;
+                    spillPending = file.pending();
+                }
+                if (spillPending > 0) {
+                    Loggers.CONFIG_SERVER.info("replay {} spilled messages of resource {}.", spillPending, resourceId);
+                }
+            } catch (IOException e) {
+                Loggers.CONFIG_SERVER.error("open spill file of resource {} failed, spill is disabled.", resourceId, e);
+            }
+        }
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            Settings settings = SETTINGS.get(resourceId);
+            if (!(handle.message() instanceof DriverMessage) || settings == null) {
+                offer(handle);
+                return;
+            }
+            switch (settings.policy) {
+                case SPILL:
+                    synchronized (spillLock) {
+                        if (spillPending == 0 && depth.get() < settings.capacity) {
+                            offer(handle);
+                        } else {
+                            spill((DriverMessage) handle.message(), settings);
+                        }
+                    }
+                    break;
+                default:
+                    if (depth.get() < settings.capacity) {
+                        offer(handle);
+                    } else {
+                        drop();
+                    }
+                    break;
+            }
+        }
+
+        private void offer(Envelope handle) {
+            queue.offer(handle);
+            depth.incrementAndGet();
+        }
+
+        private void drop() {
+            dropped.increment();
+            long now = System.currentTimeMillis();
+            if (now - lastDropWarn >= DROP_WARN_INTERVAL_MS) {
+                lastDropWarn = now;
+                Loggers.CONFIG_SERVER.warn("mailbox of resource {} is full, {} messages are dropped so far.",
+                        resourceId, (long) dropped.count());
+            }
+        }
+
+        private void syncSpill() {
+            synchronized (spillLock) {
+                if (spill == null) {
+                    return;
+                }
+                try {
+                    spill.sync();
+                } catch (IOException e) {
+                    Loggers.CONFIG_SERVER.error("sync spill file of resource {} failed.", resourceId, e);
+                }
+            }
+        }
+
+        private void spill(DriverMessage message, Settings settings) {
+            if (spill == null || spill.size() >= settings.spillMaxBytes) {
+                drop();
+                return;
+            }
+            try {
+                spill.append(encode(message));
+                spillPending = spill.pending();
+                spilled.increment();
+            } catch (IOException e) {
+                Loggers.CONFIG_SERVER.error("spill message of resource {} failed, message is dropped.", resourceId, e);
+                drop();
+            }
+        }
+
+        private void hold(DriverMessage current) {
+            parked = Envelope.apply(current, ActorRef.noSender(), system);
+            depth.incrementAndGet();
+        }
+
+        /**
+         * Whether driver messages are held because the breaker of the resource does not let them through.
+         */
+        private boolean held() {
+            DriverBreaker breaker = DriverBreaker.get(resourceId);
+            return breaker != null && breaker.isHolding();
+        }
+
+        /**
+         * Whether the head of the queue is a message other than a driver message, those are not held.
+         */
+        private boolean controlFirst() {
+            Envelope head = queue.peek();
+            return head != null && !(head.message() instanceof DriverMessage);
+        }
+
+        @Override
+        public Envelope dequeue() {
+            Envelope envelope;
+            boolean held = held();
+            if (held) {
+                envelope = controlFirst() ? queue.poll() : null;
+            } else if (parked != null) {
+                envelope = parked;
+                parked = null;
+            } else {
+                envelope = queue.poll();
+            }
+            if (envelope == null && spillPending > 0 && !held) {
+                replay();
+                envelope = queue.poll();
+            }
+            if (envelope != null) {
+                depth.decrementAndGet();
+            }
+            return envelope;
+        }
+
+        /**
+         * Move the oldest spilled messages back to the queue. Called by the actor when the queue is empty, new
+         * messages keep going to the spill file until it is read back.
+         */
+        private void replay() {
+            Settings settings = SETTINGS.get(resourceId);
+            int batch = settings == null ? REPLAY_BATCH : Math.max(1, Math.min(REPLAY_BATCH, settings.capacity));
+            synchronized (spillLock) {
+                try {
+                    for (int i = 0; i < batch && spill.pending() > 0; i++) {
+                        DriverMessage message = decode(spill.next(), settings);
+                        if (message != null) {
+                            offer(Envelope.apply(message, ActorRef.noSender(), system));
+                        }
+                    }
+                } catch (IOException e) {
+                    Loggers.CONFIG_SERVER.error("read spill file of resource {} failed, {} spilled messages are dropped.",
+                            resourceId, spill.pending(), e);
+                    dropped.increment(spill.pending());
+                    spill.delete();
+                }
+                spillPending = spill.pending();
+            }
+        }
+
+        @Override
+        public int numberOfMessages() {
+            return (int) Math.min(Integer.MAX_VALUE, depth.get() + spillPending);
+        }
+
+        @Override
+        public boolean hasMessages() {
+            if (held()) {
+                return controlFirst();
+            }
+            return parked != null || !queue.isEmpty() || spillPending > 0;
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            if (parked != null) {
+                deadLetters.enqueue(owner, parked);
+                parked = null;
+            }
+            Envelope envelope;
+            while ((envelope = queue.poll()) != null) {
+                deadLetters.enqueue(owner, envelope);
+            }
+            depth.set(0);
+            synchronized (spillLock) {
+                if (spill != null) {
+                    // 资源删除时删除溢出文件, 否则留给下次启动回放
+                    if (SETTINGS.containsKey(resourceId)) {
+                        spill.close();
+                    } else {
+                        spill.delete();
+                    }
+                }
+                spillPending = 0;
+            }
+            QUEUES.remove(resourceId, this);
+            Metrics.globalRegistry.remove(dropped);
+            Metrics.globalRegistry.remove(spilled);
+            Metrics.globalRegistry.remove(queueDepth);
+        }
+    }
+
+    private static byte[] encode(DriverMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeBytes(out, JSON.toJSONBytes(message.getProperty()));
+        RuleEngineMessage ruleEngineMessage = message.getRuleEngineMessage();
+        InternalMessage internalMessage = ruleEngineMessage == null ? null : ruleEngineMessage.getMessage();
+        writeBytes(out, internalMessage == null ? new byte[0] : internalMessage.toByteArray());
+        out.writeUTF(ruleEngineMessage == null || ruleEngineMessage.getUsername() == null ? "" : ruleEngineMessage.getUsername());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Rebuild a spilled message, the resource is the current config of the resource.
+     *
+     * @return message, null if the resource is removed
+     */
+    private static DriverMessage decode(byte[] record, Settings settings) throws IOException {
+        if (settings == null) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        DriverMessage message = new DriverMessage();
+        message.setProperty(JSON.parseObject(readBytes(in), Map.class));
+        byte[] internalMessage = readBytes(in);
+        String username = in.readUTF();
+        // 聚合输出没有来源消息
+        if (internalMessage.length > 0) {
+            RuleEngineMessage ruleEngineMessage = new RuleEngineMessage();
+            ruleEngineMessage.setMessage(InternalMessage.parseFrom(internalMessage));
+            ruleEngineMessage.setUsername(username);
+            message.setRuleEngineMessage(ruleEngineMessage);
+        }
+        message.setResourcesMateData(settings.resourcesMateData);
+        return message;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        return value;
+    }
+
+    private enum Policy {
+        DROP, SPILL
+    }
+
+    private static final class Settings {
+
+        private final ResourcesMateData resourcesMateData;
+
+        private final int capacity;
+
+        private final Policy policy;
+
+        private final long spillMaxBytes;
+
+        Settings(ResourcesMateData resourcesMateData) {
+            Map<String, Object> resource = resourcesMateData.getResource();
+            this.resourcesMateData = resourcesMateData;
+            this.capacity = Math.max(1, intValue(resource.get(MAILBOX_CAPACITY), DEFAULT_CAPACITY));
+            this.spillMaxBytes = longValue(resource.get(SPILL_MAX_BYTES), DEFAULT_SPILL_MAX_BYTES);
+            this.policy = policy(resourcesMateData.getResourceID(), resource.get(OVERFLOW_POLICY));
+        }
+
+        private static Policy policy(String resourceId, Object value) {
+            if (value == null || value.toString().trim().isEmpty()) {
+                return Policy.DROP;
+            }
+            try {
+                return Policy.valueOf(value.toString().trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                Loggers.CONFIG_SERVER.warn("overflow policy {} of resource {} is unknown, use drop.", value, resourceId);
+                return Policy.DROP;
+            }
+        }
+
+        private static int intValue(Object value, int defaultValue) {
+            return (int) Math.min(Integer.MAX_VALUE, longValue(value, defaultValue));
+        }
+    }
+
+    static long longValue(Object value, long defaultValue) {
+        if (value == null || value.toString().trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
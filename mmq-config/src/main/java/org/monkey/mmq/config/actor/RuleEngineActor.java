@@ -17,65 +17,62 @@ package org.monkey.mmq.config.actor;
 
 import akka.actor.AbstractActor;
 import akka.actor.ActorRef;
-import akka.actor.ActorSelection;
 import akka.actor.ActorSystem;
-import cn.hutool.core.util.StrUtil;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import net.sf.jsqlparser.expression.Function;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import net.sf.jsqlparser.statement.select.SelectExpressionItem;
+import net.sf.jsqlparser.statement.select.SelectItem;
+import org.monkey.mmq.config.codec.PayloadDecoder;
+import org.monkey.mmq.config.codec.PayloadDecoders;
+import org.monkey.mmq.config.config.Loggers;
 import org.monkey.mmq.config.matedata.DriverMessage;
 import org.monkey.mmq.config.matedata.RuleEngineMessage;
 import org.monkey.mmq.config.matedata.RuleEngineMateData;
 import org.monkey.mmq.config.matedata.UpdateRuleEngineMessage;
+import org.monkey.mmq.config.service.EnvelopeFilter;
+import org.monkey.mmq.config.service.RuleEngineRouter;
 import org.monkey.mmq.core.actor.ActorMsg;
-import org.monkey.mmq.core.utils.JacksonUtils;
+import org.monkey.mmq.rule.engine.DefaultReactorQLContext;
+import org.monkey.mmq.rule.engine.DefaultReactorQLRecord;
 import org.monkey.mmq.rule.engine.ReactorQL;
-import reactor.core.publisher.Flux;
+import org.monkey.mmq.rule.engine.ReactorQLContext;
+import org.monkey.mmq.rule.engine.ReactorQLMetadata;
+import org.monkey.mmq.rule.engine.feature.FeatureId;
+import org.monkey.mmq.rule.engine.utils.PropertyPathUtils;
+import reactor.core.Disposable;
+import reactor.core.publisher.EmitterProcessor;
+import reactor.core.publisher.FluxSink;
 
-import java.util.*;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * Runs one rule, the rule sql is compiled once into a long-lived pipeline fed with the published messages, so
+ * operator state such as windows and distinct sets lives across messages. The pipeline is rebuilt on update.
+ * Conditions on the message envelope are left out of the sql, they are evaluated by {@link RuleEngineRouter}.
+ *
  * @author solley
  */
 public final class RuleEngineActor extends AbstractActor {
 
     ActorSystem actorSystem;
 
-    RuleEngineMateData ruleEngineMateData;
-    
-    final ReactorQL reactorQL;
+    volatile RuleEngineMateData ruleEngineMateData;
+
+    /**
+     * Record of a row holding the published message it comes from.
+     */
+    private static final String SOURCE = "$source";
+
+    private FluxSink<RuleEngineMessage> sink;
+
+    private Disposable pipeline;
 
     public RuleEngineActor(RuleEngineMateData ruleEngineMateData, ActorSystem actorSystem) {
         this.actorSystem = actorSystem;
         this.ruleEngineMateData = ruleEngineMateData;
-        reactorQL = ReactorQL.builder()
-                .sql(ruleEngineMateData.getSql())
-                .build();
-    }
-
-    private boolean isTopic(String topic, String topicFilter) {
-        if (StrUtil.split(topic, '/').size() >= StrUtil.split(topicFilter, '/').size()) {
-            List<String> splitTopics = StrUtil.split(topic, '/');//a
-            List<String> spliteTopicFilters = StrUtil.split(topicFilter, '/');//#
-            String newTopicFilter = "";
-            for (int i = 0; i < spliteTopicFilters.size(); i++) {
-                String value = spliteTopicFilters.get(i);
-                if (value.equals("+")) {
-                    newTopicFilter = newTopicFilter + "+/";
-                } else if (value.equals("#")) {
-                    newTopicFilter = newTopicFilter + "#/";
-                    break;
-                } else {
-                    newTopicFilter = newTopicFilter + splitTopics.get(i) + "/";
-                }
-            }
-            newTopicFilter = StrUtil.removeSuffix(newTopicFilter, "/");
-            if (topicFilter.equals(newTopicFilter)) {
-                return true;
-            }
-        } else if (topicFilter.equals(topic)) {
-            return true;
-        }
-
-        return false;
+        ReactorQL reactorQL = EnvelopeFilter.compile(ruleEngineMateData.getSql());
+        start(reactorQL, decoder(ruleEngineMateData, reactorQL));
     }
 
     @Override
@@ -94,28 +91,107 @@ public final class RuleEngineActor extends AbstractActor {
         }).build();
     }
 
+    @Override
+    public void postStop() {
+        stop();
+    }
+
     protected void updateProcess(UpdateRuleEngineMessage updateRuleEngineMessage) {
-        this.ruleEngineMateData = updateRuleEngineMessage.getRuleEngineMateData();
+        RuleEngineMateData newRuleEngineMateData = updateRuleEngineMessage.getRuleEngineMateData();
+        ReactorQL reactorQL;
+        PayloadDecoder decoder;
+        try {
+            reactorQL = EnvelopeFilter.compile(newRuleEngineMateData.getSql());
+            decoder = decoder(newRuleEngineMateData, reactorQL);
+        } catch (Exception e) {
+            Loggers.CONFIG_SERVER.error("compile sql of rule {} failed, keep the previous rule.", newRuleEngineMateData.getRuleId(), e);
+            return;
+        }
+        stop();
+        this.ruleEngineMateData = newRuleEngineMateData;
+        start(reactorQL, decoder);
     }
 
     protected void ruleProcess(RuleEngineMessage msg) {
         if (!this.ruleEngineMateData.getEnable()) return;
-        
-        reactorQL.start(name -> isTopic(msg.getMessage().getTopic(), name) ?
-                        Flux.just((new ObjectMapper().convertValue(JacksonUtils.toObj(new String(msg.getMessage().getMessageBytes().toByteArray())),Map.class))) : Flux.just())
-                .doOnNext(map -> {
-                    // 如果不为空则触发响应
-                    if (map != null && this.ruleEngineMateData.getResourcesMateDatas().size() != 0) {
-                        // 根据规则获得规则的响应
-                        this.ruleEngineMateData.getResourcesMateDatas().forEach(resource -> {
-                            DriverMessage driverMessage = new DriverMessage();
-                            driverMessage.setProperty(map);
-                            driverMessage.setResourcesMateData(resource);
-                            driverMessage.setRuleEngineMessage(msg);
-                            ActorSelection actorSelection = actorSystem.actorSelection("/user/" + resource.getResourceID());
-                            actorSelection.tell(driverMessage, ActorRef.noSender());
-                        });
-                    }
-                }).subscribe();
+
+        sink.next(msg);
+    }
+
+    /**
+     * Decoder of the rule, json payloads are decoded to the properties the sql reads only, unless the sql opts out
+     * with {@code /*+ jsonProjection(false) *}{@code /}.
+     */
+    private static PayloadDecoder decoder(RuleEngineMateData ruleEngineMateData, ReactorQL reactorQL) {
+        ReactorQLMetadata metadata = reactorQL.metadata();
+        boolean projection = !"false".equals(metadata.getSetting("jsonProjection").map(String::valueOf).orElse(null));
+        return PayloadDecoders.get(ruleEngineMateData,
+                projection ? PropertyPathUtils.findPaths(metadata.getSql()).orElse(null) : null);
+    }
+
+    /**
+     * Each row is fed with its published message, the message is the source of the output row. Aggregated rows
+     * are built from many messages and timer rows from none, they are emitted without a source.
+     */
+    private void start(ReactorQL reactorQL, PayloadDecoder decoder) {
+        EmitterProcessor<RuleEngineMessage> processor = EmitterProcessor.create(false);
+        this.sink = processor.sink(FluxSink.OverflowStrategy.BUFFER);
+        boolean aggregated = isAggregated(reactorQL.metadata());
+        AtomicReference<ReactorQLContext> context = new AtomicReference<>();
+        context.set(new DefaultReactorQLContext(name -> processor
+                .filter(msg -> RuleEngineRouter.matches(msg.getMessage().getTopic(), name) && msg.getPayload(decoder) != null)
+                .map(msg -> new DefaultReactorQLRecord(null, msg.getPayload(decoder), context.get()).addRecord(SOURCE, msg))));
+        this.pipeline = reactorQL.start(context.get())
+                .doOnError(e -> Loggers.CONFIG_SERVER.error("rule {} failed, restart it.", ruleEngineMateData.getRuleId(), e))
+                .retry()
+                .subscribe(record -> respond(record.asMap(), aggregated ? null
+                        : (RuleEngineMessage) record.getRecord(SOURCE).orElse(null)));
+    }
+
+    /**
+     * Whether the rows are aggregated, by group by or by an aggregate function in the select, as
+     * {@link org.monkey.mmq.rule.engine.DefaultReactorQL} does.
+     */
+    private static boolean isAggregated(ReactorQLMetadata metadata) {
+        PlainSelect select = metadata.getSql();
+        if (select.getGroupBy() != null) {
+            return true;
+        }
+        for (SelectItem item : select.getSelectItems()) {
+            if (item instanceof SelectExpressionItem
+                    && ((SelectExpressionItem) item).getExpression() instanceof Function
+                    && metadata.getFeature(FeatureId.ValueAggMap.of(
+                            ((Function) ((SelectExpressionItem) item).getExpression()).getName())).isPresent()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void stop() {
+        if (pipeline != null) {
+            pipeline.dispose();
+        }
+        if (sink != null) {
+            sink.complete();
+        }
+    }
+
+    private void respond(Map<String, Object> map, RuleEngineMessage source) {
+        RuleEngineMateData ruleEngineMateData = this.ruleEngineMateData;
+        // 如果不为空则触发响应
+        if (map != null && ruleEngineMateData.getResourcesMateDatas().size() != 0) {
+            // 根据规则获得规则的响应
+            ruleEngineMateData.getResourcesMateDatas().forEach(resource -> {
+                DriverMessage driverMessage = new DriverMessage();
+                driverMessage.setProperty(map);
+                driverMessage.setResourcesMateData(resource);
+                driverMessage.setRuleEngineMessage(source);
+                ActorRef driver = DriverActor.get(resource.getResourceID());
+                if (driver != null) {
+                    driver.tell(driverMessage, ActorRef.noSender());
+                }
+            });
+        }
     }
 }
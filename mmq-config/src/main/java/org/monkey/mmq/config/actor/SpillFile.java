@@ -0,0 +1,277 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.actor;
+
+import org.monkey.mmq.core.utils.DiskUtils;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Append-only file of length prefixed records, read back in append order. Records left by a previous run are
+ * read first. Not thread safe, the caller locks.
+ *
+ * <p>The records are written to segments of {@link #SEGMENT_BYTES} named {@code <file>.<n>}, a segment is deleted
+ * once every record in it is read, so a file read while it is appended does not keep the records already read.
+ * Appended records reach the OS right away and the disk on {@link #sync()}.
+ *
+ * @author solley
+ */
+final class SpillFile {
+
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    private final File dir;
+
+    private final String name;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    private long lastSeq;
+
+    /**
+     * Writes the last segment.
+     */
+    private FileOutputStream out;
+
+    /**
+     * Reads the first segment.
+     */
+    private DataInputStream in;
+
+    private boolean dirty;
+
+    private long pending;
+
+    private long size;
+
+    SpillFile(File file) throws IOException {
+        this.dir = file.getParentFile();
+        this.name = file.getName();
+        DiskUtils.forceMkdir(dir);
+        recover();
+    }
+
+    /**
+     * Count the complete records of the segments left by a previous run, a torn record at the tail is cut.
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((parent, each) -> seq(each) > 0);
+        if (files == null) {
+            return;
+        }
+        List<Segment> recovered = new ArrayList<>(files.length);
+        for (File each : files) {
+            recovered.add(recover(each));
+        }
+        recovered.sort(Comparator.comparingLong(segment -> segment.seq));
+        for (Segment each : recovered) {
+            lastSeq = each.seq;
+            if (each.pending == 0) {
+                DiskUtils.deleteQuietly(each.file);
+                continue;
+            }
+            segments.add(each);
+            pending += each.pending;
+            size += each.bytes;
+        }
+    }
+
+    private Segment recover(File file) throws IOException {
+        Segment segment = new Segment(file, seq(file.getName()));
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length = input.readInt();
+                if (length < 0 || input.skipBytes(length) != length) {
+                    break;
+                }
+                segment.bytes += Integer.BYTES + length;
+                segment.pending++;
+            }
+        } catch (EOFException ignored) {
+            // 读到文件尾
+        }
+        if (segment.bytes < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(segment.bytes);
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Sequence of a segment file name, 0 if the name is not a segment of this file.
+     */
+    private long seq(String fileName) {
+        if (!fileName.startsWith(name + ".")) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(fileName.substring(name.length() + 1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    void append(byte[] record) throws IOException {
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.bytes >= SEGMENT_BYTES) {
+            if (out != null) {
+                sync();
+                close(out);
+                out = null;
+            }
+            lastSeq++;
+            tail = new Segment(new File(dir, name + "." + lastSeq), lastSeq);
+            segments.add(tail);
+        }
+        if (out == null) {
+            out = new FileOutputStream(tail.file, true);
+        }
+        out.write(ByteBuffer.allocate(Integer.BYTES + record.length).putInt(record.length).put(record).array());
+        dirty = true;
+        tail.pending++;
+        tail.bytes += Integer.BYTES + record.length;
+        pending++;
+        size += Integer.BYTES + record.length;
+    }
+
+    /**
+     * Force the appended records to the disk.
+     */
+    void sync() throws IOException {
+        if (dirty && out != null) {
+            out.getFD().sync();
+        }
+        dirty = false;
+    }
+
+    /**
+     * Read the oldest unread record.
+     *
+     * @return record, null if every record is read
+     */
+    byte[] next() throws IOException {
+        if (pending == 0) {
+            return null;
+        }
+        Segment head = segments.getFirst();
+        if (in == null) {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(head.file)));
+        }
+        byte[] record = new byte[in.readInt()];
+        in.readFully(record);
+        head.pending--;
+        pending--;
+        size -= Integer.BYTES + record.length;
+        if (head.pending == 0) {
+            close(in);
+            in = null;
+            if (head == segments.getLast()) {
+                close(out);
+                out = null;
+                dirty = false;
+            }
+            segments.removeFirst();
+            DiskUtils.deleteQuietly(head.file);
+        }
+        return record;
+    }
+
+    long pending() {
+        return pending;
+    }
+
+    /**
+     * Bytes of the unread records.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Close the file and keep it for the next run, records read in this run from the oldest segment are read
+     * again then.
+     */
+    void close() {
+        try {
+            sync();
+        } catch (IOException ignored) {
+            // 已写入操作系统
+        }
+        close(in);
+        close(out);
+        in = null;
+        out = null;
+    }
+
+    /**
+     * Close the file and delete it with the unread records.
+     */
+    void delete() {
+        close(in);
+        close(out);
+        in = null;
+        out = null;
+        dirty = false;
+        for (Segment each : segments) {
+            DiskUtils.deleteQuietly(each.file);
+        }
+        segments.clear();
+        pending = 0;
+        size = 0;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // 文件随后删除
+        }
+    }
+
+    private static final class Segment {
+
+        private final File file;
+
+        private final long seq;
+
+        private long pending;
+
+        private long bytes;
+
+        private Segment(File file, long seq) {
+            this.file = file;
+            this.seq = seq;
+        }
+    }
+}
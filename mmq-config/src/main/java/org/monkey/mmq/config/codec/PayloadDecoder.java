@@ -0,0 +1,44 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Decodes message payloads into the maps, lists and plain values the rule engine reads properties from.
+ *
+ * @author solley
+ */
+public interface PayloadDecoder {
+
+    /**
+     * Decoders with the same id decode a payload to the same value, the decoded payload is shared by them.
+     *
+     * @return id
+     */
+    String getId();
+
+    /**
+     * Decode a payload.
+     *
+     * @param input payload bytes
+     * @return decoded object, null if the payload is not an object
+     * @throws IOException if the payload is malformed
+     */
+    Map<String, Object> decode(InputStream input) throws IOException;
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.monkey.mmq.config.config.Loggers;
+import org.monkey.mmq.config.matedata.PayloadFormat;
+import org.monkey.mmq.config.matedata.RuleEngineMateData;
+import org.monkey.mmq.core.utils.JacksonUtils;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Payload decoders by format.
+ *
+ * <p>Payloads a decoder fails on are counted as the {@code mmq_rule} meter {@code decode_failed} tagged by format,
+ * and logged as a warning at most every {@link #FAILURE_WARN_INTERVAL_MS} per format.
+ *
+ * @author solley
+ */
+public final class PayloadDecoders {
+
+    public static final PayloadDecoder JSON = new PayloadDecoder() {
+        @Override
+        public String getId() {
+            return "json";
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map<String, Object> decode(InputStream input) {
+            return JacksonUtils.toObj(input, Map.class);
+        }
+    };
+
+    public static final PayloadDecoder CBOR = new JacksonDecoder("cbor", new ObjectMapper(new CBORFactory()));
+
+    public static final PayloadDecoder MSGPACK = new JacksonDecoder("msgpack", new ObjectMapper(new MessagePackFactory()));
+
+    private static final Map<String, PayloadDecoder> PROTOBUF = new ConcurrentHashMap<>();
+
+    private static final long FAILURE_WARN_INTERVAL_MS = 10000L;
+
+    private static final Map<String, Failures> FAILURES = new ConcurrentHashMap<>();
+
+    private PayloadDecoders() {
+    }
+
+    /**
+     * Decoder of the payloads a rule reads.
+     *
+     * @param ruleEngineMateData rule
+     * @return decoder, json if the rule has no payload format
+     */
+    public static PayloadDecoder get(RuleEngineMateData ruleEngineMateData) {
+        PayloadFormat format = ruleEngineMateData.getPayloadFormat();
+        if (format == null) {
+            return JSON;
+        }
+        switch (format) {
+            case CBOR:
+                return CBOR;
+            case MSGPACK:
+                return MSGPACK;
+            case PROTOBUF:
+                if (ruleEngineMateData.getProtobufMessage() == null) {
+                    throw new IllegalArgumentException("protobufMessage of rule " + ruleEngineMateData.getRuleId() + " is empty.");
+                }
+                return PROTOBUF.computeIfAbsent(ruleEngineMateData.getProtobufMessage(), ProtobufPayloadDecoder::new);
+            default:
+                return JSON;
+        }
+    }
+
+    /**
+     * Decoder of the payloads a rule reads, json payloads are projected to the properties the rule reads.
+     *
+     * @param ruleEngineMateData rule
+     * @param paths              property paths the rule reads, null if the rule reads whole payloads
+     * @return decoder
+     */
+    public static PayloadDecoder get(RuleEngineMateData ruleEngineMateData, Set<String> paths) {
+        PayloadFormat format = ruleEngineMateData.getPayloadFormat();
+        if (paths == null || (format != null && format != PayloadFormat.JSON)) {
+            return get(ruleEngineMateData);
+        }
+        // 路径相同的规则id相同, 共用解析结果
+        return new ProjectedJsonDecoder(paths);
+    }
+
+    /**
+     * Record a payload a decoder failed on.
+     *
+     * @param decoder decoder
+     * @param cause   decode failure
+     */
+    public static void failed(PayloadDecoder decoder, Exception cause) {
+        // 投影解析的id包含路径, 按格式统计
+        String id = decoder.getId();
+        int index = id.indexOf(':');
+        String format = index < 0 ? id : id.substring(0, index);
+        Failures failures = FAILURES.computeIfAbsent(format, Failures::new);
+        failures.counter.increment();
+        long now = System.currentTimeMillis();
+        if (now - failures.lastWarn >= FAILURE_WARN_INTERVAL_MS) {
+            failures.lastWarn = now;
+            Loggers.CONFIG_SERVER.warn("decode {} payload failed, {} payloads failed so far: {}", id,
+                    (long) failures.counter.count(), cause.toString());
+        }
+        Loggers.CONFIG_SERVER.debug("decode {} payload failed.", id, cause);
+    }
+
+    private static final class Failures {
+
+        private final Counter counter;
+
+        private volatile long lastWarn;
+
+        private Failures(String format) {
+            this.counter = Metrics.counter("mmq_rule", "format", format, "name", "decode_failed");
+        }
+    }
+
+    private static final class JacksonDecoder implements PayloadDecoder {
+
+        private final String id;
+
+        private final ObjectMapper mapper;
+
+        private JacksonDecoder(String id, ObjectMapper mapper) {
+            this.id = id;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map<String, Object> decode(InputStream input) throws IOException {
+            return mapper.readValue(input, Map.class);
+        }
+    }
+}
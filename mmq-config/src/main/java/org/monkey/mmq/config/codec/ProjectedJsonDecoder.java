@@ -0,0 +1,119 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.codec;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Json decoder keeping only the properties a rule reads. The payload is read with a streaming parser, objects on
+ * the way to a property are descended into, the value of a property is read whole and everything else is skipped
+ * without being materialized. Reading stops as soon as every property is found.
+ *
+ * <p>Paths are dot separated, as in the rule sql. A key containing dots matches the same way the property accessor
+ * resolves it, e.g. the key {@code a.b} of the path {@code a.b.c}.
+ *
+ * @author solley
+ */
+public final class ProjectedJsonDecoder implements PayloadDecoder {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String id;
+
+    /**
+     * Paths read whole, a path below another path is left out.
+     */
+    private final Set<String> paths = new HashSet<>();
+
+    /**
+     * Objects on the way to a path.
+     */
+    private final Set<String> prefixes = new HashSet<>();
+
+    public ProjectedJsonDecoder(Set<String> paths) {
+        for (String path : new TreeSet<>(paths)) {
+            if (!coveredBy(path, this.paths)) {
+                this.paths.add(path);
+            }
+        }
+        for (String path : this.paths) {
+            for (int i = path.indexOf('.'); i > 0; i = path.indexOf('.', i + 1)) {
+                prefixes.add(path.substring(0, i));
+            }
+        }
+        this.id = "json:" + new TreeSet<>(this.paths);
+    }
+
+    private static boolean coveredBy(String path, Set<String> paths) {
+        for (int i = path.indexOf('.'); i > 0; i = path.indexOf('.', i + 1)) {
+            if (paths.contains(path.substring(0, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public Map<String, Object> decode(InputStream input) throws IOException {
+        try (JsonParser parser = MAPPER.getFactory().createParser(input)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            return readObject(parser, "", new int[]{paths.size()});
+        }
+    }
+
+    /**
+     * Read the fields of an object up to its end, or until every path is found.
+     *
+     * @param remaining number of paths not found yet
+     */
+    private Map<String, Object> readObject(JsonParser parser, String prefix, int[] remaining) throws IOException {
+        Map<String, Object> map = new HashMap<>();
+        while (remaining[0] > 0 && parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            String path = prefix + name;
+            JsonToken token = parser.nextToken();
+            if (paths.contains(path)) {
+                map.put(name, MAPPER.readValue(parser, Object.class));
+                remaining[0]--;
+            } else if (prefixes.contains(path)) {
+                // 路径上的数组或值无法继续展开, 完整读取
+                map.put(name, token == JsonToken.START_OBJECT
+                        ? readObject(parser, path + ".", remaining)
+                        : MAPPER.readValue(parser, Object.class));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return map;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.codec;
+
+import com.google.protobuf.Any;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorSet;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.Duration;
+import com.google.protobuf.Empty;
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.Int64Value;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Struct;
+import com.google.protobuf.Timestamp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Protobuf message types of the registered descriptor sets, a descriptor set is the output of
+ * {@code protoc --include_imports --descriptor_set_out}. Well known types may be left out of the set.
+ *
+ * @author solley
+ */
+public final class ProtobufDescriptors {
+
+    private static final Map<String, FileDescriptor> WELL_KNOWN = new HashMap<>();
+
+    /**
+     * descriptor set name -> message types of the set
+     */
+    private static final Map<String, Map<String, Descriptor>> SETS = new ConcurrentHashMap<>();
+
+    private static volatile Map<String, Descriptor> messages = Collections.emptyMap();
+
+    static {
+        for (FileDescriptor file : new FileDescriptor[]{Any.getDescriptor().getFile(), Duration.getDescriptor().getFile(),
+                Empty.getDescriptor().getFile(), FieldMask.getDescriptor().getFile(), Struct.getDescriptor().getFile(),
+                Timestamp.getDescriptor().getFile(), Int64Value.getDescriptor().getFile()}) {
+            WELL_KNOWN.put(file.getName(), file);
+        }
+    }
+
+    private ProtobufDescriptors() {
+    }
+
+    /**
+     * Register a descriptor set, replacing the set of the same name.
+     *
+     * @param name          descriptor set name
+     * @param descriptorSet serialized {@code FileDescriptorSet}
+     */
+    public static synchronized void register(String name, byte[] descriptorSet)
+            throws InvalidProtocolBufferException, DescriptorValidationException {
+        SETS.put(name, parse(descriptorSet));
+        rebuild();
+    }
+
+    public static synchronized void remove(String name) {
+        if (SETS.remove(name) != null) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Registered message type.
+     *
+     * @param messageType full name of the message type, e.g. {@code sensor.v1.Reading}
+     * @return descriptor, null if no registered set contains the type
+     */
+    public static Descriptor find(String messageType) {
+        return messages.get(messageType);
+    }
+
+    /**
+     * Message types of every registered descriptor set.
+     *
+     * @return message type names by set name
+     */
+    public static Map<String, List<String>> list() {
+        Map<String, List<String>> list = new TreeMap<>();
+        SETS.forEach((name, types) -> list.put(name, new ArrayList<>(new TreeMap<>(types).keySet())));
+        return list;
+    }
+
+    /**
+     * Build the message types of a descriptor set.
+     *
+     * @param descriptorSet serialized {@code FileDescriptorSet}
+     * @return message types by full name
+     */
+    public static Map<String, Descriptor> parse(byte[] descriptorSet)
+            throws InvalidProtocolBufferException, DescriptorValidationException {
+        Map<String, FileDescriptorProto> protos = new HashMap<>();
+        for (FileDescriptorProto proto : FileDescriptorSet.parseFrom(descriptorSet).getFileList()) {
+            protos.put(proto.getName(), proto);
+        }
+        Map<String, FileDescriptor> files = new HashMap<>();
+        Map<String, Descriptor> types = new HashMap<>();
+        for (String file : protos.keySet()) {
+            for (Descriptor descriptor : build(file, protos, files).getMessageTypes()) {
+                collect(descriptor, types);
+            }
+        }
+        return types;
+    }
+
+    private static FileDescriptor build(String name, Map<String, FileDescriptorProto> protos,
+                                        Map<String, FileDescriptor> files) throws DescriptorValidationException {
+        FileDescriptor file = files.get(name);
+        if (file != null) {
+            return file;
+        }
+        FileDescriptorProto proto = protos.get(name);
+        if (proto == null) {
+            file = WELL_KNOWN.get(name);
+            if (file == null) {
+                throw new IllegalArgumentException("dependency " + name + " is not in the descriptor set, "
+                        + "generate it with protoc --include_imports.");
+            }
+            return file;
+        }
+        FileDescriptor[] dependencies = new FileDescriptor[proto.getDependencyCount()];
+        for (int i = 0; i < dependencies.length; i++) {
+            dependencies[i] = build(proto.getDependency(i), protos, files);
+        }
+        file = FileDescriptor.buildFrom(proto, dependencies);
+        files.put(name, file);
+        return file;
+    }
+
+    private static void collect(Descriptor descriptor, Map<String, Descriptor> types) {
+        types.put(descriptor.getFullName(), descriptor);
+        for (Descriptor nested : descriptor.getNestedTypes()) {
+            collect(nested, types);
+        }
+    }
+
+    private static void rebuild() {
+        Map<String, Descriptor> all = new HashMap<>();
+        SETS.values().forEach(all::putAll);
+        messages = all;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.codec;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes protobuf payloads of one message type straight into maps keyed by field name. Singular scalar fields
+ * are present with their default value, unset message and oneof fields are absent, enums are decoded to their
+ * names and bytes to byte arrays.
+ *
+ * @author solley
+ */
+final class ProtobufPayloadDecoder implements PayloadDecoder {
+
+    private final String messageType;
+
+    ProtobufPayloadDecoder(String messageType) {
+        this.messageType = messageType;
+    }
+
+    @Override
+    public String getId() {
+        return "protobuf:" + messageType;
+    }
+
+    @Override
+    public Map<String, Object> decode(InputStream input) throws IOException {
+        // 每次查找, 描述文件更新后立即生效
+        Descriptor descriptor = ProtobufDescriptors.find(messageType);
+        if (descriptor == null) {
+            throw new IOException("protobuf message type " + messageType + " is not registered.");
+        }
+        return toMap(DynamicMessage.parseFrom(descriptor, input));
+    }
+
+    private static Map<String, Object> toMap(Message message) {
+        List<FieldDescriptor> fields = message.getDescriptorForType().getFields();
+        Map<String, Object> map = new HashMap<>(fields.size() * 2);
+        for (FieldDescriptor field : fields) {
+            if (field.isMapField()) {
+                map.put(field.getName(), toMapField(field, message));
+            } else if (field.isRepeated()) {
+                int count = message.getRepeatedFieldCount(field);
+                List<Object> list = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(toValue(field, message.getRepeatedField(field, i)));
+                }
+                map.put(field.getName(), list);
+            } else if (message.hasField(field) || (field.getJavaType() != FieldDescriptor.JavaType.MESSAGE
+                    && field.getContainingOneof() == null)) {
+                map.put(field.getName(), toValue(field, message.getField(field)));
+            }
+        }
+        return map;
+    }
+
+    private static Map<Object, Object> toMapField(FieldDescriptor field, Message message) {
+        FieldDescriptor key = field.getMessageType().findFieldByNumber(1);
+        FieldDescriptor value = field.getMessageType().findFieldByNumber(2);
+        int count = message.getRepeatedFieldCount(field);
+        Map<Object, Object> map = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            Message entry = (Message) message.getRepeatedField(field, i);
+            map.put(toValue(key, entry.getField(key)), toValue(value, entry.getField(value)));
+        }
+        return map;
+    }
+
+    private static Object toValue(FieldDescriptor field, Object value) {
+        switch (field.getJavaType()) {
+            case MESSAGE:
+                return toMap((Message) value);
+            case ENUM:
+                return ((EnumValueDescriptor) value).getName();
+            case BYTE_STRING:
+                return ((ByteString) value).toByteArray();
+            default:
+                return value;
+        }
+    }
+}
@@ -39,4 +39,44 @@ public class Constants {
 
     public static final String RETENTIOM_POLICY = "retentionPolicy";
 
+    public static final String BATCH_SIZE = "batchSize";
+
+    public static final String LINGER_MS = "lingerMs";
+
+    public static final String BUFFER_SIZE = "bufferSize";
+
+    public static final String COPY_FORMAT = "copyFormat";
+
+    public static final String MAX_RETRIES = "maxRetries";
+
+    public static final String MAX_SQL_LENGTH = "maxSqlLength";
+
+    public static final String GZIP = "gzip";
+
+    public static final String VALUE_FORMAT = "valueFormat";
+
+    public static final String RECORD_KEY = "recordKey";
+
+    public static final String MANDATORY = "mandatory";
+
+    public static final String PERSISTENT = "persistent";
+
+    public static final String MAX_INFLIGHT = "maxInflight";
+
+    public static final String TOPIC_PREFIX = "topicPrefix";
+
+    public static final String STRIP_TOPIC_PREFIX = "stripTopicPrefix";
+
+    public static final String MAILBOX_CAPACITY = "mailboxCapacity";
+
+    public static final String OVERFLOW_POLICY = "overflowPolicy";
+
+    public static final String SPILL_MAX_BYTES = "spillMaxBytes";
+
+    public static final String BREAKER_FAILURES = "breakerFailures";
+
+    public static final String BREAKER_PROBE_MS = "breakerProbeMs";
+
+    public static final String BREAKER_TRIAL_TIMEOUT_MS = "breakerTrialTimeoutMs";
+
 }
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.driver;
+
+import org.monkey.mmq.config.actor.DriverBreaker;
+import org.monkey.mmq.config.config.Loggers;
+import org.monkey.mmq.core.exception.MmqException;
+import org.monkey.mmq.core.executor.ExecutorFactory;
+import org.monkey.mmq.core.executor.NameThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.monkey.mmq.config.config.Constants.*;
+
+/**
+ * Asynchronous batching writer of a resource. Items are queued in a bounded buffer and written in batches when
+ * the batch is full or the linger elapsed, a failed batch is retried with a jittered exponential backoff. A retry
+ * is a delayed task on the shared flusher pool, no flusher thread waits for it, and the following batches of the
+ * resource are written only after it to keep the order.
+ *
+ * <p>A full buffer blocks the caller up to {@link #OFFER_TIMEOUT_MS} and then fails the message, which slows down
+ * the driver actor and the rules feeding it. Written items, failed items and batch latency are published as
+ * {@link DriverMetrics}, and the result of every batch is reported to the breaker of the resource.
+ *
+ * @param <T> item type
+ * @author solley
+ */
+public class BatchWriter<T> {
+
+    static final int DEFAULT_LINGER_MS = 200;
+
+    static final int DEFAULT_MAX_RETRIES = 3;
+
+    private static final long OFFER_TIMEOUT_MS = 5000L;
+
+    private static final long RETRY_BACKOFF_MS = 100L;
+
+    private static final ScheduledExecutorService FLUSHER = ExecutorFactory.newScheduledExecutorService(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+            new NameThreadFactory("org.monkey.mmq.config.driver.batch-writer"));
+
+    private final String resourceId;
+
+    private final Writer<T> writer;
+
+    private final int batchSize;
+
+    private final int maxRetries;
+
+    private final BlockingQueue<T> buffer;
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final ScheduledFuture<?> lingerTask;
+
+    private final DriverMetrics metrics;
+
+    /**
+     * Batch waiting for its retry, guarded by this writer.
+     */
+    private List<T> retrying;
+
+    private int retryTotal;
+
+    private int retryAttempt;
+
+    private ScheduledFuture<?> retryTask;
+
+    private boolean closed;
+
+    public BatchWriter(String resourceId, String type, Writer<T> writer, int batchSize, int lingerMs,
+                       int bufferSize, int maxRetries) {
+        this.resourceId = resourceId;
+        this.writer = writer;
+        this.batchSize = batchSize;
+        this.maxRetries = maxRetries;
+        this.buffer = new ArrayBlockingQueue<>(Math.max(bufferSize, batchSize));
+        this.metrics = new DriverMetrics(resourceId, type, "batch_latency");
+        this.lingerTask = FLUSHER.scheduleWithFixedDelay(this::flush, lingerMs, lingerMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Create the batching writer of a resource from the {@code batchSize}, {@code lingerMs}, {@code bufferSize}
+     * and {@code maxRetries} fields of its config.
+     *
+     * @param resourceId resource id
+     * @param type       resource type, tag of the meters
+     * @param resource   resource config
+     * @param writer     batch writer
+     * @return writer, null if batching is not enabled
+     */
+    public static <T> BatchWriter<T> create(String resourceId, String type, Map<String, Object> resource,
+                                            Writer<T> writer) {
+        int batchSize = intValue(resource.get(BATCH_SIZE), 0);
+        if (batchSize <= 1) {
+            return null;
+        }
+        return new BatchWriter<>(resourceId, type, writer, batchSize,
+                intValue(resource.get(LINGER_MS), DEFAULT_LINGER_MS), intValue(resource.get(BUFFER_SIZE), batchSize * 10),
+                intValue(resource.get(MAX_RETRIES), DEFAULT_MAX_RETRIES));
+    }
+
+    /**
+     * Queue an item.
+     *
+     * @param item item
+     * @throws MmqException if the buffer stays full
+     */
+    public void add(T item) throws MmqException {
+        try {
+            if (!buffer.offer(item, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new MmqException(MmqException.OVER_THRESHOLD, "batch buffer of resource " + resourceId + " is full");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MmqException(MmqException.SERVER_ERROR, e);
+        }
+        if (buffer.size() >= batchSize && flushScheduled.compareAndSet(false, true)) {
+            FLUSHER.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * Stop the linger task, write the queued items and remove the meters. A batch waiting for its retry is written
+     * once more right away, no batch is retried after close.
+     */
+    public void close() {
+        lingerTask.cancel(false);
+        synchronized (this) {
+            closed = true;
+            if (retryTask != null) {
+                retryTask.cancel(false);
+                retryTask = null;
+            }
+            if (retrying != null) {
+                List<T> batch = retrying;
+                retrying = null;
+                write(batch, retryTotal, retryAttempt);
+            }
+        }
+        flush();
+        metrics.remove();
+    }
+
+    private synchronized void flush() {
+        // 等待重试的批次写完后再写后续的批次
+        if (retrying != null) {
+            return;
+        }
+        List<T> batch = new ArrayList<>(batchSize);
+        while (buffer.drainTo(batch, batchSize) > 0) {
+            if (!write(batch, batch.size(), 0)) {
+                return;
+            }
+            batch = new ArrayList<>(batchSize);
+        }
+    }
+
+    private synchronized void retry() {
+        retryTask = null;
+        List<T> batch = retrying;
+        retrying = null;
+        if (batch != null && write(batch, retryTotal, retryAttempt)) {
+            flush();
+        }
+    }
+
+    /**
+     * Write a batch, a failure with attempts left schedules the retry of the batch.
+     *
+     * @param batch   items left to write
+     * @param total   items of the batch at its first attempt
+     * @param attempt number of the attempt, from 0
+     * @return false if the batch is retried later
+     */
+    private boolean write(List<T> batch, int total, int attempt) {
+        long start = System.nanoTime();
+        try {
+            writer.write(batch);
+            metrics.latency(start);
+            metrics.written(total);
+            DriverBreaker.completed(resourceId, start, null);
+            return true;
+        } catch (Exception e) {
+            if (attempt >= maxRetries || closed) {
+                metrics.written(total - batch.size());
+                metrics.failed(batch.size());
+                DriverBreaker.completed(resourceId, start, e);
+                Loggers.CONFIG_SERVER.error("write batch of {} items to resource {} failed after {} attempts.",
+                        batch.size(), resourceId, attempt + 1, e);
+                return true;
+            }
+            long backoff = RETRY_BACKOFF_MS << attempt;
+            retrying = batch;
+            retryTotal = total;
+            retryAttempt = attempt + 1;
+            retryTask = FLUSHER.schedule(this::retry, backoff + ThreadLocalRandom.current().nextLong(backoff),
+                    TimeUnit.MILLISECONDS);
+            return false;
+        }
+    }
+
+    static int intValue(Object value, int defaultValue) {
+        if (value == null || value.toString().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString().trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Writes one batch to the resource.
+     *
+     * @param <T> item type
+     */
+    @FunctionalInterface
+    public interface Writer<T> {
+
+        /**
+         * Write a batch, throw to retry it. Items already written may be removed from the batch before throwing,
+         * only the remaining items are retried then.
+         *
+         * @param batch items
+         * @throws Exception if the write failed
+         */
+        void write(List<T> batch) throws Exception;
+    }
+}
@@ -18,31 +18,97 @@ package org.monkey.mmq.config.driver;
 import org.monkey.mmq.config.matedata.ResourceEnum;
 import org.monkey.mmq.core.utils.ApplicationUtils;
 import org.monkey.mmq.core.utils.StringUtils;
+import org.springframework.expression.Expression;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.common.TemplateParserContext;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * @author solley
  */
 public class DriverFactory {
+
+    /**
+     * SpEL compiler mode of the driver templates, OFF, IMMEDIATE or MIXED.
+     */
+    private static final String SPEL_COMPILER_MODE = "mmq.driver.spel.compiler.mode";
+
+    private static final ExpressionParser PARSER = new SpelExpressionParser(new SpelParserConfiguration(
+            SpelCompilerMode.valueOf(System.getProperty(SPEL_COMPILER_MODE, SpelCompilerMode.OFF.name()).toUpperCase()),
+            DriverFactory.class.getClassLoader()));
+
+    private static final TemplateParserContext PARSER_CONTEXT = new TemplateParserContext();
+
+    private static final Map<String, Expression> TEMPLATES = new ConcurrentHashMap<>();
+
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+    private static final DateTimeFormatter DATETIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final DateTimeFormatter UTC = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssZ");
+
     public static ResourceDriver getResourceDriverByEnum(ResourceEnum resourceEnum) {
         return (ResourceDriver) ApplicationUtils.getBean(resourceEnum.getName());
     }
 
+    /**
+     * Compiled template of a resource, parsed on first use and kept until the resource is changed.
+     *
+     * @param resourceId resource id
+     * @param template   template text
+     * @return compiled template
+     */
+    public static Expression getTemplate(String resourceId, String template) {
+        Expression expression = TEMPLATES.get(resourceId);
+        if (expression == null || !expression.getExpressionString().equals(template)) {
+            expression = PARSER.parseExpression(template, PARSER_CONTEXT);
+            TEMPLATES.put(resourceId, expression);
+        }
+        return expression;
+    }
+
+    /**
+     * Parse a plain SpEL expression with the shared parser.
+     *
+     * @param expression expression text
+     * @return parsed expression
+     */
+    static Expression parse(String expression) {
+        return PARSER.parseExpression(expression);
+    }
+
+    /**
+     * Drop the compiled template of a resource, called when the resource is added, updated or deleted.
+     *
+     * @param resourceId resource id
+     */
+    public static void removeTemplate(String resourceId) {
+        TEMPLATES.remove(resourceId);
+    }
+
     public static void setProperty(Map property, String topic, String username) {
-        property.put("uuid", UUID.randomUUID().toString());
-
-        Date date = new Date();
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-        property.put("date", sdf.format(date));
-        sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        property.put("datetime", sdf.format(date));
-        sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-        property.put("utc", sdf.format(date));
-        property.put("timestamp", date.getTime());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // 随机UUID(version 4), 不经过SecureRandom
+        property.put("uuid", new UUID((random.nextLong() & 0xffffffffffff0fffL) | 0x0000000000004000L,
+                (random.nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L).toString());
+
+        long now = System.currentTimeMillis();
+        ZonedDateTime date = Instant.ofEpochMilli(now).atZone(ZoneId.systemDefault());
+        property.put("date", DATE.format(date));
+        property.put("datetime", DATETIME.format(date));
+        property.put("utc", UTC.format(date));
+        property.put("timestamp", now);
         if (StringUtils.isNotEmpty(username)) {
             property.put("username", username);
         }
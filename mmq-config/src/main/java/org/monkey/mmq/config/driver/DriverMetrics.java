@@ -0,0 +1,71 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.driver;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write meters of a resource: written and failed counters and a latency timer, published as {@code mmq_driver}
+ * tagged by resource and type.
+ *
+ * @author solley
+ */
+public final class DriverMetrics {
+
+    private static final String METER = "mmq_driver";
+
+    private final Counter written;
+
+    private final Counter failed;
+
+    private final Timer latency;
+
+    public DriverMetrics(String resourceId, String type, String latencyName) {
+        this.written = Metrics.counter(METER, "resource", resourceId, "type", type, "name", "written");
+        this.failed = Metrics.counter(METER, "resource", resourceId, "type", type, "name", "failed");
+        this.latency = Metrics.timer(METER, "resource", resourceId, "type", type, "name", latencyName);
+    }
+
+    /**
+     * Record the latency of a write started at {@code startNanos}.
+     *
+     * @param startNanos {@link System#nanoTime()} at the start of the write
+     */
+    public void latency(long startNanos) {
+        latency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void written(int count) {
+        written.increment(count);
+    }
+
+    public void failed(int count) {
+        failed.increment(count);
+    }
+
+    /**
+     * Remove the meters, called when the resource is removed or replaced.
+     */
+    public void remove() {
+        Metrics.globalRegistry.remove(written);
+        Metrics.globalRegistry.remove(failed);
+        Metrics.globalRegistry.remove(latency);
+    }
+}
@@ -23,14 +23,11 @@ import com.influxdb.client.domain.WritePrecision;
 import org.influxdb.BatchOptions;
 import org.influxdb.InfluxDB;
 import org.influxdb.InfluxDBFactory;
+import org.influxdb.dto.BatchPoints;
 import org.influxdb.dto.Point;
-import org.influxdb.dto.Query;
 import org.monkey.mmq.config.matedata.ResourcesMateData;
 import org.monkey.mmq.core.exception.MmqException;
 import org.monkey.mmq.core.utils.StringUtils;
-import org.springframework.expression.ExpressionParser;
-import org.springframework.expression.common.TemplateParserContext;
-import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.stereotype.Component;
 
 import java.util.Map;
@@ -48,8 +45,12 @@ public class InfluxDB1XDriver implements ResourceDriver<InfluxDB> {
     private ConcurrentHashMap<String, InfluxDB> dataSources = new ConcurrentHashMap<>();
     private static final String retentionPolicyName = "autogen";
 
+    private ConcurrentHashMap<String, BatchWriter<Point>> writers = new ConcurrentHashMap<>();
+
     @Override
     public void addDriver(String resourceId, Map resource) {
+        DriverFactory.removeTemplate(resourceId);
+        closeWriter(resourceId);
         InfluxDB client = dataSources.get(resourceId);
         if (client != null) {
             client.close();
@@ -69,19 +70,30 @@ public class InfluxDB1XDriver implements ResourceDriver<InfluxDB> {
                     resource.get(USERNAME).toString(),
                     resource.get(PASSWORD).toString());
             client.setDatabase(resource.get(DATABASE_NAME).toString());
-            if (resource.get(RETENTIOM_POLICY) != null && !StringUtils.isEmpty(resource.get(RETENTIOM_POLICY).toString())) {
-                client.setRetentionPolicy(resource.get(RETENTIOM_POLICY).toString());
+            String retentionPolicy = resource.get(RETENTIOM_POLICY) != null
+                    && !StringUtils.isEmpty(resource.get(RETENTIOM_POLICY).toString())
+                    ? resource.get(RETENTIOM_POLICY).toString() : retentionPolicyName;
+            client.setRetentionPolicy(retentionPolicy);
+            if (Boolean.parseBoolean(String.valueOf(resource.get(GZIP)))) {
+                client.enableGzip();
+            }
+            InfluxDB writeClient = client;
+            String database = resource.get(DATABASE_NAME).toString();
+            BatchWriter<Point> writer = BatchWriter.create(resourceId, "influxdb1x", resource,
+                    batch -> writeClient.write(BatchPoints.database(database).retentionPolicy(retentionPolicy)
+                            .points(batch).build()));
+            if (writer != null) {
+                writers.put(resourceId, writer);
             } else {
-                client.setRetentionPolicy(retentionPolicyName);
+                client.enableBatch(
+                        BatchOptions.DEFAULTS
+                                .threadFactory(runnable -> {
+                                    Thread thread = new Thread(runnable);
+                                    thread.setDaemon(true);
+                                    return thread;
+                                })
+                );
             }
-            client.enableBatch(
-                    BatchOptions.DEFAULTS
-                            .threadFactory(runnable -> {
-                                Thread thread = new Thread(runnable);
-                                thread.setDaemon(true);
-                                return thread;
-                            })
-            );
             dataSources.put(resourceId, client);
         } catch (Exception e) {
             return;
@@ -90,6 +102,8 @@ public class InfluxDB1XDriver implements ResourceDriver<InfluxDB> {
 
     @Override
     public void deleteDriver(String resourceId) {
+        DriverFactory.removeTemplate(resourceId);
+        closeWriter(resourceId);
         InfluxDB client = dataSources.get(resourceId);
         client.close();
         dataSources.remove(resourceId);
@@ -104,20 +118,26 @@ public class InfluxDB1XDriver implements ResourceDriver<InfluxDB> {
 
     @Override
     public boolean testConnect(ResourcesMateData resourcesMateData) {
-        try {
-            InfluxDB client =InfluxDBFactory.connect(String.format("http://%s:%s",
-                    resourcesMateData.getResource().get(IP).toString(),
-                    resourcesMateData.getResource().get(PORT).toString()),
-                    resourcesMateData.getResource().get(USERNAME).toString(),
-                    resourcesMateData.getResource().get(PASSWORD).toString());
-            client.query(new Query("CREATE DATABASE " + resourcesMateData.getResource().get(DATABASE_NAME).toString()));
-            client.setDatabase(resourcesMateData.getResource().get(DATABASE_NAME).toString());
-            return true;
+        try (InfluxDB client = InfluxDBFactory.connect(String.format("http://%s:%s",
+                resourcesMateData.getResource().get(IP).toString(),
+                resourcesMateData.getResource().get(PORT).toString()),
+                resourcesMateData.getResource().get(USERNAME).toString(),
+                resourcesMateData.getResource().get(PASSWORD).toString())) {
+            // 只检查服务是否可用, 不修改数据库
+            return client.ping().isGood();
         } catch (Exception e) {
             return false;
         }
     }
 
+    /**
+     * Only writes queued in a {@link BatchWriter} report their results, the batching of the client reports none.
+     */
+    @Override
+    public boolean isAsync(ResourcesMateData resourcesMateData) {
+        return writers.containsKey(resourcesMateData.getResourceID());
+    }
+
     @Override
     public void handle(Map property, ResourcesMateData resourcesMateData,
                        String topic, int qos, String address, String username) throws MmqException {
@@ -127,9 +147,7 @@ public class InfluxDB1XDriver implements ResourceDriver<InfluxDB> {
             if (client != null && resourcesMateData.getResource().get(SQL) != null) {
                 DriverFactory.setProperty(property, topic, username);
                 String payload = resourcesMateData.getResource().get(SQL).toString();
-                ExpressionParser parser = new SpelExpressionParser();
-                TemplateParserContext parserContext = new TemplateParserContext();
-                String content = parser.parseExpression(payload, parserContext).getValue(property, String.class);
+                String content = DriverFactory.getTemplate(resourcesMateData.getResourceID(), payload).getValue(property, String.class);
                 Map map = JSON.parseObject(content);
                 // Write points to InfluxDB.
                 Point.Builder builder = Point.measurement(map.get("measurement").toString())
@@ -140,10 +158,22 @@ public class InfluxDB1XDriver implements ResourceDriver<InfluxDB> {
                 for (Object tag : ((Map)map.get("fields")).entrySet()) {
                     builder.addField(((Map.Entry)tag).getKey().toString(), ((Map.Entry)tag).getValue().toString());
                 }
-                client.write(builder.build());
+                BatchWriter<Point> writer = writers.get(resourcesMateData.getResourceID());
+                if (writer != null) {
+                    writer.add(builder.build());
+                } else {
+                    client.write(builder.build());
+                }
             }
         } catch (Exception e) {
             throw new MmqException(e.hashCode(), e.getMessage());
         }
     }
+
+    private void closeWriter(String resourceId) {
+        BatchWriter<Point> writer = writers.remove(resourceId);
+        if (writer != null) {
+            writer.close();
+        }
+    }
 }
@@ -18,13 +18,11 @@ package org.monkey.mmq.config.driver;
 import com.influxdb.client.InfluxDBClient;
 import com.influxdb.client.InfluxDBClientFactory;
 import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.domain.HealthCheck;
 import com.influxdb.client.domain.WritePrecision;
 import org.monkey.mmq.config.matedata.ResourcesMateData;
 import org.monkey.mmq.core.exception.MmqException;
 import org.monkey.mmq.core.utils.StringUtils;
-import org.springframework.expression.ExpressionParser;
-import org.springframework.expression.common.TemplateParserContext;
-import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.stereotype.Component;
 
 import java.sql.Connection;
@@ -42,8 +40,12 @@ public class InfluxDBDriver implements ResourceDriver<InfluxDBClient> {
 
     private ConcurrentHashMap<String, InfluxDBClient> dataSources = new ConcurrentHashMap<>();
 
+    private ConcurrentHashMap<String, BatchWriter<String>> writers = new ConcurrentHashMap<>();
+
     @Override
     public void addDriver(String resourceId, Map resource) {
+        DriverFactory.removeTemplate(resourceId);
+        closeWriter(resourceId);
         InfluxDBClient client = dataSources.get(resourceId);
         if (client != null) {
             client.close();
@@ -59,7 +61,19 @@ public class InfluxDBDriver implements ResourceDriver<InfluxDBClient> {
                     resource.get(IP).toString(),
                     resource.get(PORT).toString()),
                     resource.get(TOKEN).toString().toCharArray());
+            if (Boolean.parseBoolean(String.valueOf(resource.get(GZIP)))) {
+                client.enableGzip();
+            }
             dataSources.put(resourceId, client);
+            InfluxDBClient writeClient = client;
+            String bucket = String.valueOf(resource.get(INFLUXDB_BUCKET));
+            String org = String.valueOf(resource.get(INFLUXDB_ORG));
+            // 按批写入行协议
+            BatchWriter<String> writer = BatchWriter.create(resourceId, "influxdb", resource,
+                    batch -> writeClient.getWriteApiBlocking().writeRecords(bucket, org, WritePrecision.NS, batch));
+            if (writer != null) {
+                writers.put(resourceId, writer);
+            }
         } catch (Exception e) {
             return;
         }
@@ -67,6 +81,8 @@ public class InfluxDBDriver implements ResourceDriver<InfluxDBClient> {
 
     @Override
     public void deleteDriver(String resourceId) {
+        DriverFactory.removeTemplate(resourceId);
+        closeWriter(resourceId);
         InfluxDBClient client = dataSources.get(resourceId);
         client.close();
         dataSources.remove(resourceId);
@@ -81,17 +97,22 @@ public class InfluxDBDriver implements ResourceDriver<InfluxDBClient> {
 
     @Override
     public boolean testConnect(ResourcesMateData resourcesMateData) {
-        try {
-            InfluxDBClientFactory.create(String.format("http://%s:%s",
-                    resourcesMateData.getResource().get(IP).toString(),
-                    resourcesMateData.getResource().get(PORT).toString()),
-                    resourcesMateData.getResource().get(TOKEN).toString().toCharArray());
-            return true;
+        try (InfluxDBClient client = InfluxDBClientFactory.create(String.format("http://%s:%s",
+                resourcesMateData.getResource().get(IP).toString(),
+                resourcesMateData.getResource().get(PORT).toString()),
+                resourcesMateData.getResource().get(TOKEN).toString().toCharArray())) {
+            // 创建客户端不连接服务, 检查健康状态
+            return client.health().getStatus() == HealthCheck.StatusEnum.PASS;
         } catch (Exception e) {
             return false;
         }
     }
 
+    @Override
+    public boolean isAsync(ResourcesMateData resourcesMateData) {
+        return writers.containsKey(resourcesMateData.getResourceID());
+    }
+
     @Override
     public void handle(Map property, ResourcesMateData resourcesMateData,
                        String topic, int qos, String address, String username) throws MmqException {
@@ -104,10 +125,13 @@ public class InfluxDBDriver implements ResourceDriver<InfluxDBClient> {
                 DriverFactory.setProperty(property, topic, username);
 
                 String sql = resourcesMateData.getResource().get("sql").toString();
-                ExpressionParser parser = new SpelExpressionParser();
-                TemplateParserContext parserContext = new TemplateParserContext();
-                String content = parser.parseExpression(sql, parserContext).getValue(property, String.class);
+                String content = DriverFactory.getTemplate(resourcesMateData.getResourceID(), sql).getValue(property, String.class);
 
+                BatchWriter<String> writer = writers.get(resourcesMateData.getResourceID());
+                if (writer != null) {
+                    writer.add(content);
+                    return;
+                }
                 WriteApiBlocking writeApi = client.getWriteApiBlocking();
                 writeApi.writeRecord(resourcesMateData.getResource().get(INFLUXDB_BUCKET).toString(),
                         resourcesMateData.getResource().get(INFLUXDB_ORG).toString(), WritePrecision.NS, content);
@@ -116,4 +140,11 @@ public class InfluxDBDriver implements ResourceDriver<InfluxDBClient> {
             throw new MmqException(e.hashCode(), e.getMessage());
         }
     }
+
+    private void closeWriter(String resourceId) {
+        BatchWriter<String> writer = writers.remove(resourceId);
+        if (writer != null) {
+            writer.close();
+        }
+    }
 }
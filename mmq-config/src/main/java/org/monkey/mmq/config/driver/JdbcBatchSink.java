@@ -0,0 +1,336 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.driver;
+
+import net.sf.jsqlparser.JSQLParserException;
+import net.sf.jsqlparser.expression.ExpressionVisitorAdapter;
+import net.sf.jsqlparser.expression.JdbcParameter;
+import net.sf.jsqlparser.expression.NotExpression;
+import net.sf.jsqlparser.expression.Parenthesis;
+import net.sf.jsqlparser.expression.operators.conditional.AndExpression;
+import net.sf.jsqlparser.expression.operators.conditional.OrExpression;
+import net.sf.jsqlparser.expression.operators.relational.ExpressionList;
+import net.sf.jsqlparser.expression.operators.relational.ItemsList;
+import net.sf.jsqlparser.expression.operators.relational.MultiExpressionList;
+import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import net.sf.jsqlparser.statement.Statement;
+import net.sf.jsqlparser.statement.delete.Delete;
+import net.sf.jsqlparser.statement.insert.Insert;
+import net.sf.jsqlparser.statement.update.Update;
+import org.monkey.mmq.config.config.Loggers;
+import org.monkey.mmq.core.exception.MmqException;
+import org.springframework.expression.Expression;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.monkey.mmq.config.config.Constants.*;
+import static org.monkey.mmq.config.driver.BatchWriter.intValue;
+
+/**
+ * Batching sink of a jdbc resource. The sql template is turned once into a prepared statement, the rows are
+ * queued in a {@link BatchWriter} and written by {@code executeBatch} in one transaction per batch. Templates with
+ * placeholders that are not values, see {@link #bindsValuesOnly}, are not batched.
+ *
+ * @author solley
+ */
+public class JdbcBatchSink {
+
+    private static final String TEMPLATE_PREFIX = "#{";
+
+    private static final char TEMPLATE_SUFFIX = '}';
+
+    private static final char QUOTE = '\'';
+
+    protected final String resourceId;
+
+    protected final DataSource dataSource;
+
+    protected final String sql;
+
+    private final List<Expression> parameters;
+
+    private final boolean[] quoted;
+
+    private final BatchWriter<Object[]> writer;
+
+    protected JdbcBatchSink(String resourceId, DataSource dataSource, String sql, List<Expression> parameters,
+                            boolean[] quoted, String type, Map<String, Object> resource, int defaultBatchSize) {
+        this.resourceId = resourceId;
+        this.dataSource = dataSource;
+        this.sql = sql;
+        this.parameters = parameters;
+        this.quoted = quoted;
+        int batchSize = intValue(resource.get(BATCH_SIZE), defaultBatchSize);
+        this.writer = new BatchWriter<>(resourceId, type, this::write, batchSize,
+                intValue(resource.get(LINGER_MS), BatchWriter.DEFAULT_LINGER_MS),
+                intValue(resource.get(BUFFER_SIZE), batchSize * 10),
+                intValue(resource.get(MAX_RETRIES), BatchWriter.DEFAULT_MAX_RETRIES));
+    }
+
+    /**
+     * Create the batching sink of a resource.
+     *
+     * @param resourceId resource id
+     * @param resource   resource config
+     * @param dataSource pooled data source of the resource
+     * @return sink, null if batching is not enabled or the sql template can not be turned into a prepared statement
+     */
+    public static JdbcBatchSink create(String resourceId, Map<String, Object> resource, DataSource dataSource) {
+        int batchSize = intValue(resource.get(BATCH_SIZE), 0);
+        if (batchSize <= 1 || resource.get(SQL) == null) {
+            return null;
+        }
+        String template = resource.get(SQL).toString();
+        List<Expression> parameters = new ArrayList<>();
+        List<Boolean> quoted = new ArrayList<>();
+        String sql = prepare(template, parameters, quoted);
+        if (sql == null || !bindsValuesOnly(sql, parameters.size())) {
+            Loggers.CONFIG_SERVER.warn("sql template of resource {} can not be prepared, batching is disabled: {}",
+                    resourceId, template);
+            return null;
+        }
+        return new JdbcBatchSink(resourceId, dataSource, sql, parameters, toArray(quoted), "jdbc", resource, batchSize);
+    }
+
+    /**
+     * Buffer a row rendered from the property map.
+     *
+     * @param property rule output with the driver properties
+     * @throws MmqException if the buffer stays full
+     */
+    public void add(Map property) throws MmqException {
+        Object[] row = new Object[parameters.size()];
+        for (int i = 0; i < row.length; i++) {
+            Object value = parameters.get(i).getValue(property);
+            row[i] = quoted[i] && value != null ? String.valueOf(value) : value;
+        }
+        writer.add(row);
+    }
+
+    /**
+     * Write the queued rows and stop the writer.
+     */
+    public void close() {
+        writer.close();
+    }
+
+    /**
+     * Write one batch of rows.
+     *
+     * @param rows rows of parameter values
+     * @throws Exception if the batch is not written, it is retried
+     */
+    protected void write(List<Object[]> rows) throws Exception {
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                for (Object[] row : rows) {
+                    for (int i = 0; i < row.length; i++) {
+                        statement.setObject(i + 1, row[i]);
+                    }
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * Replace the {@code #{...}} placeholders of a sql template with {@code ?}. A placeholder wrapped in quotes
+     * becomes a string parameter.
+     *
+     * @return prepared sql, null if a placeholder is only part of a sql string literal
+     */
+    static String prepare(String template, List<Expression> parameters, List<Boolean> quoted) {
+        StringBuilder sql = new StringBuilder(template.length());
+        boolean inLiteral = false;
+        // 当前字符串字面量开头引号的位置, -1表示由''转义延续的字面量
+        int literalStart = -1;
+        int literalEnd = -1;
+        int i = 0;
+        while (i < template.length()) {
+            if (!template.startsWith(TEMPLATE_PREFIX, i)) {
+                char c = template.charAt(i++);
+                if (c == QUOTE) {
+                    if (inLiteral) {
+                        literalEnd = sql.length();
+                    } else {
+                        literalStart = literalEnd == sql.length() - 1 ? -1 : sql.length();
+                    }
+                    inLiteral = !inLiteral;
+                }
+                sql.append(c);
+                continue;
+            }
+            int end = placeholderEnd(template, i + TEMPLATE_PREFIX.length());
+            if (end < 0) {
+                return null;
+            }
+            boolean wrapped = inLiteral && literalStart >= 0 && literalStart == sql.length() - 1
+                    && end + 1 < template.length() && template.charAt(end + 1) == QUOTE
+                    && (end + 2 >= template.length() || template.charAt(end + 2) != QUOTE);
+            if (inLiteral && !wrapped) {
+                return null;
+            }
+            parameters.add(DriverFactory.parse(template.substring(i + TEMPLATE_PREFIX.length(), end)));
+            quoted.add(wrapped);
+            if (wrapped) {
+                sql.setLength(sql.length() - 1);
+                inLiteral = false;
+                literalEnd = -1;
+                end++;
+            }
+            sql.append('?');
+            i = end + 1;
+        }
+        return inLiteral ? null : sql.toString();
+    }
+
+    /**
+     * Whether every {@code ?} of a prepared insert, update or delete binds a value. A placeholder rendering a
+     * table or column name, a LIMIT or a condition fragment such as {@code where #{filter}} can not be bound,
+     * the template is rendered per message then.
+     *
+     * @param sql   prepared sql
+     * @param count number of placeholders
+     * @return false if the sql can not be parsed or a placeholder is not a value
+     */
+    static boolean bindsValuesOnly(String sql, int count) {
+        Statement statement;
+        try {
+            statement = CCJSqlParserUtil.parse(sql);
+        } catch (JSQLParserException e) {
+            return false;
+        }
+        ValueVisitor visitor = new ValueVisitor();
+        if (statement instanceof Insert) {
+            Insert insert = (Insert) statement;
+            ItemsList items = insert.getItemsList();
+            if (items instanceof ExpressionList) {
+                visitor.values(((ExpressionList) items).getExpressions());
+            } else if (items instanceof MultiExpressionList) {
+                for (ExpressionList each : ((MultiExpressionList) items).getExprList()) {
+                    visitor.values(each.getExpressions());
+                }
+            }
+            visitor.values(insert.getSetExpressionList());
+            visitor.values(insert.getDuplicateUpdateExpressionList());
+        } else if (statement instanceof Update) {
+            visitor.values(((Update) statement).getExpressions());
+            visitor.condition(((Update) statement).getWhere());
+        } else if (statement instanceof Delete) {
+            visitor.condition(((Delete) statement).getWhere());
+        } else {
+            return false;
+        }
+        // 未访问到的占位符位于LIMIT, ORDER BY或子查询等位置
+        return !visitor.fragment && visitor.count == count;
+    }
+
+    /**
+     * Counts the parameters in value positions, a parameter standing for a whole condition is a fragment.
+     */
+    private static final class ValueVisitor extends ExpressionVisitorAdapter {
+
+        private int count;
+
+        private boolean fragment;
+
+        void values(List<net.sf.jsqlparser.expression.Expression> expressions) {
+            if (expressions != null) {
+                expressions.forEach(each -> each.accept(this));
+            }
+        }
+
+        void condition(net.sf.jsqlparser.expression.Expression expression) {
+            if (expression != null) {
+                checkCondition(expression);
+                expression.accept(this);
+            }
+        }
+
+        private void checkCondition(net.sf.jsqlparser.expression.Expression expression) {
+            while (expression instanceof Parenthesis) {
+                expression = ((Parenthesis) expression).getExpression();
+            }
+            if (expression instanceof JdbcParameter) {
+                fragment = true;
+            }
+        }
+
+        @Override
+        public void visit(JdbcParameter parameter) {
+            count++;
+        }
+
+        @Override
+        public void visit(AndExpression expression) {
+            checkCondition(expression.getLeftExpression());
+            checkCondition(expression.getRightExpression());
+            super.visit(expression);
+        }
+
+        @Override
+        public void visit(OrExpression expression) {
+            checkCondition(expression.getLeftExpression());
+            checkCondition(expression.getRightExpression());
+            super.visit(expression);
+        }
+
+        @Override
+        public void visit(NotExpression expression) {
+            checkCondition(expression.getExpression());
+            super.visit(expression);
+        }
+    }
+
+    private static int placeholderEnd(String template, int from) {
+        int depth = 0;
+        for (int i = from; i < template.length(); i++) {
+            char c = template.charAt(i);
+            if (c == '{') {
+                depth++;
+            } else if (c == TEMPLATE_SUFFIX) {
+                if (depth == 0) {
+                    return i;
+                }
+                depth--;
+            }
+        }
+        return -1;
+    }
+
+    static boolean[] toArray(List<Boolean> values) {
+        boolean[] array = new boolean[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+}
@@ -19,13 +19,19 @@ import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.common.serialization.StringSerializer;
+import org.monkey.mmq.config.actor.DriverBreaker;
+import org.monkey.mmq.config.config.Loggers;
+import org.monkey.mmq.config.matedata.DriverMessage;
 import org.monkey.mmq.config.matedata.ResourcesMateData;
+import org.monkey.mmq.core.entity.InternalMessage;
 import org.monkey.mmq.core.exception.MmqException;
 import org.monkey.mmq.core.utils.JacksonUtils;
 import org.monkey.mmq.core.utils.StringUtils;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -33,73 +39,168 @@ import java.util.concurrent.ConcurrentHashMap;
 import static org.monkey.mmq.config.config.Constants.*;
 
 /**
+ * Sends rule outputs to a Kafka topic. The value is the json envelope of the output, or the raw MQTT payload if
+ * {@code valueFormat} is {@code raw}. The record key is the clientId or the MQTT topic if {@code recordKey} is set,
+ * and the producer is tuned by the {@code linger.ms}, {@code batch.size}, {@code compression.type} and {@code acks}
+ * fields of the resource.
+ *
  * @author solley
  */
 @Component
-public class KafkaDriver implements ResourceDriver<Producer<String, String>> {
-    private ConcurrentHashMap<String, Producer<String, String>> producers = new ConcurrentHashMap<>();
+public class KafkaDriver implements ResourceDriver<Producer<String, byte[]>> {
+
+    private static final String RAW = "raw";
+
+    private static final String KEY_CLIENT_ID = "clientId";
+
+    private static final String KEY_TOPIC = "topic";
+
+    private static final int TEST_TIMEOUT_MS = 5000;
+
+    private static final String[] PRODUCER_CONFIGS = {ProducerConfig.LINGER_MS_CONFIG, ProducerConfig.BATCH_SIZE_CONFIG,
+            ProducerConfig.COMPRESSION_TYPE_CONFIG, ProducerConfig.ACKS_CONFIG};
+
+    private ConcurrentHashMap<String, Producer<String, byte[]>> producers = new ConcurrentHashMap<>();
+
+    private ConcurrentHashMap<String, DriverMetrics> metrics = new ConcurrentHashMap<>();
 
     @Override
     public void addDriver(String resourceId, Map resource) {
-        Producer<String, String> producer = producers.get(resourceId);
+        Producer<String, byte[]> producer = producers.get(resourceId);
         if (producer != null) {
             producer.close();
             producers.remove(resourceId);
         }
+        DriverMetrics driverMetrics = metrics.remove(resourceId);
+        if (driverMetrics != null) {
+            driverMetrics.remove();
+        }
 
         if (StringUtils.isEmpty(resource.get(SERVER).toString())) return;
 
         Properties prop = new Properties();
         prop.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, resource.get(SERVER));
         prop.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
-        prop.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        prop.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        for (String config : PRODUCER_CONFIGS) {
+            Object value = resource.get(config);
+            if (value != null && StringUtils.isNotEmpty(value.toString())) {
+                prop.put(config, value.toString());
+            }
+        }
         try {
-            KafkaProducer<String, String> consumer = new KafkaProducer<>(prop);
+            producers.put(resourceId, new KafkaProducer<>(prop));
         } catch (Exception e) {
             return;
         }
-        producers.put(resourceId, new KafkaProducer<>(prop));
+        metrics.put(resourceId, new DriverMetrics(resourceId, "kafka", "send_latency"));
     }
 
     @Override
     public void deleteDriver(String resourceId) {
-        Producer<String, String> producer = producers.get(resourceId);
+        Producer<String, byte[]> producer = producers.get(resourceId);
         producer.close();
         producers.remove(resourceId);
+        DriverMetrics driverMetrics = metrics.remove(resourceId);
+        if (driverMetrics != null) {
+            driverMetrics.remove();
+        }
     }
 
     @Override
-    public Producer<String, String> getDriver(String resourceId) throws Exception {
+    public Producer<String, byte[]> getDriver(String resourceId) throws Exception {
         return producers.get(resourceId);
     }
 
     @Override
     public boolean testConnect(ResourcesMateData resourcesMateData) {
+        Properties prop = new Properties();
+        prop.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, resourcesMateData.getResource().get(SERVER));
+        prop.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        prop.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class.getName());
+        prop.put(ProducerConfig.MAX_BLOCK_MS_CONFIG, TEST_TIMEOUT_MS);
+        KafkaProducer<String, byte[]> producer = null;
         try {
-            Properties prop = new Properties();
-            prop.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, resourcesMateData.getResource().get(SERVER));
-            prop.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
-            prop.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
-            KafkaProducer<String, String> consumer = new KafkaProducer<>(prop);
-            return true;
+            producer = new KafkaProducer<>(prop);
+            // 创建生产者不连接服务, 读取主题的分区信息确认服务可用
+            return !producer.partitionsFor(resourcesMateData.getResource().get("topic").toString()).isEmpty();
         } catch (Exception e) {
             return false;
+        } finally {
+            if (producer != null) {
+                producer.close(Duration.ofMillis(TEST_TIMEOUT_MS));
+            }
         }
     }
 
+    /**
+     * Records are sent asynchronously, the send callback reports the result to the breaker.
+     */
+    @Override
+    public boolean isAsync(ResourcesMateData resourcesMateData) {
+        return true;
+    }
+
+    @Override
+    public void handle(DriverMessage driverMessage) throws MmqException {
+        if (driverMessage.getRuleEngineMessage() == null) {
+            ResourceDriver.super.handle(driverMessage);
+            return;
+        }
+        InternalMessage message = driverMessage.getRuleEngineMessage().getMessage();
+        Map<String, Object> resource = driverMessage.getResourcesMateData().getResource();
+        byte[] value = null;
+        if (RAW.equals(resource.get(VALUE_FORMAT))) {
+            value = message.getMessageBytes().toByteArray();
+        }
+        String key = null;
+        if (KEY_CLIENT_ID.equals(resource.get(RECORD_KEY))) {
+            key = message.getClientId();
+        } else if (KEY_TOPIC.equals(resource.get(RECORD_KEY))) {
+            key = message.getTopic();
+        }
+        send(driverMessage.getResourcesMateData(), key, value != null ? value : envelope(driverMessage.getProperty(),
+                message.getTopic(), message.getMqttQoS(), message.getAddress()));
+    }
+
     @Override
     public void handle(Map property, ResourcesMateData resourcesMateData,
                        String topic, int qos, String address, String username) throws MmqException {
+        send(resourcesMateData, null, envelope(property, topic, qos, address));
+    }
+
+    private void send(ResourcesMateData resourcesMateData, String key, byte[] value) throws MmqException {
         try {
-            Producer<String, String> producer = this.getDriver(resourcesMateData.getResourceID());
-            Map<String, Object> payload = new HashMap<>();
-            payload.put("topic", topic);
-            payload.put("payload", property);
-            payload.put("address", address);
-            payload.put("qos", qos);
-            producer.send(new ProducerRecord<>(resourcesMateData.getResource().get("topic").toString(), JacksonUtils.toJson(payload)));
+            Producer<String, byte[]> producer = this.getDriver(resourcesMateData.getResourceID());
+            DriverMetrics driverMetrics = metrics.get(resourcesMateData.getResourceID());
+            long start = System.nanoTime();
+            producer.send(new ProducerRecord<>(resourcesMateData.getResource().get("topic").toString(), key, value),
+                    (metadata, exception) -> {
+                        DriverBreaker.completed(resourcesMateData.getResourceID(), start, exception);
+                        if (driverMetrics != null) {
+                            driverMetrics.latency(start);
+                            if (exception == null) {
+                                driverMetrics.written(1);
+                            } else {
+                                driverMetrics.failed(1);
+                            }
+                        }
+                        if (exception != null) {
+                            Loggers.CONFIG_SERVER.error("send to kafka resource {} failed.",
+                                    resourcesMateData.getResourceID(), exception);
+                        }
+                    });
         } catch (Exception e) {
             throw new MmqException(e.hashCode(), e.getMessage());
         }
     }
+
+    private static byte[] envelope(Map property, String topic, int qos, String address) {
+        Map<String, Object> payload = new HashMap<>(8);
+        payload.put("topic", topic);
+        payload.put("payload", property);
+        payload.put("address", address);
+        payload.put("qos", qos);
+        return JacksonUtils.toJsonBytes(payload);
+    }
 }
@@ -5,12 +5,13 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openssl.PEMReader;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.monkey.mmq.config.actor.DriverBreaker;
+import org.monkey.mmq.config.config.Loggers;
 import org.monkey.mmq.config.matedata.ResourcesMateData;
 import org.monkey.mmq.core.exception.MmqException;
+import org.monkey.mmq.core.executor.ExecutorFactory;
+import org.monkey.mmq.core.executor.NameThreadFactory;
 import org.monkey.mmq.core.utils.StringUtils;
-import org.springframework.expression.ExpressionParser;
-import org.springframework.expression.common.TemplateParserContext;
-import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.stereotype.Component;
 
 import javax.net.ssl.SSLContext;
@@ -18,6 +19,7 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 import java.io.ByteArrayInputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.KeyStore;
@@ -27,7 +29,11 @@ import java.security.cert.X509Certificate;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 import static org.monkey.mmq.config.config.Constants.*;
+import static org.monkey.mmq.config.driver.BatchWriter.intValue;
 
 /**
  * @ClassNameMQTTDriver
@@ -37,9 +43,28 @@ import static org.monkey.mmq.config.config.Constants.*;
  * @Version V1.0
  **/
 @Component
-public class MQTTDriver implements ResourceDriver<MqttClient> {
+public class MQTTDriver implements ResourceDriver<MqttAsyncClient> {
+
+    /**
+     * 默认的在途消息窗口
+     */
+    private static final int DEFAULT_MAX_INFLIGHT = 1000;
+
+    /**
+     * 默认的断线缓冲消息数
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 10000;
+
+    private static final long RECONNECT_MIN_DELAY_MS = 1000L;
+
+    private static final long RECONNECT_MAX_DELAY_MS = 120000L;
+
+    private static final ScheduledExecutorService CONNECTOR = ExecutorFactory.newScheduledExecutorService(1,
+            new NameThreadFactory("org.monkey.mmq.config.driver.mqtt-connector"));
+
+    private ConcurrentHashMap<String, MqttAsyncClient> mqttClientConcurrentHashMap = new ConcurrentHashMap<>();
 
-    private ConcurrentHashMap<String, MqttClient> mqttClientConcurrentHashMap = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, DriverMetrics> metrics = new ConcurrentHashMap<>();
     /**
      * 设置超时时间
      */
@@ -51,17 +76,14 @@ public class MQTTDriver implements ResourceDriver<MqttClient> {
 
     @Override
     public void addDriver(String resourceId, Map<String, Object> resource) {
+        DriverFactory.removeTemplate(resourceId);
         try {
-            MqttClient mqttClient = mqttClientConcurrentHashMap.get(resourceId);
-            if (mqttClient != null) {
-                mqttClient.close();
-                mqttClientConcurrentHashMap.remove(resourceId);
-            }
+            closeClient(resourceId);
 
             if (StringUtils.isEmpty(resource.get("server").toString())) return;
             if (StringUtils.isEmpty(resource.get("username").toString())) return;
             if (StringUtils.isEmpty(resource.get("password").toString())) return;
-            mqttClient = new MqttClient(resource.get("server").toString(), UUID.randomUUID().toString(), new MemoryPersistence());
+            MqttAsyncClient mqttClient = new MqttAsyncClient(resource.get("server").toString(), UUID.randomUUID().toString(), new MemoryPersistence());
             MqttConnectOptions options = new MqttConnectOptions();
             // 如果想要断线这段时间的数据，要设置成false，并且重连后不用再次订阅，否则不会得到断线时间的数据
             options.setCleanSession(true);
@@ -73,6 +95,10 @@ public class MQTTDriver implements ResourceDriver<MqttClient> {
             options.setConnectionTimeout(connectionTimeout);
             // 设置会话心跳时间 单位为秒 服务器会每隔1.5*20秒的时间向客户端发送个消息判断客户端是否在线，但这个方法并没有重连的机制
             options.setKeepAliveInterval(keepAliveInterval);
+            // 在途消息窗口, 满了之后发布方等待确认
+            options.setMaxInflight(intValue(resource.get(MAX_INFLIGHT), DEFAULT_MAX_INFLIGHT));
+            // 断线后由客户端在后台按退避间隔重连
+            options.setAutomaticReconnect(true);
             // 判断是否启用SSL
             if (resource.get("sslEnable") != null) {
                 boolean sslEnable = Boolean.parseBoolean(resource.get("sslEnable").toString());
@@ -80,64 +106,92 @@ public class MQTTDriver implements ResourceDriver<MqttClient> {
                     options.setSocketFactory(getSocketFactorySingle(new InputStreamReader(this.getClass().getClassLoader().getResourceAsStream("cert/mmq.cer")),""));
                 }
             }
-            // 连接服务器
-            mqttClient.connect(options);
+            // 重连期间的消息缓存在本地, 缓冲满了发布失败, 不丢弃已缓存的消息
+            DisconnectedBufferOptions bufferOptions = new DisconnectedBufferOptions();
+            bufferOptions.setBufferEnabled(true);
+            bufferOptions.setBufferSize(intValue(resource.get(BUFFER_SIZE), DEFAULT_BUFFER_SIZE));
+            bufferOptions.setPersistBuffer(false);
+            bufferOptions.setDeleteOldestMessages(false);
+            mqttClient.setBufferOpts(bufferOptions);
             mqttClientConcurrentHashMap.put(resourceId, mqttClient);
-        } catch (MqttException e) {
-            return;
+            metrics.put(resourceId, new DriverMetrics(resourceId, "mqtt", "publish_latency"));
+            // 连接服务器
+            connect(resourceId, mqttClient, options, RECONNECT_MIN_DELAY_MS);
         } catch (Exception exception) {
-            return;
+            Loggers.CONFIG_SERVER.error("create mqtt bridge of resource {} failed.", resourceId, exception);
         }
     }
 
+    /**
+     * Connect without blocking the caller. The automatic reconnect of the client only starts after a first
+     * successful connect, so a failed first connect is retried here with a doubling delay.
+     */
+    private void connect(String resourceId, MqttAsyncClient mqttClient, MqttConnectOptions options, long delayMs) {
+        try {
+            mqttClient.connect(options, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    Loggers.CONFIG_SERVER.info("mqtt bridge of resource {} connected to {}.", resourceId, mqttClient.getServerURI());
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    Loggers.CONFIG_SERVER.warn("mqtt bridge of resource {} failed to connect, retry in {} ms.",
+                            resourceId, delayMs, exception);
+                    scheduleConnect(resourceId, mqttClient, options, delayMs);
+                }
+            });
+        } catch (MqttException e) {
+            Loggers.CONFIG_SERVER.warn("mqtt bridge of resource {} failed to connect, retry in {} ms.", resourceId, delayMs, e);
+            scheduleConnect(resourceId, mqttClient, options, delayMs);
+        }
+    }
+
+    private void scheduleConnect(String resourceId, MqttAsyncClient mqttClient, MqttConnectOptions options, long delayMs) {
+        CONNECTOR.schedule(() -> {
+            // 资源已删除或替换
+            if (mqttClientConcurrentHashMap.get(resourceId) != mqttClient || mqttClient.isConnected()) {
+                return;
+            }
+            connect(resourceId, mqttClient, options, Math.min(delayMs * 2, RECONNECT_MAX_DELAY_MS));
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
     @Override
     public void deleteDriver(String resourceId) {
-        MqttClient mqttClient = mqttClientConcurrentHashMap.get(resourceId);
+        DriverFactory.removeTemplate(resourceId);
+        closeClient(resourceId);
+    }
+
+    private void closeClient(String resourceId) {
+        DriverMetrics driverMetrics = metrics.remove(resourceId);
+        if (driverMetrics != null) {
+            driverMetrics.remove();
+        }
+        MqttAsyncClient mqttClient = mqttClientConcurrentHashMap.remove(resourceId);
         if (mqttClient != null) {
             try {
+                if (mqttClient.isConnected()) {
+                    mqttClient.disconnectForcibly(1000L);
+                }
                 mqttClient.close();
             } catch (MqttException e) {
-                e.printStackTrace();
+                Loggers.CONFIG_SERVER.warn("close mqtt bridge of resource {} failed.", resourceId, e);
             }
         }
-        mqttClientConcurrentHashMap.remove(resourceId);
     }
 
     @Override
-    public MqttClient getDriver(String resourceId) throws Exception {
-        if (mqttClientConcurrentHashMap == null) return null;
-        if (mqttClientConcurrentHashMap.get(resourceId) == null) return null;
-        if (!mqttClientConcurrentHashMap.get(resourceId).isConnected()) {
-            mqttClientConcurrentHashMap.get(resourceId).reconnect();
-        }
+    public MqttAsyncClient getDriver(String resourceId) throws Exception {
         return mqttClientConcurrentHashMap.get(resourceId);
     }
 
     @Override
     public boolean testConnect(ResourcesMateData resourcesMateData) {
+        MqttClient mqttClient = null;
         try {
-            MqttClient mqttClient = new MqttClient(resourcesMateData.getResource().get("server").toString(), UUID.randomUUID().toString(), new MemoryPersistence());
+            mqttClient = new MqttClient(resourcesMateData.getResource().get("server").toString(), UUID.randomUUID().toString(), new MemoryPersistence());
             MqttConnectOptions options = new MqttConnectOptions();
-            mqttClient.setCallback(new MqttCallback() {
-
-                @Override
-                public void connectionLost(Throwable cause) {
-                    try {
-                        mqttClient.reconnect();
-                    } catch (MqttException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                @Override
-                public void messageArrived(String topic, MqttMessage message) throws MqttException {
-
-                }
-
-                @Override
-                public void deliveryComplete(IMqttDeliveryToken token){
-                }
-            });
             // 如果想要断线这段时间的数据，要设置成false，并且重连后不用再次订阅，否则不会得到断线时间的数据
             options.setCleanSession(true);
             // 设置连接的用户名
@@ -155,39 +209,107 @@ public class MQTTDriver implements ResourceDriver<MqttClient> {
                     options.setSocketFactory(getSocketFactorySingle(new InputStreamReader(this.getClass().getClassLoader().getResourceAsStream("cert/mmq.cer")),""));
                 }
             }
-            // 连接服务器
+            // 连接服务器, 只检查是否可以连接, 随后断开
             mqttClient.connect(options);
-
             return true;
         } catch (Exception e) {
             return false;
+        } finally {
+            if (mqttClient != null) {
+                try {
+                    if (mqttClient.isConnected()) {
+                        mqttClient.disconnectForcibly(1000L);
+                    }
+                    mqttClient.close();
+                } catch (MqttException e) {
+                    Loggers.CONFIG_SERVER.debug("close test client of resource {} failed.", resourcesMateData.getResourceID(), e);
+                }
+            }
         }
     }
 
+    /**
+     * Messages are published without waiting for the ack, the action listener reports the result to the breaker.
+     */
+    @Override
+    public boolean isAsync(ResourcesMateData resourcesMateData) {
+        return true;
+    }
+
     @Override
     public void handle(Map property, ResourcesMateData resourcesMateData,
                        String topic, int qos, String address, String username) throws MmqException {
+        String resourceId = resourcesMateData.getResourceID();
+        MqttAsyncClient mqttClient = mqttClientConcurrentHashMap.get(resourceId);
+        if (mqttClient == null) {
+            throw new MmqException(MmqException.SERVER_ERROR, "mqtt bridge of resource " + resourceId + " is not created");
+        }
+        String content;
+        if (resourcesMateData.getResource().get(PAYLOAD) != null
+                && resourcesMateData.getResource().get(PAYLOAD) != "") {
+            DriverFactory.setProperty(property, topic, username);
+            String template = resourcesMateData.getResource().get(PAYLOAD).toString();
+            content = DriverFactory.getTemplate(resourceId, template).getValue(property, String.class);
+        } else {
+            content = JSON.toJSONString(property);
+        }
+        // 聚合输出没有来源主题, 发布到topicPrefix
+        String target = rewriteTopic(topic == null ? "" : topic, resourcesMateData.getResource());
+        if (target.isEmpty()) {
+            throw new MmqException(MmqException.INVALID_PARAM, "rule output has no source topic, set the topicPrefix of resource " + resourceId);
+        }
+        publish(resourceId, mqttClient, target, content.getBytes(StandardCharsets.UTF_8), qos);
+    }
+
+    /**
+     * Publish without waiting for the remote ack, the ack is counted by the listener. A message published while
+     * the client reconnects goes to the disconnected buffer. A full in-flight window or buffer fails the message
+     * at once with {@link MmqException#OVER_THRESHOLD}, the breaker and the mailbox of the resource apply the
+     * backpressure instead of the dispatching thread.
+     */
+    private void publish(String resourceId, MqttAsyncClient mqttClient, String topic, byte[] payload, int qos) throws MmqException {
+        DriverMetrics driverMetrics = metrics.get(resourceId);
+        long start = System.nanoTime();
         try {
-            MqttClient mqttClient = this.getDriver(resourcesMateData.getResourceID());
-            if (mqttClient.isConnected()) {
-                String content = JSON.toJSONString(property);
-                if (resourcesMateData.getResource().get(PAYLOAD) != null
-                        && resourcesMateData.getResource().get(PAYLOAD) != "") {
-                    DriverFactory.setProperty(property, topic, username);
-                    String template = resourcesMateData.getResource().get(PAYLOAD).toString();
-                    ExpressionParser parser = new SpelExpressionParser();
-                    TemplateParserContext parserContext = new TemplateParserContext();
-                    content = parser.parseExpression(template, parserContext).getValue(property, String.class);
+            mqttClient.publish(topic, payload, qos, false, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    DriverBreaker.completed(resourceId, start, null);
+                    if (driverMetrics != null) {
+                        driverMetrics.latency(start);
+                        driverMetrics.written(1);
+                    }
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    DriverBreaker.completed(resourceId, start, exception);
+                    if (driverMetrics != null) {
+                        driverMetrics.failed(1);
+                    }
+                    Loggers.CONFIG_SERVER.warn("publish to {} of resource {} failed.", topic, resourceId, exception);
                 }
-                mqttClient.publish(topic,
-                        content.getBytes(),
-                        qos, false);
-            } else {
-                mqttClient.reconnect();
+            });
+        } catch (MqttException e) {
+            if (driverMetrics != null) {
+                driverMetrics.failed(1);
             }
-        } catch (Exception e) {
-            throw new MmqException(e.hashCode(), e.getMessage());
+            throw new MmqException(e.getReasonCode() == MqttException.REASON_CODE_MAX_INFLIGHT
+                    || e.getReasonCode() == MqttException.REASON_CODE_DISCONNECTED_BUFFER_FULL
+                    ? MmqException.OVER_THRESHOLD : MmqException.SERVER_ERROR, e);
+        }
+    }
+
+    private static String rewriteTopic(String topic, Map<String, Object> resource) {
+        Object strip = resource.get(STRIP_TOPIC_PREFIX);
+        if (strip != null && !strip.toString().isEmpty() && topic.startsWith(strip.toString())) {
+            topic = topic.substring(strip.toString().length());
+        }
+        Object prefix = resource.get(TOPIC_PREFIX);
+        if (prefix != null && !prefix.toString().isEmpty()) {
+            topic = prefix + topic;
         }
+        return topic;
     }
 
     public static SSLSocketFactory getSocketFactorySingle(final InputStreamReader caCertStr, String protocol) throws Exception {
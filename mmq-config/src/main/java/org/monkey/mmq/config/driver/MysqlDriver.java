@@ -19,9 +19,6 @@ import com.alibaba.druid.pool.DruidDataSource;
 import org.monkey.mmq.config.matedata.ResourcesMateData;
 import org.monkey.mmq.core.exception.MmqException;
 import org.monkey.mmq.core.utils.StringUtils;
-import org.springframework.expression.ExpressionParser;
-import org.springframework.expression.common.TemplateParserContext;
-import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.stereotype.Component;
 
 import java.sql.Connection;
@@ -39,10 +36,14 @@ public class MysqlDriver implements ResourceDriver<Connection> {
 
     private ConcurrentHashMap<String, DruidDataSource> dataSources = new ConcurrentHashMap<>();
 
+    private ConcurrentHashMap<String, JdbcBatchSink> batchSinks = new ConcurrentHashMap<>();
+
     static final String JDBC_DRIVER = "com.mysql.cj.jdbc.Driver";
 
     @Override
     public void addDriver(String resourceId, Map<String, Object> resource) {
+        DriverFactory.removeTemplate(resourceId);
+        closeBatchSink(resourceId);
         DruidDataSource druidDataSource = dataSources.get(resourceId);
         if (druidDataSource != null) {
             druidDataSource.close();
@@ -71,10 +72,16 @@ public class MysqlDriver implements ResourceDriver<Connection> {
             return;
         }
         dataSources.put(resourceId, dataSource);
+        JdbcBatchSink batchSink = JdbcBatchSink.create(resourceId, resource, dataSource);
+        if (batchSink != null) {
+            batchSinks.put(resourceId, batchSink);
+        }
     }
 
     @Override
     public void deleteDriver(String resourceId) {
+        DriverFactory.removeTemplate(resourceId);
+        closeBatchSink(resourceId);
         DruidDataSource druidDataSource = dataSources.get(resourceId);
         druidDataSource.close();
         dataSources.remove(resourceId);
@@ -92,31 +99,41 @@ public class MysqlDriver implements ResourceDriver<Connection> {
     public boolean testConnect(ResourcesMateData resourcesMateData) {
         try {
             Class.forName(JDBC_DRIVER);
-            DriverManager.getConnection(String.format("jdbc:mysql://%s:%s/%s?useUnicode=true&characterEncoding=utf-8&useSSL=false&serverTimezone=GMT",
-                    resourcesMateData.getResource().get(IP).toString(),
-                    resourcesMateData.getResource().get(PORT).toString(),
-                    resourcesMateData.getResource().get(DATABASE_NAME).toString()),
-                    resourcesMateData.getResource().get(USERNAME).toString(),
-                    resourcesMateData.getResource().get(PASSWORD).toString());
-
-            return true;
+            // 只检查连接是否可用, 用完关闭
+            try (Connection connection = DriverManager.getConnection(String.format("jdbc:mysql://%s:%s/%s?useUnicode=true&characterEncoding=utf-8&useSSL=false&serverTimezone=GMT",
+                        resourcesMateData.getResource().get(IP).toString(),
+                        resourcesMateData.getResource().get(PORT).toString(),
+                        resourcesMateData.getResource().get(DATABASE_NAME).toString()),
+                        resourcesMateData.getResource().get(USERNAME).toString(),
+                        resourcesMateData.getResource().get(PASSWORD).toString())) {
+                return connection.isValid(5);
+            }
         } catch (Exception e) {
             return false;
         }
     }
 
+    @Override
+    public boolean isAsync(ResourcesMateData resourcesMateData) {
+        return batchSinks.containsKey(resourcesMateData.getResourceID());
+    }
+
     @Override
     public void handle(Map property, ResourcesMateData resourcesMateData,
                        String topic, int qos, String address, String username) throws MmqException {
+        JdbcBatchSink batchSink = batchSinks.get(resourcesMateData.getResourceID());
+        if (batchSink != null) {
+            DriverFactory.setProperty(property, topic, username);
+            batchSink.add(property);
+            return;
+        }
         Connection connection = null;
         try {
             connection = this.getDriver(resourcesMateData.getResourceID());
             if (connection != null) {
                 DriverFactory.setProperty(property, topic, username);
                 String sql = resourcesMateData.getResource().get(SQL).toString();
-                ExpressionParser parser = new SpelExpressionParser();
-                TemplateParserContext parserContext = new TemplateParserContext();
-                String content = parser.parseExpression(sql, parserContext).getValue(property, String.class);
+                String content = DriverFactory.getTemplate(resourcesMateData.getResourceID(), sql).getValue(property, String.class);
                 connection.createStatement().execute(content);
                 connection.close();
             }
@@ -130,4 +147,11 @@ public class MysqlDriver implements ResourceDriver<Connection> {
             }
         }
     }
+
+    private void closeBatchSink(String resourceId) {
+        JdbcBatchSink batchSink = batchSinks.remove(resourceId);
+        if (batchSink != null) {
+            batchSink.close();
+        }
+    }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.driver;
+
+import org.monkey.mmq.config.config.Loggers;
+import org.postgresql.PGConnection;
+import org.springframework.expression.Expression;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.monkey.mmq.config.config.Constants.*;
+
+/**
+ * Bulk ingest sink of a PostgreSQL resource. The insert template is turned into a {@code COPY ... FROM STDIN}
+ * in csv format, each flushed batch is streamed through the {@code CopyManager} and committed on its own.
+ *
+ * <p>A COPY fails as a whole. A batch rejected for its data is split in halves and copied again until the bad rows
+ * are isolated and dropped, the other rows of the batch are kept. Other failures, such as a lost connection, are
+ * retried by the {@link BatchWriter} with the rows not written yet.
+ *
+ * @author solley
+ */
+public class PostgresCopySink extends JdbcBatchSink {
+
+    private static final String CSV = "csv";
+
+    private static final int DEFAULT_BATCH_SIZE = 5000;
+
+    private static final Pattern INSERT = Pattern.compile(
+            "^\\s*insert\\s+into\\s+([\\w.\"]+)\\s*(\\([^)]*\\))?\\s*values\\s*\\((.*)\\)\\s*;?\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private PostgresCopySink(String resourceId, DataSource dataSource, String sql, List<Expression> parameters,
+                             boolean[] quoted, Map<String, Object> resource) {
+        super(resourceId, dataSource, sql, parameters, quoted, "postgres-copy", resource, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Create the COPY sink of a resource.
+     *
+     * @param resourceId resource id
+     * @param resource   resource config
+     * @param dataSource pooled data source of the resource
+     * @return sink, null if COPY is not enabled or the sql template is not a plain insert of placeholders
+     */
+    public static PostgresCopySink create(String resourceId, Map<String, Object> resource, DataSource dataSource) {
+        if (resource.get(COPY_FORMAT) == null || resource.get(SQL) == null) {
+            return null;
+        }
+        if (!CSV.equalsIgnoreCase(resource.get(COPY_FORMAT).toString().trim())) {
+            Loggers.CONFIG_SERVER.warn("copy format {} of resource {} is not supported, use csv.",
+                    resource.get(COPY_FORMAT), resourceId);
+            return null;
+        }
+        String template = resource.get(SQL).toString();
+        Matcher matcher = INSERT.matcher(template);
+        List<Expression> parameters = new ArrayList<>();
+        List<Boolean> quoted = new ArrayList<>();
+        String values = matcher.matches() ? prepare(matcher.group(3), parameters, quoted) : null;
+        if (values == null || parameters.isEmpty()
+                || !values.replaceAll("\\s", "").equals(placeholders(parameters.size()))) {
+            Loggers.CONFIG_SERVER.warn("sql template of resource {} is not an insert of placeholders, copy is disabled: {}",
+                    resourceId, template);
+            return null;
+        }
+        String copySql = "COPY " + matcher.group(1) + (matcher.group(2) == null ? "" : " " + matcher.group(2))
+                + " FROM STDIN WITH (FORMAT csv)";
+        return new PostgresCopySink(resourceId, dataSource, copySql, parameters, toArray(quoted), resource);
+    }
+
+    @Override
+    protected void write(List<Object[]> rows) throws SQLException {
+        Connection connection = dataSource.getConnection();
+        try {
+            copy(connection, rows, 0, rows.size());
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                Loggers.CONFIG_SERVER.warn("close connection of resource {} failed.", resourceId, e);
+            }
+        }
+    }
+
+    /**
+     * Copy the rows {@code [from, to)}. A batch rejected for its data is split in halves to find and drop the bad
+     * rows, any other failure is thrown to retry the batch, without the rows before {@code from} which are already
+     * written or dropped.
+     */
+    private void copy(Connection connection, List<Object[]> rows, int from, int to) throws SQLException {
+        try {
+            long copied = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(sql,
+                    new StringReader(csv(rows.subList(from, to))));
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+            if (copied != to - from) {
+                Loggers.CONFIG_SERVER.warn("copy to resource {} wrote {} of {} rows.", resourceId, copied, to - from);
+            }
+        } catch (SQLException | IOException e) {
+            rollback(connection);
+            if (!isDataError(e)) {
+                rows.subList(0, from).clear();
+                throw e instanceof SQLException ? (SQLException) e : new SQLException(e);
+            }
+            if (to - from == 1) {
+                Loggers.CONFIG_SERVER.error("copy row to resource {} failed, row is dropped.", resourceId, e);
+                return;
+            }
+            int half = from + (to - from) / 2;
+            copy(connection, rows, from, half);
+            copy(connection, rows, half, to);
+        }
+    }
+
+    /**
+     * Whether the rows were rejected by the server for their values, SQLState class 22 data exception or class 23
+     * integrity constraint violation. Retrying such a batch fails again.
+     */
+    private static boolean isDataError(Exception e) {
+        if (!(e instanceof SQLException)) {
+            return false;
+        }
+        String state = ((SQLException) e).getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+
+    private void rollback(Connection connection) {
+        try {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            Loggers.CONFIG_SERVER.warn("rollback copy of resource {} failed.", resourceId, e);
+        }
+    }
+
+    private static String csv(List<Object[]> rows) {
+        StringBuilder csv = new StringBuilder(rows.size() * 64);
+        for (Object[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0) {
+                    csv.append(',');
+                }
+                // 空值不加引号, 表示NULL
+                if (row[i] != null) {
+                    csv.append('"').append(String.valueOf(row[i]).replace("\"", "\"\"")).append('"');
+                }
+            }
+            csv.append('\n');
+        }
+        return csv.toString();
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder placeholders = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+        return placeholders.toString();
+    }
+}
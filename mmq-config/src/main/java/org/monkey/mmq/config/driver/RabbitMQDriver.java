@@ -17,24 +17,24 @@
 package org.monkey.mmq.config.driver;
 
 
-import com.alibaba.druid.pool.DruidDataSource;
 import com.alibaba.fastjson.JSON;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.MessageProperties;
+import org.monkey.mmq.config.actor.DriverBreaker;
+import org.monkey.mmq.config.config.Loggers;
 import org.monkey.mmq.config.matedata.ResourcesMateData;
 import org.monkey.mmq.core.exception.MmqException;
 import org.monkey.mmq.core.utils.StringUtils;
-import org.springframework.expression.ExpressionParser;
-import org.springframework.expression.common.TemplateParserContext;
-import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
-import java.sql.SQLException;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeoutException;
 import static org.monkey.mmq.config.config.Constants.*;
 
@@ -48,16 +48,17 @@ import static org.monkey.mmq.config.config.Constants.*;
 @Component
 public class RabbitMQDriver implements ResourceDriver<Channel> {
 
-    private ConcurrentHashMap<String, Connection> dataSources = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, ChannelPool> dataSources = new ConcurrentHashMap<>();
 
 
     @Override
     public void addDriver(String resourceId, Map<String, Object> resource) {
+        DriverFactory.removeTemplate(resourceId);
 
-        Connection connection = dataSources.get(resourceId);
-        if (connection != null) {
+        ChannelPool channelPool = dataSources.get(resourceId);
+        if (channelPool != null) {
             try {
-                connection.close();
+                channelPool.close();
             } catch (IOException e) {
                 return;
             }
@@ -77,8 +78,7 @@ public class RabbitMQDriver implements ResourceDriver<Channel> {
         factory.setUsername(resource.get(USERNAME).toString());
         factory.setPassword(resource.get(PASSWORD).toString());
         try {
-            connection = factory.newConnection();
-            dataSources.put(resourceId, connection);
+            dataSources.put(resourceId, new ChannelPool(resourceId, factory.newConnection()));
         } catch (IOException e) {
             return;
         } catch (TimeoutException e) {
@@ -88,20 +88,24 @@ public class RabbitMQDriver implements ResourceDriver<Channel> {
 
     @Override
     public void deleteDriver(String resourceId) {
-        Connection connection = dataSources.get(resourceId);
+        DriverFactory.removeTemplate(resourceId);
+        ChannelPool channelPool = dataSources.get(resourceId);
         try {
-            connection.close();
+            channelPool.close();
         } catch (IOException e) {
             return;
         }
         dataSources.remove(resourceId);
     }
 
+    /**
+     * Channel of the calling thread, kept open and reused by the following messages of the thread.
+     */
     @Override
     public Channel getDriver(String resourceId) throws Exception {
         if (dataSources == null) return null;
         if (dataSources.get(resourceId) == null) return null;
-        return dataSources.get(resourceId).createChannel();
+        return dataSources.get(resourceId).channel().channel;
     }
 
     @Override
@@ -112,13 +116,9 @@ public class RabbitMQDriver implements ResourceDriver<Channel> {
         factory.setVirtualHost(resourcesMateData.getResource().get(VIRTUALHOST).toString());
         factory.setUsername(resourcesMateData.getResource().get(USERNAME).toString());
         factory.setPassword(resourcesMateData.getResource().get(PASSWORD).toString());
-        try {
-            Connection connection = factory.newConnection();
-            if (connection.isOpen()) {
-                return true;
-            } else {
-                return false;
-            }
+        // 只检查是否可以连接, 用完关闭
+        try (Connection connection = factory.newConnection()) {
+            return connection.isOpen();
         } catch (IOException e) {
             return false;
         } catch (TimeoutException e) {
@@ -126,34 +126,137 @@ public class RabbitMQDriver implements ResourceDriver<Channel> {
         }
     }
 
+    /**
+     * Channels are in confirm mode, the broker confirms report the results to the breaker.
+     */
+    @Override
+    public boolean isAsync(ResourcesMateData resourcesMateData) {
+        return true;
+    }
+
     @Override
     public void handle(Map property, ResourcesMateData resourcesMateData, String topic, int qos, String address, String username) throws MmqException {
-        Channel channel = null;
         try {
-            channel = (Channel) this.getDriver(resourcesMateData.getResourceID());
-            if (channel != null && resourcesMateData.getResource().get(EXCHANGE) != null
-                && resourcesMateData.getResource().get(QUEUE) != null
-                && resourcesMateData.getResource().get(PAYLOAD) != null) {
-                String content = JSON.toJSONString(property);
-                if (!resourcesMateData.getResource().get(PAYLOAD).equals(PAYLOAD)) {
+            ChannelPool channelPool = dataSources.get(resourcesMateData.getResourceID());
+            Map<String, Object> resource = resourcesMateData.getResource();
+            if (channelPool != null && resource.get(EXCHANGE) != null
+                && resource.get(QUEUE) != null
+                && resource.get(PAYLOAD) != null) {
+                String content;
+                if (!resource.get(PAYLOAD).equals(PAYLOAD)) {
                     DriverFactory.setProperty(property, topic, username);
-                    String template = resourcesMateData.getResource().get(PAYLOAD).toString();
-                    ExpressionParser parser = new SpelExpressionParser();
-                    TemplateParserContext parserContext = new TemplateParserContext();
-                    content = parser.parseExpression(template, parserContext).getValue(property, String.class);
+                    String template = resource.get(PAYLOAD).toString();
+                    content = DriverFactory.getTemplate(resourcesMateData.getResourceID(), template).getValue(property, String.class);
+                } else {
+                    content = JSON.toJSONString(property);
                 }
-                channel.basicPublish(resourcesMateData.getResource().get(EXCHANGE).toString(),
-                        resourcesMateData.getResource().get(QUEUE).toString(), null, content.getBytes());
+                channelPool.channel().publish(resource.get(EXCHANGE).toString(), resource.get(QUEUE).toString(),
+                        Boolean.parseBoolean(String.valueOf(resource.get(MANDATORY))),
+                        Boolean.parseBoolean(String.valueOf(resource.get(PERSISTENT))) ? MessageProperties.PERSISTENT_BASIC : null,
+                        content.getBytes());
             }
         } catch (Exception e) {
             throw new MmqException(e.hashCode(), e.getMessage());
-        } finally {
-            try {
-                channel.close();
-            } catch (IOException e) {
-                throw new MmqException(e.hashCode(), e.getMessage());
-            } catch (TimeoutException e) {
-                throw new MmqException(e.hashCode(), e.getMessage());
+        }
+    }
+
+    /**
+     * Channels of a resource, one per publishing thread. Every channel is in confirm mode, the broker confirms
+     * are handled asynchronously and may ack many messages at once.
+     */
+    private static final class ChannelPool {
+
+        private final String resourceId;
+
+        private final Connection connection;
+
+        private final Map<Long, PooledChannel> channels = new ConcurrentHashMap<>();
+
+        private final DriverMetrics metrics;
+
+        private ChannelPool(String resourceId, Connection connection) {
+            this.resourceId = resourceId;
+            this.connection = connection;
+            this.metrics = new DriverMetrics(resourceId, "rabbitmq", "confirm_latency");
+        }
+
+        private PooledChannel channel() throws IOException {
+            long threadId = Thread.currentThread().getId();
+            PooledChannel channel = channels.get(threadId);
+            if (channel == null || !channel.channel.isOpen()) {
+                channel = new PooledChannel(threadId, connection.createChannel());
+                channels.put(threadId, channel);
+            }
+            return channel;
+        }
+
+        private void close() throws IOException {
+            metrics.remove();
+            // 关闭连接会关闭所有通道
+            connection.close();
+        }
+
+        private final class PooledChannel {
+
+            private final Channel channel;
+
+            /**
+             * Publish time of the unconfirmed messages by sequence number.
+             */
+            private final NavigableMap<Long, Long> unconfirmed = new ConcurrentSkipListMap<>();
+
+            private PooledChannel(long threadId, Channel channel) throws IOException {
+                this.channel = channel;
+                channel.confirmSelect();
+                channel.addConfirmListener(
+                        (deliveryTag, multiple) -> metrics.written(confirm(deliveryTag, multiple, null)),
+                        (deliveryTag, multiple) -> {
+                            int count = confirm(deliveryTag, multiple, new IOException("message is not confirmed by the broker"));
+                            metrics.failed(count);
+                            Loggers.CONFIG_SERVER.warn("{} messages to rabbitmq resource {} are not confirmed.",
+                                    count, resourceId);
+                        });
+                channel.addReturnListener(returned -> Loggers.CONFIG_SERVER.warn(
+                        "message to rabbitmq resource {} is returned: {} {}", resourceId, returned.getReplyCode(),
+                        returned.getReplyText()));
+                // 通道或连接关闭后不会再收到确认, 未确认的消息按失败处理
+                channel.addShutdownListener(cause -> {
+                    channels.remove(threadId, this);
+                    int count = confirm(Long.MAX_VALUE, true, cause);
+                    if (count > 0) {
+                        metrics.failed(count);
+                        Loggers.CONFIG_SERVER.warn("{} messages to rabbitmq resource {} are not confirmed, channel is closed: {}",
+                                count, resourceId, cause.getMessage());
+                    }
+                });
+            }
+
+            private void publish(String exchange, String routingKey, boolean mandatory,
+                                 AMQP.BasicProperties properties, byte[] body) throws IOException {
+                long seqNo = channel.getNextPublishSeqNo();
+                unconfirmed.put(seqNo, System.nanoTime());
+                try {
+                    channel.basicPublish(exchange, routingKey, mandatory, properties, body);
+                } catch (IOException | RuntimeException e) {
+                    unconfirmed.remove(seqNo);
+                    throw e;
+                }
+            }
+
+            private int confirm(long deliveryTag, boolean multiple, Throwable cause) {
+                NavigableMap<Long, Long> confirmedMessages = multiple
+                        ? unconfirmed.headMap(deliveryTag, true) : unconfirmed.subMap(deliveryTag, true, deliveryTag, true);
+                Map.Entry<Long, Long> first = confirmedMessages.firstEntry();
+                if (first != null) {
+                    DriverBreaker.completed(resourceId, first.getValue(), cause);
+                }
+                int count = 0;
+                for (Long publishTime : confirmedMessages.values()) {
+                    metrics.latency(publishTime);
+                    count++;
+                }
+                confirmedMessages.clear();
+                return count;
             }
         }
     }
@@ -1,6 +1,8 @@
 package org.monkey.mmq.config.driver;
 
+import org.monkey.mmq.config.matedata.DriverMessage;
 import org.monkey.mmq.config.matedata.ResourcesMateData;
+import org.monkey.mmq.config.matedata.RuleEngineMessage;
 import org.monkey.mmq.core.exception.MmqException;
 
 import java.util.Map;
@@ -15,6 +17,39 @@ public interface ResourceDriver<T> {
 
     boolean testConnect(ResourcesMateData resourcesMateData);
 
+    /**
+     * Whether {@code handle} only queues the output of a resource. The result of the write is then reported later
+     * by the driver with {@link org.monkey.mmq.config.actor.DriverBreaker#completed}, a return of {@code handle}
+     * is not a success.
+     *
+     * @param resourcesMateData resource
+     * @return true if the writes of the resource complete asynchronously
+     */
+    default boolean isAsync(ResourcesMateData resourcesMateData) {
+        return false;
+    }
+
     void handle(Map property, ResourcesMateData resourcesMateData,
                 String topic, int qos, String address, String username) throws MmqException;
+
+    /**
+     * Handle a rule output together with its source message, drivers needing the raw payload or the clientId
+     * override this. Aggregated and timer outputs have no source message.
+     *
+     * @param driverMessage rule output
+     * @throws MmqException if the output is not handled
+     */
+    default void handle(DriverMessage driverMessage) throws MmqException {
+        RuleEngineMessage source = driverMessage.getRuleEngineMessage();
+        if (source == null) {
+            handle(driverMessage.getProperty(), driverMessage.getResourcesMateData(), null, 0, null, null);
+            return;
+        }
+        handle(driverMessage.getProperty(),
+                driverMessage.getResourcesMateData(),
+                source.getMessage().getTopic(),
+                source.getMessage().getMqttQoS(),
+                source.getMessage().getAddress(),
+                source.getUsername());
+    }
 }
@@ -20,14 +20,14 @@ import com.taosdata.jdbc.TSDBDriver;
 import org.monkey.mmq.config.matedata.ResourcesMateData;
 import org.monkey.mmq.core.exception.MmqException;
 import org.monkey.mmq.core.utils.StringUtils;
-import org.springframework.expression.ExpressionParser;
-import org.springframework.expression.common.TemplateParserContext;
-import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
@@ -42,10 +42,21 @@ public class TDengineDriver implements ResourceDriver {
 
     private ConcurrentHashMap<String, DruidDataSource> dataSources = new ConcurrentHashMap<>();
 
+    private ConcurrentHashMap<String, BatchWriter<String>> writers = new ConcurrentHashMap<>();
+
+    private static final String INSERT_INTO = "INSERT INTO";
+
+    /**
+     * 合并后单条SQL的字节数上限, TDengine 2.x默认的maxSQLLength, 服务端调大后可通过maxSqlLength配置
+     */
+    private static final int DEFAULT_MAX_SQL_BYTES = 65480;
+
     static final String JDBC_DRIVER = "com.taosdata.jdbc.rs.RestfulDriver";
 
     @Override
     public void addDriver(String resourceId, Map resource) {
+        DriverFactory.removeTemplate(resourceId);
+        closeWriter(resourceId);
         DruidDataSource druidDataSource = dataSources.get(resourceId);
         if (druidDataSource != null) {
             druidDataSource.close();
@@ -79,6 +90,12 @@ public class TDengineDriver implements ResourceDriver {
             dataSource.setMaxActive(20);
             dataSource.setValidationQuery("select server_status()");
             dataSources.put(resourceId, dataSource);
+            int maxSqlBytes = BatchWriter.intValue(resource.get(MAX_SQL_LENGTH), DEFAULT_MAX_SQL_BYTES);
+            BatchWriter<String> writer = BatchWriter.create(resourceId, "tdengine", resource,
+                    batch -> writeBatch(dataSource, batch, maxSqlBytes));
+            if (writer != null) {
+                writers.put(resourceId, writer);
+            }
         } catch (Exception throwables) {
             return;
         }
@@ -86,6 +103,8 @@ public class TDengineDriver implements ResourceDriver {
 
     @Override
     public void deleteDriver(String resourceId) {
+        DriverFactory.removeTemplate(resourceId);
+        closeWriter(resourceId);
         DruidDataSource druidDataSource = dataSources.get(resourceId);
         druidDataSource.close();
         dataSources.remove(resourceId);
@@ -103,30 +122,45 @@ public class TDengineDriver implements ResourceDriver {
     public boolean testConnect(ResourcesMateData resourcesMateData) {
         try {
             Class.forName(JDBC_DRIVER);
-            DriverManager.getConnection(String.format("jdbc:TAOS-RS://%s:%s/%s",
-                    resourcesMateData.getResource().get(IP).toString(),
-                    resourcesMateData.getResource().get(PORT).toString(),
-                    resourcesMateData.getResource().get(DATABASE_NAME).toString()),
-                    resourcesMateData.getResource().get(USERNAME).toString(),
-                    resourcesMateData.getResource().get(PASSWORD).toString());
-            return true;
+            // 只检查连接是否可用, 用完关闭
+            try (Connection connection = DriverManager.getConnection(String.format("jdbc:TAOS-RS://%s:%s/%s",
+                        resourcesMateData.getResource().get(IP).toString(),
+                        resourcesMateData.getResource().get(PORT).toString(),
+                        resourcesMateData.getResource().get(DATABASE_NAME).toString()),
+                        resourcesMateData.getResource().get(USERNAME).toString(),
+                        resourcesMateData.getResource().get(PASSWORD).toString());
+                 Statement statement = connection.createStatement()) {
+                // restful连接不检查服务, 执行查询确认服务可用
+                statement.execute("SELECT SERVER_STATUS()");
+                return true;
+            }
         } catch (Exception e) {
             return false;
         }
     }
 
+    @Override
+    public boolean isAsync(ResourcesMateData resourcesMateData) {
+        return writers.containsKey(resourcesMateData.getResourceID());
+    }
+
     @Override
     public void handle(Map property, ResourcesMateData resourcesMateData,
                        String topic, int qos, String address, String username) throws MmqException {
+        BatchWriter<String> writer = writers.get(resourcesMateData.getResourceID());
+        if (writer != null) {
+            DriverFactory.setProperty(property, topic, username);
+            String sql = resourcesMateData.getResource().get(SQL).toString();
+            writer.add(DriverFactory.getTemplate(resourcesMateData.getResourceID(), sql).getValue(property, String.class));
+            return;
+        }
         Connection connection = null;
         try {
             connection = (Connection) this.getDriver(resourcesMateData.getResourceID());
             if (connection != null) {
                 DriverFactory.setProperty(property, topic, username);
                 String sql = resourcesMateData.getResource().get(SQL).toString();
-                ExpressionParser parser = new SpelExpressionParser();
-                TemplateParserContext parserContext = new TemplateParserContext();
-                String content = parser.parseExpression(sql, parserContext).getValue(property, String.class);
+                String content = DriverFactory.getTemplate(resourcesMateData.getResourceID(), sql).getValue(property, String.class);
                 connection.createStatement().execute(content);
             }
         } catch (Exception e) {
@@ -139,4 +173,64 @@ public class TDengineDriver implements ResourceDriver {
             }
         }
     }
+
+    /**
+     * Write a batch of insert statements, merged into multi-table inserts
+     * {@code INSERT INTO t1 VALUES (...) t2 VALUES (...)} of at most {@code maxSqlBytes}. Other statements are run
+     * in order after the inserts before them. Written statements are removed from the batch, so a retry only runs
+     * the statements not written yet.
+     */
+    private static void writeBatch(DruidDataSource dataSource, List<String> batch, int maxSqlBytes) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            StringBuilder merged = new StringBuilder(INSERT_INTO);
+            int mergedBytes = INSERT_INTO.length();
+            // batch中前mergedCount条已合并到merged
+            int mergedCount = 0;
+            while (mergedCount < batch.size()) {
+                String trimmed = batch.get(mergedCount).trim();
+                if (!trimmed.regionMatches(true, 0, INSERT_INTO, 0, INSERT_INTO.length())) {
+                    if (mergedCount > 0) {
+                        execute(statement, merged, batch, mergedCount);
+                        mergedBytes = INSERT_INTO.length();
+                        mergedCount = 0;
+                    }
+                    statement.execute(trimmed);
+                    batch.remove(0);
+                    continue;
+                }
+                String values = trimmed.substring(INSERT_INTO.length(), trimmed.endsWith(";")
+                        ? trimmed.length() - 1 : trimmed.length());
+                int bytes = 1 + values.getBytes(StandardCharsets.UTF_8).length;
+                if (mergedCount > 0 && mergedBytes + bytes > maxSqlBytes) {
+                    execute(statement, merged, batch, mergedCount);
+                    mergedBytes = INSERT_INTO.length();
+                    mergedCount = 0;
+                }
+                merged.append(' ').append(values);
+                mergedBytes += bytes;
+                mergedCount++;
+            }
+            if (mergedCount > 0) {
+                execute(statement, merged, batch, mergedCount);
+            }
+        }
+    }
+
+    /**
+     * Run the merged insert and remove its statements from the batch.
+     */
+    private static void execute(Statement statement, StringBuilder merged, List<String> batch, int count)
+            throws SQLException {
+        statement.execute(merged.toString());
+        batch.subList(0, count).clear();
+        merged.setLength(INSERT_INTO.length());
+    }
+
+    private void closeWriter(String resourceId) {
+        BatchWriter<String> writer = writers.remove(resourceId);
+        if (writer != null) {
+            writer.close();
+        }
+    }
 }
@@ -36,6 +36,10 @@ public class KeyBuilder {
         return key.startsWith(UtilsAndCommons.MODULES_STORE);
     }
 
+    public static boolean matchProtobufDescriptorKey(String key) {
+        return key.startsWith(UtilsAndCommons.PROTOBUF_DESCRIPTOR_STORE);
+    }
+
     public static String getModulesKey() {
         return UtilsAndCommons.MODULES_STORE;
     }
@@ -47,4 +51,8 @@ public class KeyBuilder {
     public static String getRuleEngineKey() {
         return UtilsAndCommons.RULE_ENGINE_STORE;
     }
+
+    public static String getProtobufDescriptorKey() {
+        return UtilsAndCommons.PROTOBUF_DESCRIPTOR_STORE;
+    }
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.matedata;
+
+import org.monkey.mmq.core.consistency.matedata.Record;
+
+import java.io.Serializable;
+
+/**
+ * Protobuf descriptor set the rules decode protobuf payloads with.
+ *
+ * @author solley
+ */
+public class ProtobufDescriptorMateData implements Record, Serializable {
+
+    private String name;
+
+    private String description;
+
+    /**
+     * Base64 of a serialized {@code FileDescriptorSet}, built with {@code protoc --include_imports --descriptor_set_out}.
+     */
+    private String descriptorSet;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    public String getDescriptorSet() {
+        return descriptorSet;
+    }
+
+    public void setDescriptorSet(String descriptorSet) {
+        this.descriptorSet = descriptorSet;
+    }
+}
@@ -38,6 +38,31 @@ public class RuleEngineMateData implements Record, Serializable {
 
     private List<ResourcesMateData> resourcesMateDatas;
 
+    /**
+     * Number of parallel partitions, null or less than 2 runs the rule in a single actor.
+     */
+    private Integer partitions;
+
+    /**
+     * Payload field the partitions are keyed by, null keys by the publishing clientId.
+     */
+    private String partitionKey;
+
+    /**
+     * Akka dispatcher id of the rule actors, null uses the default dispatcher.
+     */
+    private String dispatcher;
+
+    /**
+     * Encoding of the payloads, null is json.
+     */
+    private PayloadFormat payloadFormat;
+
+    /**
+     * Full name of the protobuf message type of the payloads when the format is protobuf.
+     */
+    private String protobufMessage;
+
     public String getName() {
         return name;
     }
@@ -85,4 +110,44 @@ public class RuleEngineMateData implements Record, Serializable {
     public void setEnable(Boolean enable) {
         this.enable = enable;
     }
+
+    public Integer getPartitions() {
+        return partitions;
+    }
+
+    public void setPartitions(Integer partitions) {
+        this.partitions = partitions;
+    }
+
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    public void setPartitionKey(String partitionKey) {
+        this.partitionKey = partitionKey;
+    }
+
+    public String getDispatcher() {
+        return dispatcher;
+    }
+
+    public void setDispatcher(String dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    public PayloadFormat getPayloadFormat() {
+        return payloadFormat;
+    }
+
+    public void setPayloadFormat(PayloadFormat payloadFormat) {
+        this.payloadFormat = payloadFormat;
+    }
+
+    public String getProtobufMessage() {
+        return protobufMessage;
+    }
+
+    public void setProtobufMessage(String protobufMessage) {
+        this.protobufMessage = protobufMessage;
+    }
 }
@@ -15,10 +15,18 @@
  */
 package org.monkey.mmq.config.matedata;
 
+import org.monkey.mmq.config.codec.PayloadDecoder;
+import org.monkey.mmq.config.codec.PayloadDecoders;
 import org.monkey.mmq.core.actor.ActorMsg;
 import org.monkey.mmq.core.actor.MsgType;
 import org.monkey.mmq.core.entity.InternalMessage;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
 /**
  * @author solley
  */
@@ -30,6 +38,18 @@ public class RuleEngineMessage implements ActorMsg {
 
     RuleEngineMateData ruleEngineMateData;
 
+    /**
+     * Json payload decoded on first access and shared by every rule receiving this message.
+     */
+    private volatile Map<String, Object> payload;
+
+    private volatile boolean payloadDecoded;
+
+    /**
+     * Payloads of the other formats by decoder id, guarded by this.
+     */
+    private Map<String, Optional<Map<String, Object>>> decodedPayloads;
+
     public RuleEngineMateData getRuleEngineMateData() {
         return ruleEngineMateData;
     }
@@ -54,6 +74,71 @@ public class RuleEngineMessage implements ActorMsg {
         this.message = message;
     }
 
+    /**
+     * Json object of the message bytes, decoded at most once per message.
+     *
+     * @return read only payload, null if the message bytes are not a json object
+     */
+    public Map<String, Object> getPayload() {
+        return getPayload(PayloadDecoders.JSON);
+    }
+
+    /**
+     * Object of the message bytes, decoded at most once per message and decoder.
+     *
+     * @param decoder payload decoder of the rule
+     * @return read only payload, null if the message bytes can not be decoded to an object
+     */
+    public Map<String, Object> getPayload(PayloadDecoder decoder) {
+        if (decoder == PayloadDecoders.JSON) {
+            if (!payloadDecoded) {
+                synchronized (this) {
+                    if (!payloadDecoded) {
+                        payload = decodePayload(decoder);
+                        payloadDecoded = true;
+                    }
+                }
+            }
+            return payload;
+        }
+        synchronized (this) {
+            if (decodedPayloads == null) {
+                decodedPayloads = new HashMap<>(2);
+            }
+            return decodedPayloads.computeIfAbsent(decoder.getId(), id -> Optional.ofNullable(decodePayload(decoder)))
+                    .orElse(null);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> decodePayload(PayloadDecoder decoder) {
+        if (message == null || message.getMessageBytes().isEmpty()) {
+            return null;
+        }
+        try {
+            return (Map<String, Object>) readOnly(decoder.decode(message.getMessageBytes().newInput()));
+        } catch (Exception e) {
+            // 解析失败的消息不被规则处理, 计数并限频记录
+            PayloadDecoders.failed(decoder, e);
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object readOnly(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) value;
+            map.replaceAll((key, each) -> readOnly(each));
+            return Collections.unmodifiableMap(map);
+        }
+        if (value instanceof List) {
+            List<Object> list = (List<Object>) value;
+            list.replaceAll(RuleEngineMessage::readOnly);
+            return Collections.unmodifiableList(list);
+        }
+        return value;
+    }
+
     @Override
     public MsgType getMsgType() {
         return MsgType.RULE_ENGINE;
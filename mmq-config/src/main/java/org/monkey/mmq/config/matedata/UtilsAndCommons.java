@@ -35,6 +35,8 @@ public class UtilsAndCommons {
 
     public static final String MODULES_STORE = "00-00---000-MODULES_STORE-000---00-00";
 
+    public static final String PROTOBUF_DESCRIPTOR_STORE = "00-00---000-PROTOBUF_DESCRIPTOR_STORE-000---00-00";
+
     public static final String DATA_BASE_DIR =
-            EnvUtil.getMmqHome() + File.separator + "data" + File.separator + "config";
+            EnvUtil.getDataDir() + File.separator + "config";
 }
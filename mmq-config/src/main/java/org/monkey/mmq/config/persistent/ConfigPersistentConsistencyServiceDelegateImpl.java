@@ -31,10 +31,15 @@ import org.monkey.mmq.core.consistency.persistent.StandalonePersistentServicePro
 import org.monkey.mmq.core.distributed.ProtocolManager;
 import org.monkey.mmq.core.env.EnvUtil;
 import org.monkey.mmq.core.exception.MmqException;
+import org.monkey.mmq.core.storage.KvNamespace;
 import org.springframework.stereotype.Component;
 
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.monkey.mmq.core.common.Constants.MQTT_PERSISTENT_CONFIG_GROUP;
 
@@ -98,13 +103,21 @@ public class ConfigPersistentConsistencyServiceDelegateImpl implements Persisten
     private BasePersistentServiceProcessor createNewPersistentServiceProcessor(ProtocolManager protocolManager) throws Exception {
         final BasePersistentServiceProcessor processor =
                 EnvUtil.getStandaloneMode() ? new StandalonePersistentServiceProcessor(this.baseDir,
-                        MQTT_PERSISTENT_CONFIG_GROUP, this::getClassOfRecordFromKey)
+                        storageNamespaces(), MQTT_PERSISTENT_CONFIG_GROUP, this::getClassOfRecordFromKey)
                         : new PersistentServiceProcessor(protocolManager, this.baseDir,
-                        MQTT_PERSISTENT_CONFIG_GROUP, this::getClassOfRecordFromKey);
+                        storageNamespaces(), MQTT_PERSISTENT_CONFIG_GROUP, this::getClassOfRecordFromKey);
         processor.afterConstruct();
         return processor;
     }
 
+    private List<KvNamespace> storageNamespaces() {
+        return Stream.of(KvNamespace.fromProperties("resources", UtilsAndCommons.RESOURCES_STORE),
+                KvNamespace.fromProperties("rule-engine", UtilsAndCommons.RULE_ENGINE_STORE),
+                KvNamespace.fromProperties("modules", UtilsAndCommons.MODULES_STORE),
+                KvNamespace.fromProperties("protobuf-descriptor", UtilsAndCommons.PROTOBUF_DESCRIPTOR_STORE))
+                .filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
     protected Class<? extends Record> getClassOfRecordFromKey(String key) {
         if (KeyBuilder.matchResourcesKey(key)) {
             return ResourcesMateData.class;
@@ -112,6 +125,8 @@ public class ConfigPersistentConsistencyServiceDelegateImpl implements Persisten
             return RuleEngineMateData.class;
         } else if (KeyBuilder.matchModulesKey(key)) {
             return ModelMateData.class;
+        } else if (KeyBuilder.matchProtobufDescriptorKey(key)) {
+            return ProtobufDescriptorMateData.class;
         }
         return Record.class;
     }
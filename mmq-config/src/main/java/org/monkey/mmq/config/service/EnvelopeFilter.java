@@ -0,0 +1,213 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.parser.CCJSqlParserUtil;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import net.sf.jsqlparser.statement.select.Select;
+import org.monkey.mmq.config.matedata.RuleEngineMessage;
+import org.monkey.mmq.rule.engine.DefaultReactorQLRecord;
+import org.monkey.mmq.rule.engine.ReactorQL;
+import org.monkey.mmq.rule.engine.ReactorQLMetadata;
+import org.monkey.mmq.rule.engine.ReactorQLRecord;
+import org.monkey.mmq.rule.engine.feature.FeatureId;
+import org.monkey.mmq.rule.engine.feature.FilterFeature;
+import org.monkey.mmq.rule.engine.feature.ValueMapFeature;
+import org.monkey.mmq.rule.engine.supports.DefaultReactorQLMetadata;
+import org.monkey.mmq.rule.engine.utils.PredicatePushdownUtils;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Mono;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Conditions of a rule on the message envelope, evaluated on publish before the payload is decoded and before the
+ * message is sent to the rule actor.
+ *
+ * <p>The envelope is read in the rule sql with the functions {@code topic()}, {@code topic(n)} for the n-th topic
+ * level counted from 0, {@code clientid()}, {@code username()} and {@code qos()}. Conditions joined by {@code and}
+ * at the top of the WHERE clause that read nothing else are moved out of the sql:
+ * <pre>
+ *     select temp from sensors/# where topic(1) = 'room1' and qos() > 0 and temp > 30
+ * </pre>
+ * runs {@code topic(1) = 'room1' and qos() > 0} on publish and {@code temp > 30} in the rule. The envelope functions
+ * can not be used anywhere else in the sql.
+ *
+ * <p>Messages matched and rejected are counted as {@code mmq_rule} tagged by rule, with the rejected fraction as
+ * the {@code envelope_reject_ratio} gauge.
+ *
+ * @author solley
+ */
+public final class EnvelopeFilter {
+
+    private static final String METER = "mmq_rule";
+
+    private static final Set<String> FUNCTIONS = new HashSet<>(Arrays.asList("topic", "clientid", "username", "qos"));
+
+    private final BiFunction<ReactorQLRecord, Object, Mono<Boolean>> predicate;
+
+    private final Counter matched;
+
+    private final Counter rejected;
+
+    private final Gauge rejectRatio;
+
+    private EnvelopeFilter(String ruleId, PlainSelect select, Expression expression) {
+        DefaultReactorQLMetadata metadata = new DefaultReactorQLMetadata(select);
+        metadata.addFeature(
+                new EnvelopeFeature("topic", EnvelopeFilter::topic),
+                new EnvelopeFeature("clientid", (message, level) -> message.getMessage().getClientId()),
+                new EnvelopeFeature("username", (message, level) -> message.getUsername()),
+                new EnvelopeFeature("qos", (message, level) -> message.getMessage().getMqttQoS()));
+        this.predicate = FilterFeature.createPredicateNow(expression, metadata);
+        this.matched = Metrics.counter(METER, "rule", ruleId, "name", "envelope_matched");
+        this.rejected = Metrics.counter(METER, "rule", ruleId, "name", "envelope_rejected");
+        this.rejectRatio = Gauge.builder(METER, this, EnvelopeFilter::rejectRatio)
+                .tags("rule", ruleId, "name", "envelope_reject_ratio")
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * Parse the sql of a rule.
+     *
+     * @param sql rule sql
+     * @return select
+     * @throws IllegalArgumentException if the sql is not a plain select
+     */
+    public static PlainSelect parse(String sql) {
+        try {
+            return (PlainSelect) ((Select) CCJSqlParserUtil.parse(sql)).getSelectBody();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("parse sql failed: " + sql, e);
+        }
+    }
+
+    /**
+     * Compile the sql of a rule without its envelope conditions.
+     *
+     * @param sql rule sql
+     * @return sql run by the rule actor
+     */
+    public static ReactorQL compile(String sql) {
+        PlainSelect select = parse(sql);
+        split(select);
+        return ReactorQL.builder().select(select).build();
+    }
+
+    /**
+     * Move the envelope conditions out of the sql of a rule.
+     *
+     * @param ruleId rule id, tags the meters
+     * @param select rule sql, left without the envelope conditions
+     * @return filter, null if the rule has no envelope condition
+     */
+    public static EnvelopeFilter of(String ruleId, PlainSelect select) {
+        return split(select).map(expression -> new EnvelopeFilter(ruleId, select, expression)).orElse(null);
+    }
+
+    private static Optional<Expression> split(PlainSelect select) {
+        Optional<Expression> expression = PredicatePushdownUtils.split(select, FUNCTIONS);
+        // 拆分后剩余的sql无法读取消息信息
+        if (PredicatePushdownUtils.references(select.getWhere(), FUNCTIONS)) {
+            throw new IllegalArgumentException("topic(), clientid(), username() and qos() can only be used in the conditions joined by and in WHERE.");
+        }
+        return expression;
+    }
+
+    /**
+     * Evaluate the envelope conditions.
+     *
+     * @param message published message
+     * @return true if the message is sent to the rule
+     */
+    public boolean test(RuleEngineMessage message) {
+        // 消息信息都是同步求值
+        Boolean result = predicate.apply(new DefaultReactorQLRecord(null, message, null), message)
+                .toFuture()
+                .getNow(false);
+        if (Boolean.TRUE.equals(result)) {
+            matched.increment();
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * Remove the meters, called when the rule is removed or replaced.
+     */
+    public void remove() {
+        Metrics.globalRegistry.remove(matched);
+        Metrics.globalRegistry.remove(rejected);
+        Metrics.globalRegistry.remove(rejectRatio);
+    }
+
+    private double rejectRatio() {
+        double total = matched.count() + rejected.count();
+        return total == 0 ? 0 : rejected.count() / total;
+    }
+
+    private static Object topic(RuleEngineMessage message, Integer level) {
+        String topic = message.getMessage().getTopic();
+        if (level == null) {
+            return topic;
+        }
+        String[] levels = topic.split("/", -1);
+        return level >= 0 && level < levels.length ? levels[level] : null;
+    }
+
+    private static final class EnvelopeFeature implements ValueMapFeature {
+
+        private final String id;
+
+        private final BiFunction<RuleEngineMessage, Integer, Object> getter;
+
+        private EnvelopeFeature(String name, BiFunction<RuleEngineMessage, Integer, Object> getter) {
+            this.id = FeatureId.ValueMap.of(name).getId();
+            this.getter = getter;
+        }
+
+        @Override
+        public Function<ReactorQLRecord, Publisher<?>> createMapper(Expression expression, ReactorQLMetadata metadata) {
+            net.sf.jsqlparser.expression.Function function = (net.sf.jsqlparser.expression.Function) expression;
+            Integer level = null;
+            if (function.getParameters() != null && !function.getParameters().getExpressions().isEmpty()) {
+                Expression parameter = function.getParameters().getExpressions().get(0);
+                if (!(parameter instanceof LongValue)) {
+                    throw new IllegalArgumentException("parameter of " + function + " must be a number.");
+                }
+                level = (int) ((LongValue) parameter).getValue();
+            }
+            Integer finalLevel = level;
+            return record -> Mono.justOrEmpty(getter.apply((RuleEngineMessage) record.getRecord(), finalLevel));
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.service;
+
+import org.monkey.mmq.config.codec.ProtobufDescriptors;
+import org.monkey.mmq.config.config.Loggers;
+import org.monkey.mmq.config.matedata.KeyBuilder;
+import org.monkey.mmq.config.matedata.ProtobufDescriptorMateData;
+import org.monkey.mmq.config.matedata.UtilsAndCommons;
+import org.monkey.mmq.core.consistency.matedata.RecordListener;
+import org.monkey.mmq.core.consistency.persistent.ConsistencyService;
+import org.monkey.mmq.core.exception.MmqException;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Protobuf descriptor sets registered for the rules decoding protobuf payloads.
+ *
+ * @author solley
+ */
+@Service
+public class ProtobufDescriptorService implements RecordListener<ProtobufDescriptorMateData> {
+
+    Map<String, ProtobufDescriptorMateData> descriptorMateDataMap = new ConcurrentHashMap<>();
+
+    @Resource(name = "configPersistentConsistencyServiceDelegate")
+    private ConsistencyService consistencyService;
+
+    /**
+     * Init
+     */
+    @PostConstruct
+    public void init() {
+        try {
+            consistencyService.listen(KeyBuilder.getProtobufDescriptorKey(), this);
+        } catch (MmqException e) {
+            Loggers.CONFIG_SERVER.error("listen protobuf descriptor service failed.", e);
+        }
+    }
+
+    /**
+     * Save a descriptor set.
+     *
+     * @param mateData descriptor set
+     * @return message types of the set
+     * @throws Exception if the descriptor set can not be parsed
+     */
+    public List<String> save(ProtobufDescriptorMateData mateData) throws Exception {
+        List<String> types = new ArrayList<>(ProtobufDescriptors.parse(decode(mateData)).keySet());
+        consistencyService.put(UtilsAndCommons.PROTOBUF_DESCRIPTOR_STORE + mateData.getName(), mateData);
+        return types;
+    }
+
+    public void delete(String name) {
+        try {
+            consistencyService.remove(UtilsAndCommons.PROTOBUF_DESCRIPTOR_STORE + name);
+        } catch (MmqException e) {
+            Loggers.CONFIG_SERVER.error("delete protobuf descriptor failed.", e);
+        }
+    }
+
+    /**
+     * Message types of the registered descriptor sets.
+     *
+     * @return message type names by set name
+     */
+    public Map<String, List<String>> getAllDescriptors() {
+        return ProtobufDescriptors.list();
+    }
+
+    @Override
+    public boolean interests(String key) {
+        return KeyBuilder.matchProtobufDescriptorKey(key);
+    }
+
+    @Override
+    public boolean matchUnlistenKey(String key) {
+        return KeyBuilder.matchProtobufDescriptorKey(key);
+    }
+
+    @Override
+    public void onChange(String key, ProtobufDescriptorMateData value) throws Exception {
+        try {
+            ProtobufDescriptors.register(value.getName(), decode(value));
+            descriptorMateDataMap.put(key, value);
+        } catch (Exception e) {
+            Loggers.CONFIG_SERVER.error("register protobuf descriptor {} failed.", value.getName(), e);
+        }
+    }
+
+    @Override
+    public void onDelete(String key) throws Exception {
+        ProtobufDescriptorMateData value = descriptorMateDataMap.remove(key);
+        if (value != null) {
+            ProtobufDescriptors.remove(value.getName());
+        }
+    }
+
+    private static byte[] decode(ProtobufDescriptorMateData mateData) {
+        return Base64.getDecoder().decode(mateData.getDescriptorSet());
+    }
+}
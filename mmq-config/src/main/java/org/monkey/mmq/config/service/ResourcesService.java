@@ -15,9 +15,13 @@
  */
 package org.monkey.mmq.config.service;
 
+import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import akka.actor.Props;
+import akka.pattern.Patterns;
 import org.monkey.mmq.config.actor.DriverActor;
+import org.monkey.mmq.config.actor.DriverBreaker;
+import org.monkey.mmq.config.actor.DriverMailbox;
 import org.monkey.mmq.config.config.Loggers;
 import org.monkey.mmq.config.driver.DriverFactory;
 import org.monkey.mmq.config.matedata.DriverMessage;
@@ -32,8 +36,11 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.util.HashMap;
+import java.time.Duration;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Resources Service
@@ -43,7 +50,21 @@ import java.util.Map;
 @Service
 public class ResourcesService implements RecordListener<ResourcesMateData> {
 
-    Map<String, ResourcesMateData> resourcesMateDataMap = new HashMap<>();
+    private static final long STOP_TIMEOUT_MS = 30000L;
+
+    Map<String, ResourcesMateData> resourcesMateDataMap = new ConcurrentHashMap<>();
+
+    private Map<String, ActorRef> actorRefMap = new ConcurrentHashMap<>();
+
+    /**
+     * Numbers the driver actors, the name of a stopped actor is released asynchronously.
+     */
+    private final AtomicLong incarnation = new AtomicLong();
+
+    /**
+     * Driver actors of deleted resources which are not stopped yet.
+     */
+    private final Map<String, CompletionStage<Boolean>> stopping = new ConcurrentHashMap<>();
 
     @Resource
     ActorSystem actorSystem;
@@ -88,6 +109,15 @@ public class ResourcesService implements RecordListener<ResourcesMateData> {
         return DriverFactory.getResourceDriverByEnum(resourcesMateData.getType()).testConnect(resourcesMateData);
     }
 
+    /**
+     * Circuit state of every resource.
+     *
+     * @return state, consecutive failures and last error by resource id
+     */
+    public Map<String, Map<String, Object>> getHealth() {
+        return DriverBreaker.health();
+    }
+
     public ResourcesMateData getResourcesByResourceID(String resourceID) {
         return resourcesMateDataMap.get(UtilsAndCommons.RESOURCES_STORE +resourceID);
     }
@@ -106,8 +136,25 @@ public class ResourcesService implements RecordListener<ResourcesMateData> {
     public void onChange(String key, ResourcesMateData value) throws Exception {
         resourcesMateDataMap.put(key, value);
         DriverFactory.getResourceDriverByEnum(value.getType()).addDriver(value.getResourceID(), value.getResource());
-        // add driver actor
-        actorSystem.actorOf((Props.create(DriverActor.class, actorSystem)), value.getResourceID());
+        // 邮箱容量和溢出策略在更新时直接生效, actor只创建一次
+        DriverMailbox.configure(value);
+        DriverBreaker.configure(value);
+        CompletionStage<Boolean> stop = stopping.get(value.getResourceID());
+        if (stop == null) {
+            startActor(key, value.getResourceID());
+        } else {
+            // 资源删除后又添加, 旧actor停止并关闭溢出文件后再创建新actor
+            stop.whenComplete((stopped, e) -> startActor(key, value.getResourceID()));
+        }
+    }
+
+    private void startActor(String key, String resourceId) {
+        if (!resourcesMateDataMap.containsKey(key)) {
+            return;
+        }
+        actorRefMap.computeIfAbsent(resourceId, id -> actorSystem.actorOf(
+                Props.create(DriverActor.class, actorSystem, id).withMailbox(DriverMailbox.MAILBOX_ID),
+                DriverActor.actorName(id, incarnation.incrementAndGet())));
     }
 
     @Override
@@ -115,6 +162,20 @@ public class ResourcesService implements RecordListener<ResourcesMateData> {
         ResourcesMateData resourcesMateData = resourcesMateDataMap.get(key);
         if (resourcesMateData == null) return;
         DriverFactory.getResourceDriverByEnum(resourcesMateData.getType()).deleteDriver(resourcesMateData.getResourceID());
+        DriverMailbox.remove(resourcesMateData.getResourceID());
+        DriverBreaker.remove(resourcesMateData.getResourceID());
         resourcesMateDataMap.remove(key);
+        String resourceId = resourcesMateData.getResourceID();
+        ActorRef actorRef = actorRefMap.remove(resourceId);
+        if (actorRef != null) {
+            CompletionStage<Boolean> stop = Patterns.gracefulStop(actorRef, Duration.ofMillis(STOP_TIMEOUT_MS));
+            stopping.put(resourceId, stop);
+            stop.whenComplete((stopped, e) -> {
+                stopping.remove(resourceId, stop);
+                if (e != null) {
+                    Loggers.CONFIG_SERVER.warn("driver actor of resource {} is not stopped in {}ms.", resourceId, STOP_TIMEOUT_MS);
+                }
+            });
+        }
     }
 }
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.monkey.mmq.config.service;
+
+import akka.actor.ActorRef;
+import net.sf.jsqlparser.schema.Table;
+import net.sf.jsqlparser.statement.select.FromItem;
+import net.sf.jsqlparser.statement.select.Join;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import org.monkey.mmq.config.config.Loggers;
+import org.monkey.mmq.config.matedata.RuleEngineMateData;
+import org.monkey.mmq.config.matedata.RuleEngineMessage;
+import org.monkey.mmq.rule.engine.ReactorQL;
+import org.monkey.mmq.rule.engine.utils.SqlUtils;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+
+/**
+ * Routes published messages to the rule actors whose FROM topic filters match the topic.
+ *
+ * <p>The topic filters of every enabled rule are indexed in a topic trie, rebuilt on each rule change and read
+ * without locking on publish. Rules reading from something else than a plain topic receive every message.
+ * The topic is matched first, the message is only built when some rule matched it, and the envelope conditions of
+ * the matched rules, see {@link EnvelopeFilter}, are evaluated before the message is sent to them.
+ *
+ * @author solley
+ */
+@Service
+public class RuleEngineRouter {
+
+    private static final String SEPARATOR = "/";
+
+    private static final String SINGLE_LEVEL = "+";
+
+    private static final String MULTI_LEVEL = "#";
+
+    private final Map<String, Route> routes = new HashMap<>();
+
+    private volatile Node root = new Node();
+
+    private volatile List<Route> catchAll = Collections.emptyList();
+
+    /**
+     * Index the topic filters of a rule, replacing the previous ones of the same rule.
+     *
+     * @param ruleEngineMateData rule
+     * @param actorRef           actor of the rule
+     */
+    public synchronized void register(RuleEngineMateData ruleEngineMateData, ActorRef actorRef) {
+        if (!Boolean.TRUE.equals(ruleEngineMateData.getEnable())) {
+            unregister(ruleEngineMateData.getRuleId());
+            return;
+        }
+        // 先移除原规则的指标, 新规则的同名指标才会重新注册
+        remove(routes.get(ruleEngineMateData.getRuleId()));
+        List<String> topicFilters;
+        EnvelopeFilter envelopeFilter = null;
+        try {
+            PlainSelect select = EnvelopeFilter.parse(ruleEngineMateData.getSql());
+            envelopeFilter = EnvelopeFilter.of(ruleEngineMateData.getRuleId(), select);
+            topicFilters = topicFilters(ReactorQL.builder().select(select).build().metadata().getSql());
+        } catch (Exception e) {
+            Loggers.CONFIG_SERVER.warn("parse sql of rule {} failed, rule is not routed.", ruleEngineMateData.getRuleId(), e);
+            if (envelopeFilter != null) {
+                envelopeFilter.remove();
+            }
+            unregister(ruleEngineMateData.getRuleId());
+            return;
+        }
+        routes.put(ruleEngineMateData.getRuleId(), new Route(topicFilters, envelopeFilter, actorRef));
+        rebuild();
+    }
+
+    /**
+     * Remove the topic filters of a rule.
+     *
+     * @param ruleId rule id
+     */
+    public synchronized void unregister(String ruleId) {
+        Route route = routes.remove(ruleId);
+        if (route != null) {
+            remove(route);
+            rebuild();
+        }
+    }
+
+    /**
+     * Find the rules whose FROM topic filters match a topic, their envelope conditions are not evaluated yet.
+     *
+     * @param topic published topic
+     * @return matched rules, empty if no rule matches
+     */
+    public Matched match(String topic) {
+        Node node = this.root;
+        List<Route> all = this.catchAll;
+        if (node.isEmpty() && all.isEmpty()) {
+            return Matched.EMPTY;
+        }
+        Set<Route> matched = new LinkedHashSet<>(all);
+        match(node, topic.split(SEPARATOR, -1), 0, matched);
+        return matched.isEmpty() ? Matched.EMPTY : new Matched(matched);
+    }
+
+    /**
+     * Whether a topic matches a topic filter.
+     *
+     * @param topic       published topic
+     * @param topicFilter topic filter, may contain {@code +} and {@code #}
+     * @return true if matched
+     */
+    public static boolean matches(String topic, String topicFilter) {
+        String[] levels = topic.split(SEPARATOR, -1);
+        String[] filterLevels = topicFilter.split(SEPARATOR, -1);
+        for (int i = 0; i < filterLevels.length; i++) {
+            if (MULTI_LEVEL.equals(filterLevels[i])) {
+                return true;
+            }
+            if (i >= levels.length || !(SINGLE_LEVEL.equals(filterLevels[i]) || filterLevels[i].equals(levels[i]))) {
+                return false;
+            }
+        }
+        return levels.length == filterLevels.length;
+    }
+
+    private static void match(Node node, String[] levels, int index, Set<Route> matched) {
+        matched.addAll(node.multiLevel);
+        if (index == levels.length) {
+            matched.addAll(node.exact);
+            return;
+        }
+        Node child = node.children.get(levels[index]);
+        if (child != null) {
+            match(child, levels, index + 1, matched);
+        }
+        if (node.singleLevel != null) {
+            match(node.singleLevel, levels, index + 1, matched);
+        }
+    }
+
+    private void rebuild() {
+        Node newRoot = new Node();
+        List<Route> newCatchAll = new ArrayList<>();
+        for (Route route : routes.values()) {
+            if (route.topicFilters == null) {
+                newCatchAll.add(route);
+                continue;
+            }
+            for (String topicFilter : route.topicFilters) {
+                Node node = newRoot;
+                for (String level : topicFilter.split(SEPARATOR, -1)) {
+                    if (MULTI_LEVEL.equals(level)) {
+                        break;
+                    }
+                    node = node.child(level);
+                }
+                if (topicFilter.equals(MULTI_LEVEL) || topicFilter.endsWith(SEPARATOR + MULTI_LEVEL)) {
+                    node.multiLevel.add(route);
+                } else {
+                    node.exact.add(route);
+                }
+            }
+        }
+        this.catchAll = newCatchAll;
+        this.root = newRoot;
+    }
+
+    private static void remove(Route route) {
+        if (route != null && route.envelopeFilter != null) {
+            route.envelopeFilter.remove();
+        }
+    }
+
+    /**
+     * Topic filters of the FROM tables of a rule.
+     *
+     * @param select rule sql
+     * @return topic filters, null if the rule reads from something else than plain topics
+     */
+    private static List<String> topicFilters(PlainSelect select) {
+        List<FromItem> fromItems = new ArrayList<>();
+        fromItems.add(select.getFromItem());
+        if (select.getJoins() != null) {
+            for (Join join : select.getJoins()) {
+                fromItems.add(join.getRightItem());
+            }
+        }
+        List<String> topicFilters = new ArrayList<>();
+        for (FromItem fromItem : fromItems) {
+            if (!(fromItem instanceof Table)) {
+                return null;
+            }
+            topicFilters.add(SqlUtils.getCleanStr(((Table) fromItem).getName()));
+        }
+        return topicFilters;
+    }
+
+    /**
+     * Rules matched by the topic of a message.
+     */
+    public static final class Matched {
+
+        private static final Matched EMPTY = new Matched(Collections.emptySet());
+
+        private final Set<Route> routes;
+
+        private Matched(Set<Route> routes) {
+            this.routes = routes;
+        }
+
+        public boolean isEmpty() {
+            return routes.isEmpty();
+        }
+
+        /**
+         * Find the actors of the matched rules whose envelope conditions accept a message.
+         *
+         * @param message published message
+         * @return rule actors
+         */
+        public Collection<ActorRef> filter(RuleEngineMessage message) {
+            Set<ActorRef> actorRefs = new LinkedHashSet<>(routes.size());
+            for (Route route : routes) {
+                // 消息信息上的条件在解析数据前过滤
+                if (route.envelopeFilter == null || route.envelopeFilter.test(message)) {
+                    actorRefs.add(route.actorRef);
+                }
+            }
+            return actorRefs;
+        }
+    }
+
+    private static final class Route {
+
+        private final List<String> topicFilters;
+
+        private final EnvelopeFilter envelopeFilter;
+
+        private final ActorRef actorRef;
+
+        private Route(List<String> topicFilters, EnvelopeFilter envelopeFilter, ActorRef actorRef) {
+            this.topicFilters = topicFilters;
+            this.envelopeFilter = envelopeFilter;
+            this.actorRef = actorRef;
+        }
+    }
+
+    private static final class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+
+        private final List<Route> exact = new ArrayList<>(1);
+
+        private final List<Route> multiLevel = new ArrayList<>(1);
+
+        private Node singleLevel;
+
+        private Node child(String level) {
+            if (SINGLE_LEVEL.equals(level)) {
+                if (singleLevel == null) {
+                    singleLevel = new Node();
+                }
+                return singleLevel;
+            }
+            return children.computeIfAbsent(level, key -> new Node());
+        }
+
+        private boolean isEmpty() {
+            return children.isEmpty() && singleLevel == null && exact.isEmpty() && multiLevel.isEmpty();
+        }
+    }
+}
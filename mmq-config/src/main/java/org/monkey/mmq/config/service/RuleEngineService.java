@@ -16,10 +16,17 @@
 package org.monkey.mmq.config.service;
 
 import akka.actor.*;
+import akka.pattern.Patterns;
+import akka.routing.Broadcast;
+import akka.routing.ConsistentHashingPool;
+import akka.routing.ConsistentHashingRouter;
 import org.monkey.mmq.config.actor.RuleEngineActor;
+import org.monkey.mmq.config.codec.PayloadDecoder;
+import org.monkey.mmq.config.codec.PayloadDecoders;
 import org.monkey.mmq.config.config.Loggers;
 import org.monkey.mmq.config.matedata.KeyBuilder;
 import org.monkey.mmq.config.matedata.RuleEngineMateData;
+import org.monkey.mmq.config.matedata.RuleEngineMessage;
 import org.monkey.mmq.config.matedata.UpdateRuleEngineMessage;
 import org.monkey.mmq.config.matedata.UtilsAndCommons;
 import org.monkey.mmq.core.consistency.matedata.RecordListener;
@@ -29,9 +36,12 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * RuleEngine Service
@@ -41,13 +51,23 @@ import java.util.concurrent.TimeUnit;
 @Service
 public class RuleEngineService implements RecordListener<RuleEngineMateData> {
 
+    private static final long STOP_TIMEOUT_MS = 30000L;
+
     Map<String, RuleEngineMateData> ruleEngineMateDataMap = new HashMap<>();
 
     Map<String, ActorRef> actorRefMap = new HashMap<>();
 
+    /**
+     * Numbers the rule actors, the name of a stopped actor is released asynchronously and can not be reused.
+     */
+    private final AtomicLong incarnation = new AtomicLong();
+
     @Resource
     ActorSystem actorSystem;
 
+    @Resource
+    RuleEngineRouter ruleEngineRouter;
+
     @Resource(name = "configPersistentConsistencyServiceDelegate")
     private ConsistencyService consistencyService;
 
@@ -99,24 +119,96 @@ public class RuleEngineService implements RecordListener<RuleEngineMateData> {
 
     @Override
     public void onChange(String key, RuleEngineMateData value) throws Exception {
-        ruleEngineMateDataMap.put(key, value);
-        if (actorRefMap.get(value.getRuleId()) == null) {
-            ActorRef actorRef = actorSystem.actorOf((Props.create(RuleEngineActor.class, value, actorSystem)), "rule" + value.getRuleId());
-            actorRefMap.put(value.getRuleId(), actorRef);
+        RuleEngineMateData old = ruleEngineMateDataMap.get(key);
+        ActorRef actorRef = actorRefMap.get(value.getRuleId());
+        if (actorRef == null || old == null || !samePartitioning(old, value)) {
+            // 分区数、分区键、调度器或消息格式变化时重建actor, 新actor接收消息后旧actor处理完已收到的消息再停止
+            ActorRef created = actorSystem.actorOf(props(value),
+                    "rule" + value.getRuleId() + "-" + incarnation.incrementAndGet());
+            actorRefMap.put(value.getRuleId(), created);
+            ruleEngineRouter.register(value, created);
+            if (actorRef != null) {
+                stop(value.getRuleId(), actorRef);
+            }
         } else {
             UpdateRuleEngineMessage updateRuleEngineMessage = new UpdateRuleEngineMessage();
             updateRuleEngineMessage.setRuleEngineMateData(value);
-            actorRefMap.get(value.getRuleId()).tell(updateRuleEngineMessage, ActorRef.noSender());
+            // 分区规则的每个分区都要更新
+            actorRef.tell(isPartitioned(value) ? new Broadcast(updateRuleEngineMessage) : updateRuleEngineMessage,
+                    ActorRef.noSender());
+            ruleEngineRouter.register(value, actorRef);
         }
+        ruleEngineMateDataMap.put(key, value);
+    }
+
+    private void stop(String ruleId, ActorRef actorRef) {
+        Patterns.gracefulStop(actorRef, Duration.ofMillis(STOP_TIMEOUT_MS)).whenComplete((stopped, e) -> {
+            if (e != null) {
+                Loggers.CONFIG_SERVER.warn("previous actor of rule {} is not stopped in {}ms, stop it now.",
+                        ruleId, STOP_TIMEOUT_MS);
+                actorSystem.stop(actorRef);
+            }
+        });
     }
 
     @Override
     public void onDelete(String key) throws Exception {
         RuleEngineMateData ruleEngineMateData = ruleEngineMateDataMap.get(key);
+        ruleEngineRouter.unregister(ruleEngineMateData.getRuleId());
         if (actorRefMap.get(ruleEngineMateData.getRuleId()) != null) {
             actorSystem.stop(actorRefMap.get(ruleEngineMateData.getRuleId()));
             actorRefMap.remove(ruleEngineMateData.getRuleId());
         }
         ruleEngineMateDataMap.remove(key);
     }
+
+    /**
+     * Props of a rule actor. A partitioned rule runs as a consistent hashing pool of rule actors keyed by the
+     * partition key, so messages of the same key are handled in order by the same partition. Windows and other
+     * operator state are kept per partition.
+     *
+     * @param value rule
+     * @return props
+     */
+    private Props props(RuleEngineMateData value) {
+        Props props = Props.create(RuleEngineActor.class, value, actorSystem);
+        if (value.getDispatcher() != null && !value.getDispatcher().isEmpty()) {
+            props = props.withDispatcher(value.getDispatcher());
+        }
+        if (!isPartitioned(value)) {
+            return props;
+        }
+        String partitionKey = value.getPartitionKey();
+        // 只解析分区键
+        PayloadDecoder decoder = PayloadDecoders.get(value, partitionKey == null ? null : Collections.singleton(partitionKey));
+        return new ConsistentHashingPool(value.getPartitions())
+                .withHashMapper((ConsistentHashingRouter.ConsistentHashMapper) message -> partitionKey(message, partitionKey, decoder))
+                .props(props);
+    }
+
+    private static Object partitionKey(Object message, String partitionKey, PayloadDecoder decoder) {
+        if (!(message instanceof RuleEngineMessage)) {
+            return message;
+        }
+        RuleEngineMessage ruleEngineMessage = (RuleEngineMessage) message;
+        if (partitionKey != null && ruleEngineMessage.getPayload(decoder) != null) {
+            Object key = ruleEngineMessage.getPayload(decoder).get(partitionKey);
+            if (key != null) {
+                return String.valueOf(key);
+            }
+        }
+        return ruleEngineMessage.getMessage().getClientId();
+    }
+
+    private static boolean isPartitioned(RuleEngineMateData value) {
+        return value.getPartitions() != null && value.getPartitions() > 1;
+    }
+
+    private static boolean samePartitioning(RuleEngineMateData old, RuleEngineMateData value) {
+        return Objects.equals(old.getPartitions(), value.getPartitions())
+                && Objects.equals(old.getPartitionKey(), value.getPartitionKey())
+                && Objects.equals(old.getDispatcher(), value.getDispatcher())
+                && Objects.equals(old.getPayloadFormat(), value.getPayloadFormat())
+                && Objects.equals(old.getProtobufMessage(), value.getProtobufMessage());
+    }
 }
@@ -36,6 +36,8 @@ import org.monkey.mmq.core.exception.KvStorageException;
 import org.monkey.mmq.core.exception.MmqException;
 import org.monkey.mmq.core.exception.runtime.MmqRuntimeException;
 import org.monkey.mmq.core.notify.NotifyCenter;
+import org.monkey.mmq.core.storage.KvNamespace;
+import org.monkey.mmq.core.storage.kv.KvIterator;
 import org.monkey.mmq.core.storage.kv.KvStorage;
 import org.monkey.mmq.core.utils.ByteUtils;
 import org.monkey.mmq.core.utils.Loggers;
@@ -106,7 +108,12 @@ public abstract class BasePersistentServiceProcessor extends RequestProcessor4CP
     protected final int queueMaxSize = 16384;
     
     public BasePersistentServiceProcessor(String kvStorageBaseDir, String raftGroup, Function<String, Class<? extends Record>> getClassOfRecordFromKey) throws Exception {
-        this.kvStorage = new MmqKvStorage(kvStorageBaseDir);
+        this(kvStorageBaseDir, Collections.emptyList(), raftGroup, getClassOfRecordFromKey);
+    }
+    
+    public BasePersistentServiceProcessor(String kvStorageBaseDir, List<KvNamespace> namespaces, String raftGroup,
+            Function<String, Class<? extends Record>> getClassOfRecordFromKey) throws Exception {
+        this.kvStorage = new MmqKvStorage(kvStorageBaseDir, namespaces);
         this.raftGroup = raftGroup;
         this.serializer = SerializeFactory.getSerializer("JSON");
         this.getClassOfRecordFromKey = getClassOfRecordFromKey;
@@ -227,14 +234,20 @@ public abstract class BasePersistentServiceProcessor extends RequestProcessor4CP
     
     /**
      * This notify should only notify once during startup.
+     *
+     * @param prefix   the key prefix the listener registered with
+     * @param listener {@link RecordListener}
      */
-    protected void notifierAllServiceMeta(RecordListener listener) throws MmqException {
-        for (byte[] each : kvStorage.allKeys()) {
-            String key = new String(each);
-            if (listener.interests(key)) {
-                Datum datum = get(key);
-                if (null != datum) {
-                    notifierDatum(key, datum, listener);
+    protected void notifierAllServiceMeta(String prefix, RecordListener listener) throws MmqException {
+        try (KvIterator iterator = kvStorage.scan(ByteUtils.toBytes(prefix), null, 0)) {
+            while (iterator.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = iterator.next();
+                String key = new String(entry.getKey());
+                if (listener.interests(key)) {
+                    Datum datum = serializer.deserialize(entry.getValue(), getDatumTypeFromKey(key));
+                    if (null != datum) {
+                        notifierDatum(key, datum, listener);
+                    }
                 }
             }
         }
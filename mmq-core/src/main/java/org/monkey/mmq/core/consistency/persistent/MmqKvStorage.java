@@ -16,41 +16,62 @@
 
 package org.monkey.mmq.core.consistency.persistent;
 
-import com.google.common.collect.Lists;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.ImmutableTag;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tag;
 import org.monkey.mmq.core.exception.ErrorCode;
 import org.monkey.mmq.core.exception.KvStorageException;
-import org.monkey.mmq.core.exception.MmqException;
-import org.monkey.mmq.core.exception.runtime.MmqRuntimeException;
+import org.monkey.mmq.core.storage.KvNamespace;
 import org.monkey.mmq.core.storage.StorageFactory;
+import org.monkey.mmq.core.storage.kv.KvIterator;
 import org.monkey.mmq.core.storage.kv.KvStorage;
-import org.monkey.mmq.core.storage.kv.MemoryKvStorage;
+import org.monkey.mmq.core.storage.kv.MergedKvIterator;
+import org.monkey.mmq.core.utils.ByteUtils;
 import org.monkey.mmq.core.utils.Loggers;
-import org.monkey.mmq.core.utils.StringUtils;
 import org.monkey.mmq.core.utils.TimerContext;
 
-import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
 
 /**
  * Kv storage implementation for mqtt.
  *
+ * <p>Records are routed by key prefix to the storage of their {@link KvNamespace}, records of no namespace
+ * stay in the shared RocksDB under {@code baseDir}. Each namespace has its own read cache.
+ *
  * @author solley
  */
-public class MmqKvStorage extends MemoryKvStorage {
+public class MmqKvStorage implements KvStorage {
 
     private static final String LOAD_SNAPSHOT = MmqKvStorage.class.getSimpleName() + ".snapshotLoad";
 
     private static final String LABEL = "mqtt-persistent";
 
+    private static final String NAMESPACE_SNAPSHOT_DIR = "namespace";
+
+    private static final int MIGRATE_BATCH_SIZE = 1000;
+
     private final String baseDir;
 
-    private final KvStorage baseDirStorage;
+    private final Namespace defaultNamespace;
 
-    private final Map<String, KvStorage> mqttKvStorage;
+    /**
+     * Sorted by prefix length in descending order, so the longest matching prefix wins.
+     */
+    private final List<Namespace> namespaces;
 
     private boolean isSnapshotLoad = false;
 
@@ -59,32 +80,50 @@ public class MmqKvStorage extends MemoryKvStorage {
     }
 
     public MmqKvStorage(final String baseDir) throws Exception {
-        this.baseDir = baseDir;
-        this.baseDirStorage = StorageFactory.createKvStorage(KvType.RocksDB, LABEL, baseDir);
-        this.mqttKvStorage = new ConcurrentHashMap<>(16);
+        this(baseDir, Collections.emptyList());
     }
 
+    public MmqKvStorage(final String baseDir, final List<KvNamespace> configs) throws Exception {
+        this.baseDir = baseDir;
+        this.defaultNamespace = new Namespace(
+                new KvNamespace("default", "", KvType.RocksDB, KvNamespace.defaultCacheSize(), null),
+                StorageFactory.createKvStorage(KvType.RocksDB, LABEL, baseDir), baseDir);
+        List<Namespace> namespaces = new ArrayList<>(configs.size());
+        for (KvNamespace each : configs) {
+            String namespacePath = namespacePath(each.getName());
+            Namespace namespace = new Namespace(each, StorageFactory.createKvStorage(each, LABEL, namespacePath),
+                    namespacePath);
+            migrateFromDefault(namespace);
+            namespaces.add(namespace);
+            Loggers.RAFT.info("kv namespace {} stored at {}", each, namespacePath);
+        }
+        namespaces.sort(Comparator.comparingInt((Namespace ns) -> ns.prefix.length).reversed());
+        this.namespaces = namespaces;
+    }
 
-    
     @Override
     public byte[] get(byte[] key) throws KvStorageException {
-        // First get the data from the memory Cache
-        byte[] result = super.get(key);
-        if (null == result) {
-            try {
-                KvStorage storage = createActualStorageIfAbsent(key);
-                result = null == storage ? null : storage.get(key);
-                if (null != result) {
-                    super.put(key, result);
-                }
-            } catch (Exception e) {
-                throw new KvStorageException(ErrorCode.KVStorageWriteError.getCode(),
-                        "Get data failed, key: " + new String(key) + ", detail: " + e.getMessage(), e);
+        Namespace namespace = route(key);
+        namespace.reads.increment();
+        if (null != namespace.cache) {
+            byte[] result = namespace.cache.getIfPresent(ByteBuffer.wrap(key));
+            if (null != result) {
+                return result;
             }
         }
+        byte[] result;
+        try {
+            result = namespace.storage.get(key);
+        } catch (Exception e) {
+            throw new KvStorageException(ErrorCode.KVStorageReadError,
+                    "Get data failed, key: " + new String(key) + ", detail: " + e.getMessage(), e);
+        }
+        if (null != result && null != namespace.cache) {
+            namespace.cache.put(ByteBuffer.wrap(key), result);
+        }
         return result;
     }
-    
+
     @Override
     public Map<byte[], byte[]> batchGet(List<byte[]> keys) throws KvStorageException {
         Map<byte[], byte[]> result = new HashMap<>(keys.size());
@@ -96,20 +135,23 @@ public class MmqKvStorage extends MemoryKvStorage {
         }
         return result;
     }
-    
+
     @Override
     public void put(byte[] key, byte[] value) throws KvStorageException {
+        Namespace namespace = route(key);
         try {
-            KvStorage storage = createActualStorageIfAbsent(key);
-            storage.put(key, value);
+            namespace.storage.put(key, value);
         } catch (Exception e) {
-            throw new KvStorageException(ErrorCode.KVStorageWriteError.getCode(),
+            throw new KvStorageException(ErrorCode.KVStorageWriteError,
                     "Put data failed, key: " + new String(key) + ", detail: " + e.getMessage(), e);
         }
-        // after actual storage put success, put it in memory, memory put should success all the time
-        super.put(key, value);
+        namespace.writes.increment();
+        // after actual storage put success, put it in cache, cache put should success all the time
+        if (null != namespace.cache) {
+            namespace.cache.put(ByteBuffer.wrap(key), value);
+        }
     }
-    
+
     @Override
     public void batchPut(List<byte[]> keys, List<byte[]> values) throws KvStorageException {
         if (keys.size() != values.size()) {
@@ -121,118 +163,245 @@ public class MmqKvStorage extends MemoryKvStorage {
             put(keys.get(i), values.get(i));
         }
     }
-    
+
     @Override
     public void delete(byte[] key) throws KvStorageException {
+        Namespace namespace = route(key);
         try {
-            KvStorage storage = createActualStorageIfAbsent(key);
-            if (null != storage) {
-                storage.delete(key);
-            }
+            namespace.storage.delete(key);
         } catch (Exception e) {
-            throw new KvStorageException(ErrorCode.KVStorageDeleteError.getCode(),
+            throw new KvStorageException(ErrorCode.KVStorageDeleteError,
                     "Delete data failed, key: " + new String(key) + ", detail: " + e.getMessage(), e);
         }
-        // after actual storage delete success, put it in memory, memory delete should success all the time
-        super.delete(key);
+        namespace.deletes.increment();
+        if (null != namespace.cache) {
+            namespace.cache.invalidate(ByteBuffer.wrap(key));
+        }
     }
-    
+
     @Override
     public void batchDelete(List<byte[]> keys) throws KvStorageException {
         for (byte[] each : keys) {
             delete(each);
         }
     }
-    
+
+    /**
+     * The shared storage is saved to {@code backupPath} as before, every namespace to
+     * {@code backupPath/namespace/<name>}.
+     */
     @Override
     public void doSnapshot(String backupPath) throws KvStorageException {
-        baseDirStorage.doSnapshot(backupPath);
+        defaultNamespace.storage.doSnapshot(backupPath);
+        for (Namespace each : namespaces) {
+            each.storage.doSnapshot(Paths.get(backupPath, NAMESPACE_SNAPSHOT_DIR, each.config.getName()).toString());
+        }
     }
-    
+
     @Override
     public void snapshotLoad(String path) throws KvStorageException {
         TimerContext.start(LOAD_SNAPSHOT);
         try {
-            baseDirStorage.snapshotLoad(path);
-            loadSnapshotFromActualStorage(baseDirStorage);
-            loadNamespaceSnapshot();
+            for (Namespace each : namespaces) {
+                Path namespacePath = Paths.get(path, NAMESPACE_SNAPSHOT_DIR, each.config.getName());
+                // The snapshot was taken before the namespace was configured or by a peer without it
+                if (Files.exists(namespacePath)) {
+                    each.storage.snapshotLoad(namespacePath.toString());
+                } else {
+                    clear(each);
+                }
+                each.invalidateCache();
+            }
+            defaultNamespace.storage.snapshotLoad(path);
+            defaultNamespace.invalidateCache();
+            for (Namespace each : namespaces) {
+                migrateFromDefault(each);
+            }
             this.isSnapshotLoad = true;
         } finally {
             TimerContext.end(LOAD_SNAPSHOT, Loggers.RAFT);
         }
     }
-    
-    private void loadSnapshotFromActualStorage(KvStorage actualStorage) throws KvStorageException {
-        for (byte[] each : actualStorage.allKeys()) {
-            byte[] datum = actualStorage.get(each);
-            super.put(each, datum);
+
+    @Override
+    public List<byte[]> allKeys() throws KvStorageException {
+        List<byte[]> result = new ArrayList<>(defaultNamespace.storage.allKeys());
+        for (Namespace each : namespaces) {
+            result.addAll(each.storage.allKeys());
         }
+        return result;
     }
-    
-    private void loadNamespaceSnapshot() {
-        for (String each : getAllNamespaceDirs()) {
-            try {
-                KvStorage kvStorage = createActualStorageIfAbsent(each);
-                loadSnapshotFromActualStorage(kvStorage);
-            } catch (Exception e) {
-                Loggers.RAFT.error("load snapshot for namespace {} failed", each, e);
-            }
+
+    @Override
+    public KvIterator scan(byte[] prefix, byte[] startKey, int limit) throws KvStorageException {
+        Namespace namespace = route(prefix);
+        if (namespace != defaultNamespace) {
+            return namespace.storage.scan(prefix, startKey, limit);
         }
-    }
-    
-    private List<String> getAllNamespaceDirs() {
-        File[] files = new File(baseDir).listFiles();
-        List<String> result = Collections.emptyList();
-        if (null != files) {
-            result = new ArrayList<>(files.length);
-            for (File each : files) {
-                if (each.isDirectory()) {
-                    result.add(each.getName());
+        // The prefix may cover the shared storage as well as several namespaces
+        List<KvIterator> iterators = new ArrayList<>(namespaces.size() + 1);
+        try {
+            iterators.add(defaultNamespace.storage.scan(prefix, startKey, limit));
+            for (Namespace each : namespaces) {
+                if (ByteUtils.startsWith(each.prefix, prefix)) {
+                    iterators.add(each.storage.scan(prefix, startKey, limit));
                 }
             }
+        } catch (KvStorageException | RuntimeException e) {
+            iterators.forEach(KvIterator::close);
+            throw e;
         }
-        return Collections.unmodifiableList(result);
+        return iterators.size() == 1 ? iterators.get(0) : new MergedKvIterator(iterators, limit);
     }
-    
-    @Override
-    public List<byte[]> allKeys() {
-        try {
-            KvStorage storage = createActualStorageIfAbsent(org.apache.commons.lang3.StringUtils.EMPTY);
-            return storage.allKeys();
-        } catch (Exception e) {
-            throw new MmqRuntimeException(MmqException.SERVER_ERROR, e);
+
+    /**
+     * Statistics of every namespace, keyed by namespace name.
+     *
+     * @return reads, cache hits, writes, deletes and cached values of each namespace
+     */
+    public Map<String, Map<String, Long>> getNamespaceStats() {
+        Map<String, Map<String, Long>> result = new LinkedHashMap<>();
+        result.put(defaultNamespace.config.getName(), defaultNamespace.stats());
+        for (Namespace each : namespaces) {
+            result.put(each.config.getName(), each.stats());
         }
+        return result;
     }
-    
+
     @Override
     public void shutdown() {
-        baseDirStorage.shutdown();
-        for (KvStorage each : mqttKvStorage.values()) {
-            each.shutdown();
-        }
-        mqttKvStorage.clear();
-        super.shutdown();
-    }
-    
-    private KvStorage createActualStorageIfAbsent(byte[] key) throws Exception {
-        String keyString = new String(key);
-        return createActualStorageIfAbsent(org.apache.commons.lang3.StringUtils.EMPTY);
-    }
-    
-    private KvStorage createActualStorageIfAbsent(String mqtt) throws Exception {
-        if (StringUtils.isBlank(mqtt)) {
-            return baseDirStorage;
-        }
-        
-        Function<String, KvStorage> kvStorageBuilder = key -> {
-            try {
-                String namespacePath = Paths.get(baseDir, key).toString();
-                return StorageFactory.createKvStorage(KvType.RocksDB, LABEL, namespacePath);
-            } catch (Exception e) {
-                throw new MmqRuntimeException(MmqException.SERVER_ERROR, e);
+        defaultNamespace.storage.shutdown();
+        defaultNamespace.invalidateCache();
+        for (Namespace each : namespaces) {
+            each.storage.shutdown();
+            each.invalidateCache();
+        }
+    }
+
+    private String namespacePath(String name) {
+        return baseDir + "-" + name;
+    }
+
+    private Namespace route(byte[] key) {
+        if (null != key) {
+            for (Namespace each : namespaces) {
+                if (ByteUtils.startsWith(key, each.prefix)) {
+                    return each;
+                }
+            }
+        }
+        return defaultNamespace;
+    }
+
+    /**
+     * Delete every record of the namespace.
+     */
+    private void clear(Namespace namespace) throws KvStorageException {
+        while (true) {
+            List<byte[]> keys = new ArrayList<>(MIGRATE_BATCH_SIZE);
+            try (KvIterator iterator = namespace.storage.scan(namespace.prefix, null, MIGRATE_BATCH_SIZE)) {
+                while (iterator.hasNext()) {
+                    keys.add(iterator.next().getKey());
+                }
+            }
+            if (keys.isEmpty()) {
+                return;
             }
-        };
-        mqttKvStorage.computeIfAbsent(mqtt, kvStorageBuilder);
-        return mqttKvStorage.get(mqtt);
+            namespace.storage.batchDelete(keys);
+        }
+    }
+
+    /**
+     * Move the records written before the namespace was configured, or loaded from a snapshot taken without it,
+     * out of the shared storage.
+     */
+    private void migrateFromDefault(Namespace namespace) throws KvStorageException {
+        long moved = 0;
+        while (true) {
+            List<byte[]> keys = new ArrayList<>(MIGRATE_BATCH_SIZE);
+            List<byte[]> values = new ArrayList<>(MIGRATE_BATCH_SIZE);
+            try (KvIterator iterator = defaultNamespace.storage.scan(namespace.prefix, null, MIGRATE_BATCH_SIZE)) {
+                while (iterator.hasNext()) {
+                    Map.Entry<byte[], byte[]> entry = iterator.next();
+                    keys.add(entry.getKey());
+                    values.add(entry.getValue());
+                }
+            }
+            if (keys.isEmpty()) {
+                break;
+            }
+            namespace.storage.batchPut(keys, values);
+            defaultNamespace.storage.batchDelete(keys);
+            moved += keys.size();
+        }
+        if (moved > 0) {
+            Loggers.RAFT.info("moved {} records of kv namespace {} out of the shared storage", moved,
+                    namespace.config.getName());
+        }
+    }
+
+    private static final class Namespace {
+
+        private final KvNamespace config;
+
+        private final byte[] prefix;
+
+        private final KvStorage storage;
+
+        private final Cache<ByteBuffer, byte[]> cache;
+
+        private final LongAdder reads = new LongAdder();
+
+        private final LongAdder writes = new LongAdder();
+
+        private final LongAdder deletes = new LongAdder();
+
+        private Namespace(KvNamespace config, KvStorage storage, String path) {
+            this.config = config;
+            this.prefix = ByteUtils.toBytes(config.getPrefix());
+            this.storage = storage;
+            this.cache = buildCache(config.getCacheSize());
+            gauge(path, "reads", ns -> ns.reads.sum());
+            gauge(path, "writes", ns -> ns.writes.sum());
+            gauge(path, "deletes", ns -> ns.deletes.sum());
+            gauge(path, "cacheHits", ns -> null == ns.cache ? 0 : ns.cache.stats().hitCount());
+            gauge(path, "cacheSize", ns -> null == ns.cache ? 0 : ns.cache.size());
+        }
+
+        private static Cache<ByteBuffer, byte[]> buildCache(long cacheSize) {
+            if (cacheSize == 0) {
+                return null;
+            }
+            CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().recordStats();
+            if (cacheSize > 0) {
+                builder.maximumSize(cacheSize);
+            }
+            return builder.build();
+        }
+
+        private void gauge(String path, String name, ToDoubleFunction<Namespace> function) {
+            List<Tag> tags = new ArrayList<>();
+            tags.add(new ImmutableTag("module", "storage"));
+            tags.add(new ImmutableTag("name", name));
+            tags.add(new ImmutableTag("namespace", config.getName()));
+            tags.add(new ImmutableTag("path", path));
+            Metrics.gauge("mmq_monitor", tags, this, function);
+        }
+
+        private void invalidateCache() {
+            if (null != cache) {
+                cache.invalidateAll();
+            }
+        }
+
+        private Map<String, Long> stats() {
+            Map<String, Long> result = new LinkedHashMap<>();
+            result.put("reads", reads.sum());
+            result.put("cacheHits", null == cache ? 0L : cache.stats().hitCount());
+            result.put("writes", writes.sum());
+            result.put("deletes", deletes.sum());
+            result.put("cacheSize", null == cache ? 0L : cache.size());
+            return result;
+        }
     }
 }
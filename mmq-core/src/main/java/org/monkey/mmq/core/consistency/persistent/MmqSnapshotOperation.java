@@ -26,8 +26,18 @@ import org.monkey.mmq.core.utils.DiskUtils;
 import org.monkey.mmq.core.utils.Loggers;
 import org.monkey.mmq.core.utils.Objects;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.Checksum;
 
 /**
@@ -60,35 +70,77 @@ public class MmqSnapshotOperation extends AbstractSnapshotOperation {
         DiskUtils.forceMkdir(parentPath);
         
         storage.doSnapshot(parentPath);
-        final String outputFile = Paths.get(writePath, snapshotArchive).toString();
-        final Checksum checksum = new CRC64();
-        DiskUtils.compress(writePath, snapshotDir, outputFile, checksum);
-        DiskUtils.deleteDirectory(parentPath);
-        
-        final LocalFileMeta meta = new LocalFileMeta();
-        meta.append(CHECK_SUM_KEY, Long.toHexString(checksum.getValue()));
-        return writer.addFile(snapshotArchive, meta);
+        // Every file is registered on its own so jraft transfers them in chunks, no archive is built
+        for (Path each : listSnapshotFiles(parentPath)) {
+            final LocalFileMeta meta = new LocalFileMeta();
+            meta.append(CHECK_SUM_KEY, checksum(each));
+            if (!writer.addFile(toFileName(writePath, each), meta)) {
+                return false;
+            }
+        }
+        return true;
     }
     
     @Override
     protected boolean readSnapshot(Reader reader) throws Exception {
+        final long start = System.currentTimeMillis();
         final String readerPath = reader.getPath();
-        final String sourceFile = Paths.get(readerPath, snapshotArchive).toString();
-        final Checksum checksum = new CRC64();
-        DiskUtils.decompress(sourceFile, readerPath, checksum);
-        LocalFileMeta fileMeta = reader.getFileMeta(snapshotArchive);
-        if (fileMeta.getFileMeta().containsKey(CHECK_SUM_KEY)) {
-            if (!Objects.equals(Long.toHexString(checksum.getValue()), fileMeta.get(CHECK_SUM_KEY))) {
-                throw new IllegalArgumentException("Snapshot checksum failed");
+        final String loadPath = Paths.get(readerPath, snapshotDir).toString();
+        final LocalFileMeta archiveMeta = reader.getFileMeta(snapshotArchive);
+        if (null != archiveMeta) {
+            // Snapshot of an older version, the data directory is zipped into one archive
+            final Checksum checksum = new CRC64();
+            DiskUtils.decompress(Paths.get(readerPath, snapshotArchive).toString(), readerPath, checksum);
+            if (archiveMeta.getFileMeta().containsKey(CHECK_SUM_KEY)) {
+                if (!Objects.equals(Long.toHexString(checksum.getValue()), archiveMeta.get(CHECK_SUM_KEY))) {
+                    throw new IllegalArgumentException("Snapshot checksum failed");
+                }
             }
+            storage.snapshotLoad(loadPath);
+            DiskUtils.deleteDirectory(loadPath);
+            Loggers.RAFT.info("snapshot load from archive : {}, cost {} ms", loadPath,
+                    System.currentTimeMillis() - start);
+            return true;
         }
-        final String loadPath = Paths.get(readerPath, snapshotDir).toString();
+        
+        long bytes = 0;
+        for (Map.Entry<String, LocalFileMeta> each : reader.listFiles().entrySet()) {
+            final Path file = Paths.get(readerPath, each.getKey());
+            bytes += Files.size(file);
+            if (each.getValue().getFileMeta().containsKey(CHECK_SUM_KEY)) {
+                if (!Objects.equals(checksum(file), each.getValue().get(CHECK_SUM_KEY))) {
+                    throw new IllegalArgumentException("Snapshot checksum failed, file : " + each.getKey());
+                }
+            }
+        }
+        // The files are the snapshot of this node from now on, storages load them without removing them
         storage.snapshotLoad(loadPath);
-        Loggers.RAFT.info("snapshot load from : {}", loadPath);
-        DiskUtils.deleteDirectory(loadPath);
+        Loggers.RAFT.info("snapshot load from : {}, files {}, bytes {}, cost {} ms", loadPath,
+                reader.listFiles().size(), bytes, System.currentTimeMillis() - start);
         return true;
     }
     
+    private static List<Path> listSnapshotFiles(String parentPath) throws IOException {
+        try (Stream<Path> paths = Files.walk(Paths.get(parentPath))) {
+            return paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+    
+    private static String toFileName(String writePath, Path file) {
+        return Paths.get(writePath).relativize(file).toString().replace(File.separatorChar, '/');
+    }
+    
+    private static String checksum(Path file) throws IOException {
+        final Checksum checksum = new CRC64();
+        final byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new CheckedInputStream(Files.newInputStream(file), checksum)) {
+            while (in.read(buffer) >= 0) {
+                // read through to update the checksum
+            }
+        }
+        return Long.toHexString(checksum.getValue());
+    }
+    
     @Override
     protected String getSnapshotSaveTag() {
         return NAMING_SNAPSHOT_SAVE;
@@ -32,6 +32,7 @@ import org.monkey.mmq.core.entity.Response;
 import org.monkey.mmq.core.entity.WriteRequest;
 import org.monkey.mmq.core.exception.ErrorCode;
 import org.monkey.mmq.core.exception.MmqException;
+import org.monkey.mmq.core.storage.KvNamespace;
 import org.monkey.mmq.core.utils.ByteUtils;
 import org.monkey.mmq.core.utils.Loggers;
 import org.monkey.mmq.core.utils.StringUtils;
@@ -68,7 +69,14 @@ public class PersistentServiceProcessor extends BasePersistentServiceProcessor {
                                       String raftGroup,
                                       Function<String, Class<? extends Record>> getClassOfRecordFromKey)
             throws Exception {
-        super(kvStorageBaseDir, raftGroup, getClassOfRecordFromKey);
+        this(protocolManager, kvStorageBaseDir, Collections.emptyList(), raftGroup, getClassOfRecordFromKey);
+    }
+    
+    public PersistentServiceProcessor(ProtocolManager protocolManager, String kvStorageBaseDir,
+                                      List<KvNamespace> namespaces, String raftGroup,
+                                      Function<String, Class<? extends Record>> getClassOfRecordFromKey)
+            throws Exception {
+        super(kvStorageBaseDir, namespaces, raftGroup, getClassOfRecordFromKey);
         this.raftGroup = raftGroup;
         this.protocol = protocolManager.getCpProtocol();
         this.getClassOfRecordFromKey = getClassOfRecordFromKey;
@@ -153,7 +161,7 @@ public class PersistentServiceProcessor extends BasePersistentServiceProcessor {
     @Override
     public void listen(String key, RecordListener listener) throws MmqException {
         notifier.registerListener(key, listener);
-        notifierAllServiceMeta(listener);
+        notifierAllServiceMeta(key, listener);
     }
     
     @Override
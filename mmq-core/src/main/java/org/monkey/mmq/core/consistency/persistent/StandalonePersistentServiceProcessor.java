@@ -28,6 +28,7 @@ import org.monkey.mmq.core.entity.Response;
 import org.monkey.mmq.core.entity.WriteRequest;
 import org.monkey.mmq.core.exception.ErrorCode;
 import org.monkey.mmq.core.exception.MmqException;
+import org.monkey.mmq.core.storage.KvNamespace;
 import org.monkey.mmq.core.utils.ByteUtils;
 
 
@@ -51,7 +52,12 @@ public class StandalonePersistentServiceProcessor extends BasePersistentServiceP
 
     public StandalonePersistentServiceProcessor(String kvStorageBaseDir, String raftGroup,
                                                 Function<String, Class<? extends Record>> getClassOfRecordFromKey) throws Exception {
-        super(kvStorageBaseDir, raftGroup, getClassOfRecordFromKey);
+        this(kvStorageBaseDir, Collections.emptyList(), raftGroup, getClassOfRecordFromKey);
+    }
+    
+    public StandalonePersistentServiceProcessor(String kvStorageBaseDir, List<KvNamespace> namespaces, String raftGroup,
+                                                Function<String, Class<? extends Record>> getClassOfRecordFromKey) throws Exception {
+        super(kvStorageBaseDir, namespaces, raftGroup, getClassOfRecordFromKey);
         super.afterConstruct();
         this.raftGroup = raftGroup;
         this.getClassOfRecordFromKey = getClassOfRecordFromKey;
@@ -110,7 +116,7 @@ public class StandalonePersistentServiceProcessor extends BasePersistentServiceP
     @Override
     public void listen(String key, RecordListener listener) throws MmqException {
         notifier.registerListener(key, listener);
-        notifierAllServiceMeta(listener);
+        notifierAllServiceMeta(key, listener);
     }
     
     @Override
@@ -32,6 +32,7 @@ import com.alipay.sofa.jraft.rpc.InvokeCallback;
 import com.alipay.sofa.jraft.rpc.RpcProcessor;
 import com.alipay.sofa.jraft.rpc.RpcServer;
 import com.alipay.sofa.jraft.rpc.impl.cli.CliClientServiceImpl;
+import com.alipay.sofa.jraft.storage.snapshot.ThroughputSnapshotThrottle;
 import com.alipay.sofa.jraft.util.BytesUtil;
 import com.alipay.sofa.jraft.util.Endpoint;
 import com.google.common.base.Joiner;
@@ -110,6 +111,10 @@ public class JRaftServer {
     
     private NodeOptions nodeOptions;
     
+    private MmqJRaftServiceFactory serviceFactory;
+    
+    private long snapshotThrottleBytes;
+    
     private Serializer serializer;
     
     private Collection<RequestProcessor4CP> processors = Collections.synchronizedSet(new HashSet<>());
@@ -162,6 +167,11 @@ public class JRaftServer {
         nodeOptions.setElectionTimeoutMs(electionTimeout);
         RaftOptions raftOptions = RaftOptionsBuilder.initRaftOptions(raftConfig);
         nodeOptions.setRaftOptions(raftOptions);
+        serviceFactory = MmqJRaftServiceFactory.create(raftConfig, raftOptions);
+        
+        // Cap the bandwidth of snapshot installs so a lagging node does not saturate disk and network
+        snapshotThrottleBytes = ConvertUtils.toLong(raftConfig.getVal(RaftSysConstants.SNAPSHOT_THROTTLE_BYTES_PER_SEC),
+                RaftSysConstants.DEFAULT_SNAPSHOT_THROTTLE_BYTES_PER_SEC);
         // open jraft node metrics record function
         nodeOptions.setEnableMetrics(true);
         
@@ -220,7 +230,11 @@ public class JRaftServer {
             // Ensure that each Raft Group has its own configuration and NodeOptions
             Configuration configuration = conf.copy();
             NodeOptions copy = nodeOptions.copy();
-            JRaftUtils.initDirectory(parentPath, groupName, copy);
+            JRaftUtils.initDirectory(raftConfig, parentPath, groupName, copy);
+            copy.setServiceFactory(serviceFactory);
+            if (snapshotThrottleBytes > 0) {
+                copy.setSnapshotThrottle(new ThroughputSnapshotThrottle(snapshotThrottleBytes, 1));
+            }
             
             // Here, the LogProcessor is passed into StateMachine, and when the StateMachine
             // triggers onApply, the onApply of the LogProcessor is actually called
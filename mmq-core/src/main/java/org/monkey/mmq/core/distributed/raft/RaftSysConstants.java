@@ -104,6 +104,21 @@ public final class RaftSysConstants {
      */
     public static final boolean DEFAULT_SYNC_META = false;
     
+    /**
+     * Group commit of the raft log is off by default, every append calls fsync
+     */
+    public static final int DEFAULT_SYNC_GROUP_COMMIT_INTERVAL_MS = 0;
+    
+    /**
+     * A group commit fsync starts at once when 256 entries are pending
+     */
+    public static final int DEFAULT_SYNC_GROUP_COMMIT_MAX_ENTRIES = 256;
+    
+    /**
+     * Snapshot transfer between nodes is not throttled by default
+     */
+    public static final long DEFAULT_SNAPSHOT_THROTTLE_BYTES_PER_SEC = 0L;
+    
     /**
      * Internal disruptor buffer size, need to be appropriately adjusted for high write throughput applications, default
      * 16384 内部 disruptor buffer 大小，如果是写入吞吐量较高的应用，需要适当调高该值，默认 16384
@@ -211,6 +226,37 @@ public final class RaftSysConstants {
      */
     public static final String SYNC_META = "sync_meta";
     
+    /**
+     * Group commit of the raft log, fsync at most once per this many milliseconds, 0 means fsync every append
+     */
+    public static final String SYNC_GROUP_COMMIT_INTERVAL_MS = "sync_group_commit_interval_ms";
+    
+    /**
+     * Group commit of the raft log, fsync at once when this many entries are pending
+     */
+    public static final String SYNC_GROUP_COMMIT_MAX_ENTRIES = "sync_group_commit_max_entries";
+    
+    /**
+     * Root directory of the raft logs, default is ${mmq.home}/data/protocol/raft
+     */
+    public static final String LOG_DIR = "log_dir";
+    
+    /**
+     * Root directory of the raft snapshots, default is ${mmq.home}/data/protocol/raft
+     */
+    public static final String SNAPSHOT_DIR = "snapshot_dir";
+    
+    /**
+     * Root directory of the raft meta information, default is ${mmq.home}/data/protocol/raft
+     */
+    public static final String META_DATA_DIR = "meta_data_dir";
+    
+    /**
+     * Bandwidth cap of the snapshot transfer between nodes in bytes per second, 0 means unlimited. The chunk size is
+     * {@link #MAX_BYTE_COUNT_PER_RPC}
+     */
+    public static final String SNAPSHOT_THROTTLE_BYTES_PER_SEC = "snapshot_throttle_bytes_per_sec";
+    
     /**
      * Internal disruptor buffer size. For applications with high write throughput, you need to increase this value. The
      * default value is 16384.
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.core.distributed.raft.utils;
+
+import com.alipay.sofa.jraft.entity.LogEntry;
+import com.alipay.sofa.jraft.option.LogStorageOptions;
+import com.alipay.sofa.jraft.storage.LogStorage;
+import com.alipay.sofa.jraft.storage.impl.RocksDBLogStorage;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.List;
+
+/**
+ * {@link LogStorage} acknowledging appends once a {@link GroupCommitter} fsync covers them.
+ *
+ * <p>The delegate is a {@link RocksDBLogStorage} writing without sync, the write-ahead log of its RocksDB is
+ * synced with {@link RocksDB#syncWal()} in groups instead of once per append.
+ *
+ * @author solley
+ */
+public class GroupCommitLogStorage implements LogStorage, GroupCommitter.SyncTarget {
+
+    private static final Field DB_FIELD;
+
+    static {
+        try {
+            DB_FIELD = RocksDBLogStorage.class.getDeclaredField("db");
+            DB_FIELD.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final RocksDBLogStorage delegate;
+
+    private final GroupCommitter committer;
+
+    private boolean closed;
+
+    public GroupCommitLogStorage(RocksDBLogStorage delegate, GroupCommitter committer) {
+        this.delegate = delegate;
+        this.committer = committer;
+    }
+
+    @Override
+    public boolean init(LogStorageOptions opts) {
+        return delegate.init(opts);
+    }
+
+    @Override
+    public void shutdown() {
+        // Wait for a running sync, the RocksDB must not be synced after it is closed
+        synchronized (this) {
+            closed = true;
+        }
+        delegate.shutdown();
+    }
+
+    @Override
+    public long getFirstLogIndex() {
+        return delegate.getFirstLogIndex();
+    }
+
+    @Override
+    public long getLastLogIndex() {
+        return delegate.getLastLogIndex();
+    }
+
+    @Override
+    public LogEntry getEntry(long index) {
+        return delegate.getEntry(index);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public long getTerm(long index) {
+        return delegate.getTerm(index);
+    }
+
+    @Override
+    public boolean appendEntry(LogEntry entry) {
+        return delegate.appendEntry(entry) && commit(1);
+    }
+
+    @Override
+    public int appendEntries(List<LogEntry> entries) {
+        int appended = delegate.appendEntries(entries);
+        if (appended > 0 && !commit(appended)) {
+            return 0;
+        }
+        return appended;
+    }
+
+    @Override
+    public boolean truncatePrefix(long firstIndexKept) {
+        // Losing a prefix truncation only keeps some already applied entries around
+        return delegate.truncatePrefix(firstIndexKept);
+    }
+
+    @Override
+    public boolean truncateSuffix(long lastIndexKept) {
+        return delegate.truncateSuffix(lastIndexKept) && commit(0);
+    }
+
+    @Override
+    public boolean reset(long nextLogIndex) {
+        return delegate.reset(nextLogIndex) && commit(0);
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        try {
+            // RocksDB is opened in init and released in shutdown, read it on every sync
+            RocksDB db = (RocksDB) DB_FIELD.get(delegate);
+            if (closed || null == db) {
+                throw new IOException("raft log storage is not open");
+            }
+            db.syncWal();
+        } catch (IllegalAccessException | RocksDBException e) {
+            throw new IOException("sync raft log failed", e);
+        }
+    }
+
+    private boolean commit(int entries) {
+        try {
+            return committer.commit(this, entries);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.core.distributed.raft.utils;
+
+import org.monkey.mmq.core.executor.NameThreadFactory;
+import org.monkey.mmq.core.monitor.MetricsMonitor;
+import org.monkey.mmq.core.utils.Loggers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit of raft log appends, one fsync covers every append requested since the previous one.
+ *
+ * <p>An fsync starts once {@code maxEntries} entries are pending or {@code intervalMs} has passed since the
+ * previous fsync, the appending threads wait until the fsync covering their entries completes. An fsync failure
+ * is sticky, pages may have been dropped by the kernel so no later append is acknowledged.
+ *
+ * @author solley
+ */
+public final class GroupCommitter {
+
+    /**
+     * Something whose written data can be forced to disk.
+     */
+    public interface SyncTarget {
+
+        /**
+         * Force the written data to disk.
+         *
+         * @throws IOException io exception
+         */
+        void sync() throws IOException;
+    }
+
+    private final long intervalNanos;
+
+    private final int maxEntries;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition pending = lock.newCondition();
+
+    private final Condition synced = lock.newCondition();
+
+    private final Set<SyncTarget> dirty = new LinkedHashSet<>();
+
+    private int pendingEntries;
+
+    private long requestedTicket;
+
+    private long syncedTicket;
+
+    private long lastSyncNanos;
+
+    private IOException failure;
+
+    public GroupCommitter(long intervalMs, int maxEntries) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        this.maxEntries = Math.max(1, maxEntries);
+        this.lastSyncNanos = System.nanoTime() - intervalNanos;
+        Thread thread = new NameThreadFactory("org.monkey.mmq.core.raft-group-commit").newThread(this::run);
+        thread.start();
+    }
+
+    /**
+     * Wait until the data written to {@code target} so far is on disk.
+     *
+     * @param target  written target
+     * @param entries number of entries written
+     * @return true if the data is on disk, false if an fsync failed
+     * @throws InterruptedException interrupted while waiting
+     */
+    public boolean commit(SyncTarget target, int entries) throws InterruptedException {
+        lock.lock();
+        try {
+            if (null != failure) {
+                return false;
+            }
+            dirty.add(target);
+            pendingEntries += entries;
+            final long ticket = ++requestedTicket;
+            pending.signal();
+            while (syncedTicket < ticket) {
+                synced.await();
+            }
+            return null == failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            final List<SyncTarget> targets;
+            final long ticket;
+            final int entries;
+            lock.lock();
+            try {
+                while (requestedTicket == syncedTicket) {
+                    pending.await();
+                }
+                long wait;
+                while (pendingEntries < maxEntries && (wait = lastSyncNanos + intervalNanos - System.nanoTime()) > 0) {
+                    pending.awaitNanos(wait);
+                }
+                targets = new ArrayList<>(dirty);
+                ticket = requestedTicket;
+                entries = pendingEntries;
+                dirty.clear();
+                pendingEntries = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            final long start = System.nanoTime();
+            for (SyncTarget each : targets) {
+                try {
+                    each.sync();
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException(e);
+                }
+            }
+            final long end = System.nanoTime();
+            MetricsMonitor.getRaftGroupCommitTimer().record(end - start, TimeUnit.NANOSECONDS);
+            MetricsMonitor.raftGroupCommitEntries(entries);
+
+            lock.lock();
+            try {
+                lastSyncNanos = end;
+                if (null != error && null == failure) {
+                    Loggers.RAFT.error("raft log fsync failed, no further append will be acknowledged", error);
+                    failure = error;
+                }
+                syncedTicket = ticket;
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -29,6 +29,8 @@ import com.alipay.sofa.jraft.util.RpcFactoryHelper;
 import org.monkey.mmq.core.cluster.ServerMemberManager;
 import org.monkey.mmq.core.consistency.SerializeFactory;
 import org.monkey.mmq.core.distributed.raft.JRaftServer;
+import org.monkey.mmq.core.distributed.raft.RaftConfig;
+import org.monkey.mmq.core.distributed.raft.RaftSysConstants;
 import org.monkey.mmq.core.distributed.raft.processor.MmqGetRequestProcessor;
 import org.monkey.mmq.core.distributed.raft.processor.MmqLogProcessor;
 import org.monkey.mmq.core.distributed.raft.processor.MmqReadRequestProcessor;
@@ -83,9 +85,23 @@ public class JRaftUtils {
     }
     
     public static final void initDirectory(String parentPath, String groupName, NodeOptions copy) {
-        final String logUri = Paths.get(parentPath, groupName, "log").toString();
-        final String snapshotUri = Paths.get(parentPath, groupName, "snapshot").toString();
-        final String metaDataUri = Paths.get(parentPath, groupName, "meta-data").toString();
+        initDirectory(parentPath, parentPath, parentPath, groupName, copy);
+    }
+    
+    /**
+     * Init the raft directories of the group, the log, snapshot and meta roots may sit on different disks.
+     */
+    public static final void initDirectory(RaftConfig config, String parentPath, String groupName, NodeOptions copy) {
+        initDirectory(config.getValOfDefault(RaftSysConstants.LOG_DIR, parentPath),
+                config.getValOfDefault(RaftSysConstants.SNAPSHOT_DIR, parentPath),
+                config.getValOfDefault(RaftSysConstants.META_DATA_DIR, parentPath), groupName, copy);
+    }
+    
+    private static void initDirectory(String logPath, String snapshotPath, String metaDataPath, String groupName,
+            NodeOptions copy) {
+        final String logUri = Paths.get(logPath, groupName, "log").toString();
+        final String snapshotUri = Paths.get(snapshotPath, groupName, "snapshot").toString();
+        final String metaDataUri = Paths.get(metaDataPath, groupName, "meta-data").toString();
         
         // Initialize the raft file storage path for different services
         try {
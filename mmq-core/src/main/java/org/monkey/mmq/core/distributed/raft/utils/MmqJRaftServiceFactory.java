@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.core.distributed.raft.utils;
+
+import com.alipay.sofa.jraft.core.DefaultJRaftServiceFactory;
+import com.alipay.sofa.jraft.option.RaftOptions;
+import com.alipay.sofa.jraft.storage.LogStorage;
+import com.alipay.sofa.jraft.storage.impl.RocksDBLogStorage;
+import org.monkey.mmq.core.distributed.raft.RaftConfig;
+import org.monkey.mmq.core.distributed.raft.RaftSysConstants;
+import org.monkey.mmq.core.utils.ConvertUtils;
+
+/**
+ * jraft service factory, wraps the raft log storage of every group with the shared {@link GroupCommitter}.
+ *
+ * @author solley
+ */
+public class MmqJRaftServiceFactory extends DefaultJRaftServiceFactory {
+
+    private final GroupCommitter committer;
+
+    private MmqJRaftServiceFactory(GroupCommitter committer) {
+        this.committer = committer;
+    }
+
+    /**
+     * By {@link RaftConfig} creating a {@link MmqJRaftServiceFactory}, group commit is off unless
+     * {@link RaftSysConstants#SYNC_GROUP_COMMIT_INTERVAL_MS} is positive and sync is on.
+     *
+     * @param config      {@link RaftConfig}
+     * @param raftOptions {@link RaftOptions}
+     * @return {@link MmqJRaftServiceFactory}
+     */
+    public static MmqJRaftServiceFactory create(RaftConfig config, RaftOptions raftOptions) {
+        int intervalMs = ConvertUtils.toInt(config.getVal(RaftSysConstants.SYNC_GROUP_COMMIT_INTERVAL_MS),
+                RaftSysConstants.DEFAULT_SYNC_GROUP_COMMIT_INTERVAL_MS);
+        int maxEntries = ConvertUtils.toInt(config.getVal(RaftSysConstants.SYNC_GROUP_COMMIT_MAX_ENTRIES),
+                RaftSysConstants.DEFAULT_SYNC_GROUP_COMMIT_MAX_ENTRIES);
+        boolean enabled = raftOptions.isSync() && intervalMs > 0;
+        return new MmqJRaftServiceFactory(enabled ? new GroupCommitter(intervalMs, maxEntries) : null);
+    }
+
+    @Override
+    public LogStorage createLogStorage(String uri, RaftOptions raftOptions) {
+        if (null == committer) {
+            return super.createLogStorage(uri, raftOptions);
+        }
+        RaftOptions options = raftOptions.copy();
+        options.setSync(false);
+        return new GroupCommitLogStorage(new RocksDBLogStorage(uri, options), committer);
+    }
+}
@@ -47,6 +47,8 @@ public class EnvUtil {
      */
     public static final String MMQ_HOME_KEY = "mmq.home";
     
+    public static final String DATA_DIR_KEY = "mmq.core.data.dir";
+    
     private static String localAddress = "";
     
     private static int port = -1;
@@ -234,6 +236,16 @@ public class EnvUtil {
         return mmqHomePath;
     }
 
+    /**
+     * Root directory of the state machine data, {@code ${mmq.home}/data} unless {@code mmq.core.data.dir} is set.
+     *
+     * @return data dir
+     */
+    public static String getDataDir() {
+        String dataDir = null == environment ? null : environment.getProperty(DATA_DIR_KEY);
+        return StringUtils.isBlank(dataDir) ? Paths.get(getMmqHome(), "data").toString() : dataDir;
+    }
+
     public static void setMmqHomePath(String mmqHomePath) {
         EnvUtil.mmqHomePath = mmqHomePath;
     }
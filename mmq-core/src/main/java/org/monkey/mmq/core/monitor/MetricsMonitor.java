@@ -37,6 +37,10 @@ public final class MetricsMonitor {
     
     private static final Timer RAFT_APPLY_READ_TIMER;
     
+    private static final DistributionSummary RAFT_GROUP_COMMIT_ENTRIES;
+    
+    private static final Timer RAFT_GROUP_COMMIT_TIMER;
+    
     private static AtomicInteger longConnection = new AtomicInteger();
     
     static {
@@ -46,6 +50,9 @@ public final class MetricsMonitor {
         RAFT_APPLY_LOG_TIMER = MmqMeterRegistry.timer("protocol", "raft_apply_log_timer");
         RAFT_APPLY_READ_TIMER = MmqMeterRegistry.timer("protocol", "raft_apply_read_timer");
         
+        RAFT_GROUP_COMMIT_ENTRIES = MmqMeterRegistry.summary("protocol", "raft_group_commit_entries");
+        RAFT_GROUP_COMMIT_TIMER = MmqMeterRegistry.timer("protocol", "raft_group_commit_fsync_timer");
+        
         List<Tag> tags = new ArrayList<Tag>();
         tags.add(new ImmutableTag("module", "config"));
         tags.add(new ImmutableTag("name", "longConnection"));
@@ -72,4 +79,12 @@ public final class MetricsMonitor {
     public static Timer getRaftApplyReadTimer() {
         return RAFT_APPLY_READ_TIMER;
     }
+    
+    public static void raftGroupCommitEntries(int entries) {
+        RAFT_GROUP_COMMIT_ENTRIES.record(entries);
+    }
+    
+    public static Timer getRaftGroupCommitTimer() {
+        return RAFT_GROUP_COMMIT_TIMER;
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.core.storage;
+
+import org.monkey.mmq.core.env.EnvUtil;
+import org.monkey.mmq.core.storage.kv.KvStorage;
+import org.monkey.mmq.core.utils.StringUtils;
+
+/**
+ * Storage settings of the records sharing a key prefix, e.g. sessions or retained messages.
+ *
+ * <p>Configured by {@code mmq.storage.namespace.<name>.type|cache-size|compression}.
+ *
+ * @author solley
+ */
+public final class KvNamespace {
+
+    private static final String PROPERTY_PREFIX = "mmq.storage.namespace.";
+
+    /**
+     * Unbounded read cache, every value read or written stays in memory.
+     */
+    public static final long UNBOUNDED_CACHE = -1L;
+
+    private final String name;
+
+    private final String prefix;
+
+    private final KvStorage.KvType type;
+
+    private final long cacheSize;
+
+    private final String compression;
+
+    public KvNamespace(String name, String prefix, KvStorage.KvType type, long cacheSize, String compression) {
+        this.name = name;
+        this.prefix = prefix;
+        this.type = type;
+        this.cacheSize = cacheSize;
+        this.compression = compression;
+    }
+
+    /**
+     * Build the namespace from the environment.
+     *
+     * @param name   namespace name, also the directory name of its storage
+     * @param prefix key prefix of the records
+     * @return namespace, {@code null} if no storage type is configured so the records stay in the shared storage
+     */
+    public static KvNamespace fromProperties(String name, String prefix) {
+        String type = EnvUtil.getProperty(PROPERTY_PREFIX + name + ".type");
+        if (StringUtils.isBlank(type)) {
+            return null;
+        }
+        return new KvNamespace(name, prefix, KvStorage.KvType.valueOf(type.trim()),
+                EnvUtil.getProperty(PROPERTY_PREFIX + name + ".cache-size", Long.class, UNBOUNDED_CACHE),
+                EnvUtil.getProperty(PROPERTY_PREFIX + name + ".compression", "none"));
+    }
+
+    /**
+     * Cache size of the shared storage holding the records of no namespace.
+     *
+     * @return cache size
+     */
+    public static long defaultCacheSize() {
+        return EnvUtil.getProperty(PROPERTY_PREFIX + "default.cache-size", Long.class, UNBOUNDED_CACHE);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public KvStorage.KvType getType() {
+        return type;
+    }
+
+    /**
+     * Max cached values, {@code 0} disables the cache and a negative value means unbounded.
+     *
+     * @return cache size
+     */
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Compression of the {@link KvStorage.KvType#RocksDB} storage, one of none, snappy, lz4, lz4hc, zstd, z, bzip2.
+     *
+     * @return compression name
+     */
+    public String getCompression() {
+        return compression;
+    }
+
+    @Override
+    public String toString() {
+        return "KvNamespace{" + "name='" + name + '\'' + ", type=" + type + ", cacheSize=" + cacheSize
+                + ", compression='" + compression + '\'' + '}';
+    }
+}
@@ -20,6 +20,7 @@ import org.monkey.mmq.core.storage.kv.FileKvStorage;
 import org.monkey.mmq.core.storage.kv.KvStorage;
 import org.monkey.mmq.core.storage.kv.MemoryKvStorage;
 import org.monkey.mmq.core.storage.kv.RocksDBStorage;
+import org.monkey.mmq.core.storage.kv.SegmentKvStorage;
 
 /**
  * Ket-value Storage factory.
@@ -46,9 +47,28 @@ public final class StorageFactory {
                 return new MemoryKvStorage();
             case RocksDB:
                 return new RocksDBStorage(baseDir);
+            case Segment:
+                return new SegmentKvStorage(baseDir);
             default:
                 throw new IllegalArgumentException("this kv type : [" + type.name() + "] not support");
         }
     }
     
+    /**
+     * Create {@link KvStorage} implementation of the namespace.
+     *
+     * @param namespace {@link KvNamespace}
+     * @param label     label for {@code RocksStorage}
+     * @param baseDir   base dir of storage file.
+     * @return implementation of {@link KvStorage}
+     * @throws Exception exception during creating {@link KvStorage}
+     */
+    public static KvStorage createKvStorage(KvNamespace namespace, final String label, final String baseDir)
+            throws Exception {
+        if (KvStorage.KvType.RocksDB == namespace.getType()) {
+            return new RocksDBStorage(baseDir, namespace.getCompression());
+        }
+        return createKvStorage(namespace.getType(), label, baseDir);
+    }
+    
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.core.storage.kv;
+
+import com.alipay.sofa.jraft.util.BytesUtil;
+import org.monkey.mmq.core.utils.ByteUtils;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Base {@link KvIterator}, applies the prefix and limit bounds on top of an ordered source.
+ *
+ * @author solley
+ */
+abstract class AbstractKvIterator implements KvIterator {
+
+    private final byte[] prefix;
+
+    private final int limit;
+
+    private int count;
+
+    private Map.Entry<byte[], byte[]> next;
+
+    private boolean closed;
+
+    protected AbstractKvIterator(byte[] prefix, int limit) {
+        this.prefix = prefix;
+        this.limit = limit;
+    }
+
+    /**
+     * Fetch the next entry of the source in ascending key order.
+     *
+     * @return next entry, {@code null} if the source is exhausted
+     */
+    protected abstract Map.Entry<byte[], byte[]> fetch();
+
+    /**
+     * Release the resources of the source.
+     */
+    protected void doClose() {
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (next != null) {
+            return true;
+        }
+        if (limit > 0 && count >= limit) {
+            close();
+            return false;
+        }
+        Map.Entry<byte[], byte[]> entry = fetch();
+        if (entry == null || !ByteUtils.startsWith(entry.getKey(), prefix)) {
+            close();
+            return false;
+        }
+        next = entry;
+        return true;
+    }
+
+    @Override
+    public Map.Entry<byte[], byte[]> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<byte[], byte[]> entry = next;
+        next = null;
+        count++;
+        return entry;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            next = null;
+            doClose();
+        }
+    }
+
+    /**
+     * The first key to seek to, the greater of {@code prefix} and {@code startKey}.
+     */
+    static byte[] seekKey(byte[] prefix, byte[] startKey) {
+        if (ByteUtils.isEmpty(startKey)) {
+            return prefix == null ? ByteUtils.EMPTY : prefix;
+        }
+        if (ByteUtils.isEmpty(prefix)) {
+            return startKey;
+        }
+        return BytesUtil.compare(startKey, prefix) > 0 ? startKey : prefix;
+    }
+
+    /**
+     * The smallest key greater than every key starting with {@code prefix}, {@code null} if there is none.
+     */
+    static byte[] upperBound(byte[] prefix) {
+        if (ByteUtils.isEmpty(prefix)) {
+            return null;
+        }
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                byte[] bound = new byte[i + 1];
+                System.arraycopy(prefix, 0, bound, 0, i + 1);
+                bound[i]++;
+                return bound;
+            }
+        }
+        return null;
+    }
+}
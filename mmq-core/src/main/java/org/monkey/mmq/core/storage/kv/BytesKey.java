@@ -0,0 +1,57 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.core.storage.kv;
+
+import com.alipay.sofa.jraft.util.BytesUtil;
+
+import java.util.Arrays;
+
+/**
+ * Byte array wrapper ordered like RocksDB keys, used by the in-memory indexes.
+ *
+ * @author solley
+ */
+final class BytesKey implements Comparable<BytesKey> {
+    
+    final byte[] origin;
+    
+    BytesKey(byte[] origin) {
+        this.origin = origin;
+    }
+    
+    @Override
+    public int compareTo(BytesKey o) {
+        return BytesUtil.compare(origin, o.origin);
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        BytesKey key = (BytesKey) o;
+        return Arrays.equals(origin, key.origin);
+    }
+    
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(origin);
+    }
+}
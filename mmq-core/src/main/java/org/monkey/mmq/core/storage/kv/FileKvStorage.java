@@ -16,16 +16,20 @@
 
 package org.monkey.mmq.core.storage.kv;
 
+import com.alipay.sofa.jraft.util.BytesUtil;
 import com.google.common.collect.Lists;
 import org.monkey.mmq.core.exception.ErrorCode;
 import org.monkey.mmq.core.exception.KvStorageException;
+import org.monkey.mmq.core.exception.runtime.MmqRuntimeException;
 import org.monkey.mmq.core.utils.ByteUtils;
 import org.monkey.mmq.core.utils.DiskUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.AbstractMap;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -201,6 +205,34 @@ public class FileKvStorage implements KvStorage {
         return result;
     }
     
+    @Override
+    public KvIterator scan(byte[] prefix, byte[] startKey, int limit) {
+        final byte[] from = AbstractKvIterator.seekKey(prefix, startKey);
+        final List<byte[]> keys = allKeys();
+        keys.removeIf(key -> !ByteUtils.startsWith(key, prefix) || BytesUtil.compare(key, from) < 0);
+        keys.sort(BytesUtil::compare);
+        final Iterator<byte[]> iterator = keys.iterator();
+        return new AbstractKvIterator(prefix, limit) {
+            @Override
+            protected Map.Entry<byte[], byte[]> fetch() {
+                while (iterator.hasNext()) {
+                    byte[] key = iterator.next();
+                    byte[] value;
+                    try {
+                        value = get(key);
+                    } catch (KvStorageException e) {
+                        throw new MmqRuntimeException(e.getErrCode(), e.getErrMsg(), e);
+                    }
+                    // Skip the keys deleted since listing
+                    if (null != value) {
+                        return new AbstractMap.SimpleImmutableEntry<>(key, value);
+                    }
+                }
+                return null;
+            }
+        };
+    }
+    
     @Override
     public void shutdown() {
     }
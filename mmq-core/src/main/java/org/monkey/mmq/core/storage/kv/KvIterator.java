@@ -0,0 +1,37 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.core.storage.kv;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Closeable cursor over the entries of a {@link KvStorage}, in ascending key order.
+ *
+ * <p>Callers must close the cursor (try-with-resources) so that native iterators and snapshots are released.
+ *
+ * @author solley
+ */
+public interface KvIterator extends Iterator<Map.Entry<byte[], byte[]>>, AutoCloseable {
+
+    /**
+     * Release the resources held by this cursor.
+     */
+    @Override
+    void close();
+
+}
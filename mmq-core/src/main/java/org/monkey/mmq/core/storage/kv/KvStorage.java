@@ -43,6 +43,11 @@ public interface KvStorage {
          * RocksDB storage.
          */
         RocksDB,
+    
+        /**
+         * Append-only segment log storage.
+         */
+        Segment,
     }
     
     
@@ -117,11 +122,24 @@ public interface KvStorage {
     /**
      * Get all keys.
      *
+     * <p>Materializes every key in memory, prefer {@link #scan(byte[], byte[], int)} on large data sets.
+     *
      * @return all keys
      * @throws KvStorageException KVStorageException
      */
     List<byte[]> allKeys() throws KvStorageException;
     
+    /**
+     * Iterate over the entries whose key starts with {@code prefix}, in ascending key order.
+     *
+     * @param prefix   key prefix, {@code null} or empty means all keys
+     * @param startKey first key to return (inclusive), {@code null} means start from the prefix
+     * @param limit    max entries to return, {@code <= 0} means no limit
+     * @return {@link KvIterator}, must be closed by the caller
+     * @throws KvStorageException KVStorageException
+     */
+    KvIterator scan(byte[] prefix, byte[] startKey, int limit) throws KvStorageException;
+    
     /**
      * shutdown.
      */
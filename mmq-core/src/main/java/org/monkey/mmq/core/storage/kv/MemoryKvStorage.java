@@ -16,11 +16,22 @@
 
 package org.monkey.mmq.core.storage.kv;
 
-import com.alipay.sofa.jraft.util.BytesUtil;
 import org.monkey.mmq.core.exception.ErrorCode;
 import org.monkey.mmq.core.exception.KvStorageException;
+import org.monkey.mmq.core.utils.DiskUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
@@ -30,22 +41,24 @@ import java.util.concurrent.ConcurrentSkipListMap;
  */
 public class MemoryKvStorage implements KvStorage {
     
-    private final Map<Key, byte[]> storage = new ConcurrentSkipListMap<>();
+    private static final String SNAPSHOT_FILE = "memory.data";
+    
+    private final ConcurrentNavigableMap<BytesKey, byte[]> storage = new ConcurrentSkipListMap<>();
 
     public boolean containsKey(byte[] key) throws KvStorageException {
-        return storage.containsKey(key);
+        return storage.containsKey(new BytesKey(key));
     }
     
     @Override
     public byte[] get(byte[] key) throws KvStorageException {
-        return storage.get(new Key(key));
+        return storage.get(new BytesKey(key));
     }
     
     @Override
     public Map<byte[], byte[]> batchGet(List<byte[]> keys) throws KvStorageException {
         Map<byte[], byte[]> result = new HashMap<>(keys.size());
         for (byte[] key : keys) {
-            byte[] val = storage.get(new Key(key));
+            byte[] val = storage.get(new BytesKey(key));
             if (val != null) {
                 result.put(key, val);
             }
@@ -55,7 +68,7 @@ public class MemoryKvStorage implements KvStorage {
     
     @Override
     public void put(byte[] key, byte[] value) throws KvStorageException {
-        storage.put(new Key(key), value);
+        storage.put(new BytesKey(key), value);
     }
     
     @Override
@@ -66,75 +79,94 @@ public class MemoryKvStorage implements KvStorage {
         }
         int size = keys.size();
         for (int i = 0; i < size; i++) {
-            storage.put(new Key(keys.get(i)), values.get(i));
+            storage.put(new BytesKey(keys.get(i)), values.get(i));
         }
     }
     
     @Override
     public void delete(byte[] key) throws KvStorageException {
-        storage.remove(new Key(key));
+        storage.remove(new BytesKey(key));
     }
     
     @Override
     public void batchDelete(List<byte[]> keys) throws KvStorageException {
         for (byte[] key : keys) {
-            storage.remove(new Key(key));
+            storage.remove(new BytesKey(key));
         }
     }
     
     @Override
     public void doSnapshot(String backupPath) throws KvStorageException {
-        throw new UnsupportedOperationException();
+        // Entries are written as [keyLen][key][valueLen][value]
+        try {
+            DiskUtils.forceMkdir(backupPath);
+            File file = Paths.get(backupPath, SNAPSHOT_FILE).toFile();
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)))) {
+                for (Map.Entry<BytesKey, byte[]> entry : storage.entrySet()) {
+                    out.writeInt(entry.getKey().origin.length);
+                    out.write(entry.getKey().origin);
+                    out.writeInt(entry.getValue().length);
+                    out.write(entry.getValue());
+                }
+            }
+        } catch (IOException e) {
+            throw new KvStorageException(ErrorCode.KVStorageSnapshotSaveError, e);
+        }
     }
     
     @Override
     public void snapshotLoad(String path) throws KvStorageException {
-        throw new UnsupportedOperationException();
+        storage.clear();
+        File file = Paths.get(path, SNAPSHOT_FILE).toFile();
+        // If snapshot file is non-exist, means snapshot is empty
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (in.available() > 0) {
+                byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                storage.put(new BytesKey(key), value);
+            }
+        } catch (IOException e) {
+            throw new KvStorageException(ErrorCode.KVStorageSnapshotLoadError, e);
+        }
     }
     
     @Override
     public List<byte[]> allKeys() throws KvStorageException {
         List<byte[]> result = new LinkedList<>();
-        for (Key each : storage.keySet()) {
+        for (BytesKey each : storage.keySet()) {
             result.add(each.origin);
         }
         return result;
     }
     
     @Override
-    public void shutdown() {
-        storage.clear();
+    public KvIterator scan(byte[] prefix, byte[] startKey, int limit) throws KvStorageException {
+        final BytesKey from = new BytesKey(AbstractKvIterator.seekKey(prefix, startKey));
+        final byte[] bound = AbstractKvIterator.upperBound(prefix);
+        final Map<BytesKey, byte[]> range = null == bound ? storage.tailMap(from, true)
+                : storage.subMap(from, true, new BytesKey(bound), false);
+        final Iterator<Map.Entry<BytesKey, byte[]>> iterator = range.entrySet().iterator();
+        return new AbstractKvIterator(prefix, limit) {
+            @Override
+            protected Map.Entry<byte[], byte[]> fetch() {
+                if (!iterator.hasNext()) {
+                    return null;
+                }
+                Map.Entry<BytesKey, byte[]> entry = iterator.next();
+                return new AbstractMap.SimpleImmutableEntry<>(entry.getKey().origin, entry.getValue());
+            }
+        };
     }
     
-    private static class Key implements Comparable<Key> {
-        
-        private final byte[] origin;
-        
-        private Key(byte[] origin) {
-            this.origin = origin;
-        }
-        
-        @Override
-        public int compareTo(Key o) {
-            return BytesUtil.compare(origin, o.origin);
-        }
-        
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
-            }
-            if (o == null || getClass() != o.getClass()) {
-                return false;
-            }
-            Key key = (Key) o;
-            return Arrays.equals(origin, key.origin);
-        }
-        
-        @Override
-        public int hashCode() {
-            return Arrays.hashCode(origin);
-        }
+    @Override
+    public void shutdown() {
+        storage.clear();
     }
     
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.core.storage.kv;
+
+import com.alipay.sofa.jraft.util.BytesUtil;
+
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the ordered {@link KvIterator}s of storages holding disjoint key sets into one ordered iterator.
+ *
+ * @author solley
+ */
+public class MergedKvIterator extends AbstractKvIterator {
+
+    private final List<KvIterator> iterators;
+
+    private final PriorityQueue<Head> heads;
+
+    public MergedKvIterator(List<KvIterator> iterators, int limit) {
+        super(null, limit);
+        this.iterators = iterators;
+        this.heads = new PriorityQueue<>(Math.max(1, iterators.size()),
+                (a, b) -> BytesUtil.compare(a.entry.getKey(), b.entry.getKey()));
+        for (KvIterator each : iterators) {
+            advance(each);
+        }
+    }
+
+    @Override
+    protected Map.Entry<byte[], byte[]> fetch() {
+        Head head = heads.poll();
+        if (null == head) {
+            return null;
+        }
+        advance(head.iterator);
+        return head.entry;
+    }
+
+    @Override
+    protected void doClose() {
+        for (KvIterator each : iterators) {
+            each.close();
+        }
+    }
+
+    private void advance(KvIterator iterator) {
+        if (iterator.hasNext()) {
+            heads.add(new Head(iterator, iterator.next()));
+        }
+    }
+
+    private static final class Head {
+
+        private final KvIterator iterator;
+
+        private final Map.Entry<byte[], byte[]> entry;
+
+        private Head(KvIterator iterator, Map.Entry<byte[], byte[]> entry) {
+            this.iterator = iterator;
+            this.entry = entry;
+        }
+    }
+}
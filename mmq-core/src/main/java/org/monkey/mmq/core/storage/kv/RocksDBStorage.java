@@ -4,15 +4,27 @@ import org.monkey.mmq.core.exception.ErrorCode;
 import org.monkey.mmq.core.exception.KvStorageException;
 import org.monkey.mmq.core.utils.ByteUtils;
 import org.monkey.mmq.core.utils.DiskUtils;
+import org.rocksdb.CompressionType;
+import org.rocksdb.EnvOptions;
+import org.rocksdb.IngestExternalFileOptions;
 import org.rocksdb.Options;
+import org.rocksdb.ReadOptions;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.RocksIterator;
+import org.rocksdb.Slice;
+import org.rocksdb.Snapshot;
+import org.rocksdb.SstFileWriter;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,8 +39,21 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  **/
 public class RocksDBStorage implements KvStorage {
 
+    private static final String SNAPSHOT_FILE_PREFIX = "snapshot-";
+
+    private static final String SNAPSHOT_FILE_SUFFIX = ".sst";
+
+    /**
+     * Max key and value bytes of one snapshot file.
+     */
+    private static final long SNAPSHOT_FILE_BYTES = 64 * 1024 * 1024;
+
+    private static final int LEGACY_LOAD_BATCH_SIZE = 1000;
+
     private final String baseDir;
 
+    private final CompressionType compressionType;
+
     /**
      * Ensure that a consistent view exists when implementing file copies.
      */
@@ -43,9 +68,20 @@ public class RocksDBStorage implements KvStorage {
     RocksDB rocksDB;
 
     public RocksDBStorage(String baseDir) throws RocksDBException, IOException {
+        this(baseDir, null);
+    }
+
+    /**
+     * @param compression compression library name, e.g. none, snappy, lz4, zstd, {@code null} keeps the RocksDB default
+     */
+    public RocksDBStorage(String baseDir, String compression) throws RocksDBException, IOException {
         Options options = new Options();
         options.setCreateIfMissing(true);
+        if (null != compression) {
+            options.setCompressionType(CompressionType.getCompressionType(compression));
+        }
         this.baseDir = baseDir;
+        this.compressionType = options.compressionType();
         DiskUtils.forceMkdir(baseDir);
         rocksDB = RocksDB.open(options, baseDir);
     }
@@ -108,49 +144,184 @@ public class RocksDBStorage implements KvStorage {
         }
     }
 
+    /**
+     * Write a consistent view of the data as sorted SST files of bounded size, without copying the live files. The
+     * lock is held only to take the RocksDB snapshot, the files are written from the snapshot without it.
+     */
     @Override
     public void doSnapshot(String backupPath) throws KvStorageException {
+        final Snapshot snapshot;
         writeLock.lock();
         try {
-            File srcDir = Paths.get(baseDir).toFile();
-            File descDir = Paths.get(backupPath).toFile();
-            DiskUtils.copyDirectory(srcDir, descDir);
-        } catch (IOException e) {
-            throw new KvStorageException(ErrorCode.IOCopyDirError, e);
+            snapshot = rocksDB.getSnapshot();
         } finally {
             writeLock.unlock();
         }
+        try (ReadOptions readOptions = new ReadOptions().setSnapshot(snapshot);
+                RocksIterator iter = rocksDB.newIterator(readOptions);
+                EnvOptions envOptions = new EnvOptions();
+                Options sstOptions = new Options().setCompressionType(compressionType)) {
+            DiskUtils.forceMkdir(backupPath);
+            SstFileWriter sstWriter = null;
+            int fileNo = 0;
+            long bytes = 0;
+            try {
+                for (iter.seekToFirst(); iter.isValid(); iter.next()) {
+                    if (null == sstWriter) {
+                        sstWriter = new SstFileWriter(envOptions, sstOptions);
+                        sstWriter.open(Paths.get(backupPath,
+                                SNAPSHOT_FILE_PREFIX + String.format("%06d", fileNo++) + SNAPSHOT_FILE_SUFFIX).toString());
+                    }
+                    byte[] key = iter.key();
+                    byte[] value = iter.value();
+                    sstWriter.put(key, value);
+                    bytes += key.length + value.length;
+                    if (bytes >= SNAPSHOT_FILE_BYTES) {
+                        sstWriter.finish();
+                        sstWriter.close();
+                        sstWriter = null;
+                        bytes = 0;
+                    }
+                }
+                if (null != sstWriter) {
+                    sstWriter.finish();
+                }
+            } finally {
+                if (null != sstWriter) {
+                    sstWriter.close();
+                }
+            }
+        } catch (RocksDBException | IOException e) {
+            throw new KvStorageException(ErrorCode.KVStorageSnapshotSaveError, e);
+        } finally {
+            rocksDB.releaseSnapshot(snapshot);
+        }
     }
 
+    /**
+     * Replace the data with the snapshot, SST files are ingested as copies and a directory copy of an older
+     * version is read entry by entry.
+     */
     @Override
     public void snapshotLoad(String path) throws KvStorageException {
         writeLock.lock();
         try {
+            deleteAll();
             File srcDir = Paths.get(path).toFile();
-            // If snapshot path is non-exist, means snapshot is empty
-            if (srcDir.exists()) {
-                // First clean up the local file information, before the file copy
-                DiskUtils.deleteDirThenMkdir(baseDir);
-                File descDir = Paths.get(baseDir).toFile();
-                DiskUtils.copyDirectory(srcDir, descDir);
+            // If snapshot path is non-exist, means snapshot is empty, an empty store writes no SST file
+            if (!srcDir.exists()) {
+                return;
+            }
+            if (new File(srcDir, "CURRENT").exists()) {
+                loadLegacySnapshot(path);
+                return;
             }
-        } catch (IOException e) {
-            throw new KvStorageException(ErrorCode.IOCopyDirError, e);
+            File[] files = srcDir.listFiles((dir, name) -> name.startsWith(SNAPSHOT_FILE_PREFIX)
+                    && name.endsWith(SNAPSHOT_FILE_SUFFIX));
+            if (null == files || files.length == 0) {
+                return;
+            }
+            List<String> sstFiles = new ArrayList<>(files.length);
+            for (File each : files) {
+                sstFiles.add(each.getPath());
+            }
+            Collections.sort(sstFiles);
+            // Copy the files instead of moving them, they are still the snapshot read on restart and sent to followers
+            try (IngestExternalFileOptions ingestOptions = new IngestExternalFileOptions().setMoveFiles(false)
+                    .setWriteGlobalSeqno(false)) {
+                rocksDB.ingestExternalFile(sstFiles, ingestOptions);
+            }
+        } catch (RocksDBException e) {
+            throw new KvStorageException(ErrorCode.KVStorageSnapshotLoadError, e);
         } finally {
             writeLock.unlock();
         }
     }
 
+    private void deleteAll() throws RocksDBException {
+        byte[] first;
+        byte[] last;
+        try (RocksIterator iter = rocksDB.newIterator()) {
+            iter.seekToFirst();
+            if (!iter.isValid()) {
+                return;
+            }
+            first = iter.key();
+            iter.seekToLast();
+            last = iter.key();
+        }
+        // The end key is exclusive, last + 0x00 is the smallest key after last
+        rocksDB.deleteRange(first, Arrays.copyOf(last, last.length + 1));
+    }
+
+    private void loadLegacySnapshot(String path) throws RocksDBException {
+        try (Options options = new Options();
+                RocksDB legacy = RocksDB.openReadOnly(options, path);
+                RocksIterator iter = legacy.newIterator();
+                WriteOptions writeOptions = new WriteOptions()) {
+            WriteBatch batch = new WriteBatch();
+            try {
+                for (iter.seekToFirst(); iter.isValid(); iter.next()) {
+                    batch.put(iter.key(), iter.value());
+                    if (batch.count() >= LEGACY_LOAD_BATCH_SIZE) {
+                        rocksDB.write(writeOptions, batch);
+                        batch.close();
+                        batch = new WriteBatch();
+                    }
+                }
+                rocksDB.write(writeOptions, batch);
+            } finally {
+                batch.close();
+            }
+        }
+    }
+
     @Override
     public List<byte[]> allKeys() throws KvStorageException {
-        RocksIterator iter = rocksDB.newIterator();
         List<byte[]> keys = new ArrayList<>();
-        for (iter.seekToFirst(); iter.isValid(); iter.next()) {
-            keys.add(iter.key());
+        try (RocksIterator iter = rocksDB.newIterator()) {
+            for (iter.seekToFirst(); iter.isValid(); iter.next()) {
+                keys.add(iter.key());
+            }
         }
         return keys;
     }
 
+    @Override
+    public KvIterator scan(byte[] prefix, byte[] startKey, int limit) throws KvStorageException {
+        final Snapshot snapshot = rocksDB.getSnapshot();
+        final ReadOptions readOptions = new ReadOptions().setSnapshot(snapshot);
+        final byte[] bound = AbstractKvIterator.upperBound(prefix);
+        final Slice upperBound = null == bound ? null : new Slice(bound);
+        if (null != upperBound) {
+            // Let the native iterator stop at the end of the prefix range instead of reading past it
+            readOptions.setIterateUpperBound(upperBound);
+        }
+        final RocksIterator iter = rocksDB.newIterator(readOptions);
+        iter.seek(AbstractKvIterator.seekKey(prefix, startKey));
+        return new AbstractKvIterator(prefix, limit) {
+            @Override
+            protected Map.Entry<byte[], byte[]> fetch() {
+                if (!iter.isValid()) {
+                    return null;
+                }
+                Map.Entry<byte[], byte[]> entry = new AbstractMap.SimpleImmutableEntry<>(iter.key(), iter.value());
+                iter.next();
+                return entry;
+            }
+
+            @Override
+            protected void doClose() {
+                iter.close();
+                readOptions.close();
+                if (null != upperBound) {
+                    upperBound.close();
+                }
+                rocksDB.releaseSnapshot(snapshot);
+            }
+        };
+    }
+
     @Override
     public void shutdown() {
         rocksDB.close();
@@ -0,0 +1,715 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.core.storage.kv;
+
+import org.monkey.mmq.core.exception.ErrorCode;
+import org.monkey.mmq.core.exception.KvStorageException;
+import org.monkey.mmq.core.executor.ExecutorFactory;
+import org.monkey.mmq.core.executor.NameThreadFactory;
+import org.monkey.mmq.core.utils.DiskUtils;
+import org.monkey.mmq.core.utils.Loggers;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Kv storage based on append-only segment files.
+ *
+ * <p>Every put or delete is appended to the active segment as a record {@code [crc][type][keyLen][valueLen][key][value]},
+ * the crc covering everything after itself. An in-memory index maps each live key to the location of its latest
+ * record. Once the active segment reaches the segment size it is sealed, memory-mapped and never written again, so a
+ * snapshot only rolls the active segment and hard-links the sealed ones. A background task rewrites the live records of
+ * sealed segments whose garbage ratio is over the threshold and then drops them.
+ *
+ * @author solley
+ */
+public class SegmentKvStorage implements KvStorage {
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+    public static final double DEFAULT_GARBAGE_RATIO = 0.5D;
+
+    private static final long COMPACT_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final byte TYPE_PUT = 1;
+
+    private static final byte TYPE_DELETE = 2;
+
+    /**
+     * crc(4) + type(1) + keyLen(4) + valueLen(4).
+     */
+    private static final int HEADER_SIZE = 13;
+
+    /**
+     * {@code sun.misc.Unsafe#invokeCleaner} to unmap segments on Java 9+, null on Java 8.
+     */
+    private static final Object UNSAFE;
+
+    private static final Method UNSAFE_INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        UNSAFE_INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final String baseDir;
+
+    private final long segmentBytes;
+
+    private final double garbageRatio;
+
+    /**
+     * Reads and appends share the read lock, snapshot, snapshot load and segment removal take the write lock.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final ReentrantReadWriteLock.ReadLock readLock = lock.readLock();
+
+    private final ReentrantReadWriteLock.WriteLock writeLock = lock.writeLock();
+
+    /**
+     * Serializes appends to the active segment together with the matching index update.
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    private final ConcurrentNavigableMap<BytesKey, Location> index = new ConcurrentSkipListMap<>();
+
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    /**
+     * Number of obsolete puts still on disk by deleted key, guarded by the append lock. A tombstone of the key is
+     * needed until they are all compacted away, live keys keep the count in their {@link Location}.
+     */
+    private final Map<BytesKey, Integer> tombstones = new HashMap<>();
+
+    private final ScheduledExecutorService compactExecutor;
+
+    private volatile Segment active;
+
+    public SegmentKvStorage(String baseDir) throws IOException, KvStorageException {
+        this(baseDir, DEFAULT_SEGMENT_BYTES, DEFAULT_GARBAGE_RATIO);
+    }
+
+    public SegmentKvStorage(String baseDir, long segmentBytes, double garbageRatio)
+            throws IOException, KvStorageException {
+        this.baseDir = baseDir;
+        this.segmentBytes = segmentBytes;
+        this.garbageRatio = garbageRatio;
+        DiskUtils.forceMkdir(baseDir);
+        recover();
+        this.compactExecutor = ExecutorFactory
+                .newSingleScheduledExecutorService(new NameThreadFactory("org.monkey.mmq.core.storage.segment-compact"));
+        this.compactExecutor.scheduleWithFixedDelay(this::compact, COMPACT_INTERVAL_MS, COMPACT_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public byte[] get(byte[] key) throws KvStorageException {
+        readLock.lock();
+        try {
+            Location location = index.get(new BytesKey(key));
+            return null == location ? null : readValue(location);
+        } catch (IOException e) {
+            throw new KvStorageException(ErrorCode.KVStorageReadError, e);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public Map<byte[], byte[]> batchGet(List<byte[]> keys) throws KvStorageException {
+        Map<byte[], byte[]> result = new HashMap<>(keys.size());
+        for (byte[] key : keys) {
+            byte[] val = get(key);
+            if (val != null) {
+                result.put(key, val);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void put(byte[] key, byte[] value) throws KvStorageException {
+        readLock.lock();
+        appendLock.lock();
+        try {
+            putIndex(new BytesKey(key), append(TYPE_PUT, key, value));
+        } catch (IOException e) {
+            throw new KvStorageException(ErrorCode.KVStorageWriteError, e);
+        } finally {
+            appendLock.unlock();
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void batchPut(List<byte[]> keys, List<byte[]> values) throws KvStorageException {
+        if (keys.size() != values.size()) {
+            throw new KvStorageException(ErrorCode.KVStorageBatchWriteError,
+                    "key's size must be equal to value's size");
+        }
+        int size = keys.size();
+        for (int i = 0; i < size; i++) {
+            put(keys.get(i), values.get(i));
+        }
+    }
+
+    @Override
+    public void delete(byte[] key) throws KvStorageException {
+        readLock.lock();
+        appendLock.lock();
+        try {
+            BytesKey bytesKey = new BytesKey(key);
+            if (!index.containsKey(bytesKey)) {
+                return;
+            }
+            // The tombstone itself is garbage, it only has to outlive the segments holding older puts of the key
+            markDead(append(TYPE_DELETE, key, null));
+            removeIndex(bytesKey);
+        } catch (IOException e) {
+            throw new KvStorageException(ErrorCode.KVStorageDeleteError, e);
+        } finally {
+            appendLock.unlock();
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public void batchDelete(List<byte[]> keys) throws KvStorageException {
+        for (byte[] key : keys) {
+            delete(key);
+        }
+    }
+
+    @Override
+    public void doSnapshot(String backupPath) throws KvStorageException {
+        writeLock.lock();
+        try {
+            if (active.size > 0) {
+                roll();
+            }
+            DiskUtils.forceMkdir(backupPath);
+            for (Segment each : segments.values()) {
+                if (each == active) {
+                    continue;
+                }
+                Path target = Paths.get(backupPath, each.file.getName());
+                try {
+                    Files.createLink(target, each.file.toPath());
+                } catch (IOException | UnsupportedOperationException e) {
+                    DiskUtils.copyFile(each.file, target.toFile());
+                }
+            }
+        } catch (IOException e) {
+            throw new KvStorageException(ErrorCode.KVStorageSnapshotSaveError, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void snapshotLoad(String path) throws KvStorageException {
+        writeLock.lock();
+        try {
+            File srcDir = Paths.get(path).toFile();
+            // If snapshot path is non-exist, means snapshot is empty
+            if (srcDir.exists()) {
+                closeSegments();
+                DiskUtils.deleteDirThenMkdir(baseDir);
+                File[] files = srcDir.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+                if (null != files) {
+                    for (File each : files) {
+                        DiskUtils.copyFile(each, Paths.get(baseDir, each.getName()).toFile());
+                    }
+                }
+                recover();
+            }
+        } catch (IOException e) {
+            throw new KvStorageException(ErrorCode.KVStorageSnapshotLoadError, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public List<byte[]> allKeys() throws KvStorageException {
+        List<byte[]> result = new ArrayList<>(index.size());
+        for (BytesKey each : index.keySet()) {
+            result.add(each.origin);
+        }
+        return result;
+    }
+
+    @Override
+    public KvIterator scan(byte[] prefix, byte[] startKey, int limit) throws KvStorageException {
+        final BytesKey from = new BytesKey(AbstractKvIterator.seekKey(prefix, startKey));
+        final byte[] bound = AbstractKvIterator.upperBound(prefix);
+        final Map<BytesKey, Location> range = null == bound ? index.tailMap(from, true)
+                : index.subMap(from, true, new BytesKey(bound), false);
+        final Iterator<BytesKey> iterator = range.keySet().iterator();
+        return new AbstractKvIterator(prefix, limit) {
+            @Override
+            protected Map.Entry<byte[], byte[]> fetch() {
+                while (iterator.hasNext()) {
+                    BytesKey key = iterator.next();
+                    readLock.lock();
+                    try {
+                        // Resolve the location again, the record may have been moved by compaction meanwhile
+                        Location location = index.get(key);
+                        if (null != location) {
+                            return new AbstractMap.SimpleImmutableEntry<>(key.origin, readValue(location));
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException("read segment failed, key: " + new String(key.origin), e);
+                    } finally {
+                        readLock.unlock();
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    @Override
+    public void shutdown() {
+        compactExecutor.shutdownNow();
+        writeLock.lock();
+        try {
+            closeSegments();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Rebuild the index from the segment files, truncating a torn record at the tail of the last segment.
+     */
+    private void recover() throws IOException, KvStorageException {
+        File[] files = new File(baseDir).listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        List<Long> ids = new ArrayList<>();
+        if (null != files) {
+            for (File each : files) {
+                ids.add(Long.parseLong(each.getName().substring(0, each.getName().length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        ids.sort(Long::compare);
+        for (int i = 0; i < ids.size(); i++) {
+            Segment segment = Segment.open(segmentFile(ids.get(i)), ids.get(i));
+            segments.put(segment.id, segment);
+            long valid = load(segment);
+            if (valid < segment.size) {
+                if (i != ids.size() - 1) {
+                    throw new KvStorageException(ErrorCode.KVStorageCreateError,
+                            "corrupted record in sealed segment " + segment.file + " at " + valid);
+                }
+                Loggers.CORE.warn("truncate torn tail of segment {} from {} to {}", segment.file, segment.size, valid);
+                segment.channel.truncate(valid);
+                segment.size = valid;
+            }
+            if (i != ids.size() - 1) {
+                segment.seal();
+            }
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (null == active) {
+            active = Segment.open(segmentFile(1L), 1L);
+            segments.put(active.id, active);
+        }
+    }
+
+    /**
+     * Replay the records of a segment into the index.
+     *
+     * @return the length of the valid prefix of the segment
+     */
+    private long load(Segment segment) throws IOException {
+        MappedByteBuffer buffer = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+        try {
+            return load(segment, buffer);
+        } finally {
+            unmap(buffer);
+        }
+    }
+
+    private long load(Segment segment, ByteBuffer buffer) {
+        long position = 0;
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int start = buffer.position();
+            int crc = buffer.getInt();
+            byte type = buffer.get();
+            int keyLength = buffer.getInt();
+            int valueLength = buffer.getInt();
+            if ((type != TYPE_PUT && type != TYPE_DELETE) || keyLength < 0 || valueLength < 0
+                    || (long) keyLength + valueLength > buffer.remaining()) {
+                break;
+            }
+            CRC32 checksum = new CRC32();
+            ByteBuffer body = buffer.duplicate();
+            body.position(start + 4).limit(start + HEADER_SIZE + keyLength + valueLength);
+            checksum.update(body);
+            if ((int) checksum.getValue() != crc) {
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            buffer.get(key);
+            buffer.position(buffer.position() + valueLength);
+            int recordLength = HEADER_SIZE + keyLength + valueLength;
+            Location location = new Location(segment.id, position, recordLength, keyLength, valueLength);
+            if (type == TYPE_PUT) {
+                putIndex(new BytesKey(key), location);
+            } else {
+                removeIndex(new BytesKey(key));
+                markDead(location);
+            }
+            position += recordLength;
+        }
+        return position;
+    }
+
+    /**
+     * Rewrite the live records of sealed segments over the garbage ratio, then drop them.
+     */
+    void compact() {
+        for (Segment each : segments.values()) {
+            if (each == active || null == each.mapped || (double) each.deadBytes / each.size < garbageRatio) {
+                continue;
+            }
+            try {
+                compact(each);
+            } catch (Throwable e) {
+                Loggers.CORE.error("compact segment {} failed", each.file, e);
+            }
+        }
+    }
+
+    private void compact(Segment victim) throws IOException {
+        readLock.lock();
+        try {
+            if (segments.get(victim.id) != victim) {
+                return;
+            }
+            ByteBuffer buffer = victim.mapped.duplicate();
+            long position = 0;
+            while (position < victim.size) {
+                buffer.position((int) position);
+                buffer.getInt();
+                byte type = buffer.get();
+                int keyLength = buffer.getInt();
+                int valueLength = buffer.getInt();
+                byte[] key = new byte[keyLength];
+                buffer.get(key);
+                BytesKey bytesKey = new BytesKey(key);
+                appendLock.lock();
+                try {
+                    if (type == TYPE_PUT) {
+                        Location current = index.get(bytesKey);
+                        if (null != current && current.segmentId == victim.id && current.offset == position) {
+                            byte[] value = new byte[valueLength];
+                            buffer.get(value);
+                            Location moved = append(TYPE_PUT, key, value);
+                            moved.obsoletePuts = current.obsoletePuts;
+                            index.put(bytesKey, moved);
+                        } else {
+                            dropObsoletePut(bytesKey, current);
+                        }
+                    } else if (!index.containsKey(bytesKey) && tombstones.containsKey(bytesKey)) {
+                        // Tombstones must survive while some segment still holds a put of the same key
+                        markDead(append(TYPE_DELETE, key, null));
+                    }
+                } finally {
+                    appendLock.unlock();
+                }
+                position += HEADER_SIZE + keyLength + valueLength;
+            }
+        } finally {
+            readLock.unlock();
+        }
+        writeLock.lock();
+        try {
+            if (segments.remove(victim.id, victim)) {
+                // The copied records must be durable before the only other copy is deleted
+                active.channel.force(true);
+                victim.close();
+                Files.deleteIfExists(victim.file.toPath());
+                Loggers.CORE.info("segment {} compacted", victim.file);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private Location append(byte type, byte[] key, byte[] value) throws IOException {
+        if (active.size >= segmentBytes) {
+            roll();
+        }
+        int valueLength = null == value ? 0 : value.length;
+        int recordLength = HEADER_SIZE + key.length + valueLength;
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(0).put(type).putInt(key.length).putInt(valueLength).put(key);
+        if (null != value) {
+            record.put(value);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), 4, recordLength - 4);
+        record.putInt(0, (int) checksum.getValue());
+        record.flip();
+        Segment segment = active;
+        long offset = segment.size;
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += segment.channel.write(record, position);
+        }
+        segment.size = position;
+        return new Location(segment.id, offset, recordLength, key.length, valueLength);
+    }
+
+    private void roll() throws IOException {
+        appendLock.lock();
+        try {
+            Segment sealed = active;
+            Segment next = Segment.open(segmentFile(sealed.id + 1), sealed.id + 1);
+            sealed.seal();
+            segments.put(next.id, next);
+            active = next;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private byte[] readValue(Location location) throws IOException {
+        Segment segment = segments.get(location.segmentId);
+        if (null == segment) {
+            throw new IOException("segment " + location.segmentId + " not found");
+        }
+        return segment.read(location.offset + HEADER_SIZE + location.keyLength, location.valueLength);
+    }
+
+    private void putIndex(BytesKey key, Location location) {
+        Location old = index.put(key, location);
+        if (null != old) {
+            location.obsoletePuts = old.obsoletePuts + 1;
+            markDead(old);
+        } else {
+            Integer obsolete = tombstones.remove(key);
+            location.obsoletePuts = null == obsolete ? 0 : obsolete;
+        }
+    }
+
+    private void removeIndex(BytesKey key) {
+        Location old = index.remove(key);
+        if (null != old) {
+            tombstones.put(key, old.obsoletePuts + 1);
+            markDead(old);
+        }
+    }
+
+    /**
+     * An obsolete put of the key is dropped by compaction, once none is left its tombstones can be dropped too.
+     */
+    private void dropObsoletePut(BytesKey key, Location current) {
+        if (null != current) {
+            current.obsoletePuts--;
+            return;
+        }
+        Integer obsolete = tombstones.get(key);
+        if (null != obsolete) {
+            if (obsolete <= 1) {
+                tombstones.remove(key);
+            } else {
+                tombstones.put(key, obsolete - 1);
+            }
+        }
+    }
+
+    private void markDead(Location location) {
+        if (null == location) {
+            return;
+        }
+        Segment segment = segments.get(location.segmentId);
+        if (null != segment) {
+            segment.deadBytes += location.recordLength;
+        }
+    }
+
+    private void closeSegments() {
+        for (Segment each : segments.values()) {
+            each.close();
+        }
+        segments.clear();
+        index.clear();
+        tombstones.clear();
+    }
+
+    private File segmentFile(long id) {
+        return Paths.get(baseDir, String.format("%020d", id) + SEGMENT_SUFFIX).toFile();
+    }
+
+    private static final class Location {
+
+        private final long segmentId;
+
+        private final long offset;
+
+        private final int recordLength;
+
+        private final int keyLength;
+
+        private final int valueLength;
+
+        /**
+         * Number of older puts of the key still on disk, guarded by the append lock.
+         */
+        private int obsoletePuts;
+
+        private Location(long segmentId, long offset, int recordLength, int keyLength, int valueLength) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.recordLength = recordLength;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+    }
+
+    private static final class Segment {
+
+        private final long id;
+
+        private final File file;
+
+        private final FileChannel channel;
+
+        private volatile long size;
+
+        private volatile long deadBytes;
+
+        private volatile MappedByteBuffer mapped;
+
+        private Segment(long id, File file, FileChannel channel, long size) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        static Segment open(File file, long id) throws IOException {
+            FileChannel channel = FileChannel
+                    .open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(id, file, channel, channel.size());
+        }
+
+        void seal() throws IOException {
+            channel.force(true);
+            if (size <= Integer.MAX_VALUE) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+
+        byte[] read(long position, int length) throws IOException {
+            byte[] result = new byte[length];
+            MappedByteBuffer buffer = mapped;
+            if (null != buffer) {
+                ByteBuffer view = buffer.duplicate();
+                view.position((int) position);
+                view.get(result);
+                return result;
+            }
+            ByteBuffer target = ByteBuffer.wrap(result);
+            long offset = position;
+            while (target.hasRemaining()) {
+                int read = channel.read(target, offset);
+                if (read < 0) {
+                    throw new EOFException("unexpected end of segment " + file);
+                }
+                offset += read;
+            }
+            return result;
+        }
+
+        /**
+         * Close the segment, callers hold the write lock so no reader uses the mapping any more.
+         */
+        void close() {
+            MappedByteBuffer buffer = mapped;
+            mapped = null;
+            if (null != buffer) {
+                unmap(buffer);
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Loggers.CORE.warn("close segment {} failed", file, e);
+            }
+        }
+    }
+
+    /**
+     * Release a mapping right away instead of waiting for the buffer to be collected, which keeps the file and its
+     * disk space of a deleted segment in use. The buffer must not be read afterwards.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (null != UNSAFE_INVOKE_CLEANER) {
+                UNSAFE_INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } else {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object clean = cleaner.invoke(buffer);
+                if (null != clean) {
+                    clean.getClass().getMethod("clean").invoke(clean);
+                }
+            }
+        } catch (Exception e) {
+            Loggers.CORE.debug("unmap segment buffer failed, it is released when collected", e);
+        }
+    }
+}
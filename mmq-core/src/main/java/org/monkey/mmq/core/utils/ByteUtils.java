@@ -76,5 +76,27 @@ public final class ByteUtils {
     public static boolean isNotEmpty(byte[] data) {
         return !isEmpty(data);
     }
-    
+
+    /**
+     * Whether byte array starts with the prefix, an empty prefix matches everything.
+     *
+     * @param data   byte array
+     * @param prefix prefix
+     * @return true if data starts with prefix
+     */
+    public static boolean startsWith(byte[] data, byte[] prefix) {
+        if (isEmpty(prefix)) {
+            return true;
+        }
+        if (data == null || data.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 }
@@ -0,0 +1,49 @@
+package org.monkey.mmq.core.storage.kv;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.monkey.mmq.core.utils.ByteUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MemoryKvStorageTest {
+
+    private MemoryKvStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        storage = new MemoryKvStorage();
+        for (String each : Arrays.asList("a-1", "b-1", "b-2", "b-3", "c-1")) {
+            storage.put(ByteUtils.toBytes(each), ByteUtils.toBytes("v" + each));
+        }
+    }
+
+    @Test
+    public void testScanPrefix() throws Exception {
+        assertEquals(Arrays.asList("b-1", "b-2", "b-3"), keys(storage.scan(ByteUtils.toBytes("b-"), null, 0)));
+    }
+
+    @Test
+    public void testScanStartKeyAndLimit() throws Exception {
+        assertEquals(Arrays.asList("b-2"), keys(storage.scan(ByteUtils.toBytes("b-"), ByteUtils.toBytes("b-2"), 1)));
+    }
+
+    @Test
+    public void testScanAll() throws Exception {
+        assertEquals(5, keys(storage.scan(null, null, 0)).size());
+    }
+
+    private List<String> keys(KvIterator iterator) {
+        List<String> result = new ArrayList<>();
+        try (KvIterator each = iterator) {
+            while (each.hasNext()) {
+                result.add(ByteUtils.toString(each.next().getKey()));
+            }
+        }
+        return result;
+    }
+}
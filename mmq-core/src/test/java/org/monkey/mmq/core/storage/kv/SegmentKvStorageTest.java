@@ -0,0 +1,94 @@
+package org.monkey.mmq.core.storage.kv;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.monkey.mmq.core.utils.ByteUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class SegmentKvStorageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecoverAfterTornWrite() throws Exception {
+        String dir = folder.newFolder("data").getPath();
+        SegmentKvStorage storage = new SegmentKvStorage(dir, 128, 0.5D);
+        for (int i = 0; i < 40; i++) {
+            storage.put(ByteUtils.toBytes("k" + (i % 8)), ByteUtils.toBytes("v" + i));
+        }
+        storage.delete(ByteUtils.toBytes("k0"));
+        storage.shutdown();
+
+        File[] files = new File(dir).listFiles();
+        Arrays.sort(files);
+        try (FileOutputStream out = new FileOutputStream(files[files.length - 1], true)) {
+            out.write(new byte[] {1, 2, 3});
+        }
+
+        storage = new SegmentKvStorage(dir, 128, 0.5D);
+        assertNull(storage.get(ByteUtils.toBytes("k0")));
+        assertEquals("v39", ByteUtils.toString(storage.get(ByteUtils.toBytes("k7"))));
+        assertEquals(7, storage.allKeys().size());
+        storage.shutdown();
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        String dir = folder.newFolder("data").getPath();
+        String snapshot = folder.newFolder("snapshot").getPath();
+        SegmentKvStorage storage = new SegmentKvStorage(dir, 128, 0.5D);
+        storage.put(ByteUtils.toBytes("a"), ByteUtils.toBytes("1"));
+        storage.doSnapshot(snapshot);
+        storage.put(ByteUtils.toBytes("a"), ByteUtils.toBytes("2"));
+        storage.put(ByteUtils.toBytes("b"), ByteUtils.toBytes("3"));
+
+        storage.snapshotLoad(snapshot);
+        assertEquals("1", ByteUtils.toString(storage.get(ByteUtils.toBytes("a"))));
+        assertNull(storage.get(ByteUtils.toBytes("b")));
+        storage.shutdown();
+    }
+
+    @Test
+    public void testCompactRetiresTombstones() throws Exception {
+        String dir = folder.newFolder("data").getPath();
+        SegmentKvStorage storage = new SegmentKvStorage(dir, 128, 0.5D);
+        // segment 1 only holds live keys and is never compacted
+        for (int i = 0; i < 6; i++) {
+            storage.put(ByteUtils.toBytes("l" + i), ByteUtils.toBytes("value-l" + i));
+        }
+        storage.put(ByteUtils.toBytes("gone"), ByteUtils.toBytes("value-go"));
+        for (int round = 0; round < 3; round++) {
+            if (round == 1) {
+                storage.delete(ByteUtils.toBytes("gone"));
+            }
+            for (int i = 0; i < 5; i++) {
+                storage.put(ByteUtils.toBytes("f" + i), ByteUtils.toBytes("value-f" + round));
+            }
+        }
+        storage.compact();
+
+        // the put of the key is compacted away, so its tombstone is dropped instead of being copied again
+        File[] files = new File(dir).listFiles();
+        for (File each : files) {
+            assertFalse(each.getName(), new String(Files.readAllBytes(each.toPath()), StandardCharsets.ISO_8859_1).contains("gone"));
+        }
+        storage.shutdown();
+
+        storage = new SegmentKvStorage(dir, 128, 0.5D);
+        assertNull(storage.get(ByteUtils.toBytes("gone")));
+        assertEquals("value-f2", ByteUtils.toString(storage.get(ByteUtils.toBytes("f4"))));
+        assertEquals(11, storage.allKeys().size());
+        storage.shutdown();
+    }
+}
@@ -26,6 +26,10 @@ import net.sf.jsqlparser.statement.select.*;
 import org.apache.commons.collections.CollectionUtils;
 import org.monkey.mmq.rule.engine.feature.*;
 import org.monkey.mmq.rule.engine.supports.DefaultReactorQLMetadata;
+import org.monkey.mmq.rule.engine.supports.agg.Accumulator;
+import org.monkey.mmq.rule.engine.supports.compile.CompiledExpression;
+import org.monkey.mmq.rule.engine.supports.compile.ExpressionCompiler;
+import org.monkey.mmq.rule.engine.supports.group.IncrementalWindowAggregation;
 import org.monkey.mmq.rule.engine.utils.CompareUtils;
 import org.reactivestreams.Publisher;
 import reactor.core.publisher.Flux;
@@ -43,6 +47,8 @@ import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import static org.monkey.mmq.rule.engine.ReactorQLRecord.newRecord;
 
@@ -74,6 +80,10 @@ public class DefaultReactorQL implements ReactorQL {
     private Function<Flux<ReactorQLRecord>, Flux<ReactorQLRecord>> distinct;
     private Function<ReactorQLContext, Flux<ReactorQLRecord>> builder;
 
+    //所有聚合列都支持增量聚合时不为null
+    private Map<String, Supplier<Accumulator>> incrementalAggs;
+    private Function<ReactorQLRecord, Mono<ReactorQLRecord>> windowResultMapper;
+
 
     public DefaultReactorQL(ReactorQLMetadata metadata) {
         this.metadata = metadata;
@@ -206,6 +216,19 @@ public class DefaultReactorQL implements ReactorQL {
         PlainSelect select = metadata.getSql();
         GroupByElement groupBy = select.getGroupBy();
         if (null != groupBy) {
+            //按列和滚动窗口分组时增量聚合
+            Optional<IncrementalWindowAggregation> incremental = IncrementalWindowAggregation.create(groupBy, metadata, incrementalAggs);
+            if (incremental.isPresent()) {
+                IncrementalWindowAggregation aggregation = incremental.get();
+                Expression having = select.getHaving();
+                if (null != having) {
+                    BiFunction<ReactorQLRecord, Object, Mono<Boolean>> filter = FilterFeature.createPredicateNow(having, metadata);
+                    return flux -> aggregation.apply(flux, this::windowRecord)
+                                              .concatMap(windowResultMapper)
+                                              .filterWhen(ctx -> filter.apply(ctx, ctx.getRecord()));
+                }
+                return flux -> aggregation.apply(flux, this::windowRecord).concatMap(windowResultMapper);
+            }
             AtomicReference<Function<Flux<ReactorQLRecord>, Flux<Tuple2< Flux<ReactorQLRecord>, Map<String, Object>>>>> groupByRef = new AtomicReference<>();
 
             Consumer3<String, Expression, GroupFeature> featureConsumer = (name, expr, feature) -> {
@@ -283,11 +306,26 @@ public class DefaultReactorQL implements ReactorQL {
 
     }
 
+    private ReactorQLRecord windowRecord(ReactorQLRecord last, Map<String, Object> results) {
+        ReactorQLRecord newCtx = last == null
+                ? newRecord(null, new HashMap<>(), new DefaultReactorQLContext((r) -> Flux.just(1)))
+                : last.copy();
+        return newCtx
+                .putRecordToResult()
+                .resultToRecord(newCtx.getName())
+                .setResults(results);
+    }
+
     protected Function<Flux<ReactorQLRecord>, Flux<ReactorQLRecord>> createWhere() {
         Expression whereExpr = metadata.getSql().getWhere();
         if (whereExpr == null) {
             return Function.identity();
         }
+        Optional<Predicate<ReactorQLRecord>> compiled = ExpressionCompiler.compilePredicate(whereExpr, metadata);
+        if (compiled.isPresent()) {
+            Predicate<ReactorQLRecord> predicate = compiled.get();
+            return flux -> flux.filter(predicate);
+        }
         BiFunction<ReactorQLRecord, Object, Mono<Boolean>> filter = FilterFeature.createPredicateNow(whereExpr, metadata);
         return flux -> flux.filterWhen(ctx -> filter.apply(ctx, ctx.getRecord()));
     }
@@ -317,10 +355,14 @@ public class DefaultReactorQL implements ReactorQL {
 
         Map<String, Function<ReactorQLRecord, Publisher<?>>> mappers = new LinkedHashMap<>();
 
+        Map<String, CompiledExpression> compiledMappers = new LinkedHashMap<>();
+
         Map<String, BiFunction<String, Flux<ReactorQLRecord>, Flux<ReactorQLRecord>>> flatMappers = new LinkedHashMap<>();
 
         Map<String, Function<Flux<ReactorQLRecord>, Flux<Object>>> aggMapper = new LinkedHashMap<>();
 
+        Map<String, Supplier<Accumulator>> accumulators = new LinkedHashMap<>();
+
         List<Consumer<ReactorQLRecord>> allMapper = new ArrayList<>();
 
         for (SelectItem selectItem : metadata.getSql().getSelectItems()) {
@@ -336,8 +378,17 @@ public class DefaultReactorQL implements ReactorQL {
                         alias = alias.substring(0, alias.length() - 1);
                     }
                     String fAlias = alias;
-                    createExpressionMapper(expression).ifPresent(mapper -> mappers.put(fAlias, mapper));
-                    createAggMapper(expression).ifPresent(mapper -> aggMapper.put(fAlias, mapper));
+                    Optional<CompiledExpression> compiled = ExpressionCompiler.compile(expression, metadata);
+                    if (compiled.isPresent()) {
+                        compiledMappers.put(fAlias, compiled.get());
+                        mappers.put(fAlias, record -> Mono.justOrEmpty(compiled.get().evaluate(record)));
+                    } else {
+                        createExpressionMapper(expression).ifPresent(mapper -> mappers.put(fAlias, mapper));
+                    }
+                    createAggMapper(expression).ifPresent(mapper -> {
+                        aggMapper.put(fAlias, mapper);
+                        Accumulator.create(expression, metadata).ifPresent(acc -> accumulators.put(fAlias, acc));
+                    });
                     //flatMap
                     ValueFlatMapFeature.createMapperByExpression(expression, metadata)
                                        .ifPresent(mapper -> flatMappers.put(fAlias, mapper));
@@ -371,14 +422,26 @@ public class DefaultReactorQL implements ReactorQL {
                 }
             });
         }
-        Function<ReactorQLRecord, Mono<ReactorQLRecord>> _resultMapper = record ->
-                Flux.fromIterable(mappers.entrySet())
+        //所有列都已编译时同步转换
+        boolean allCompiled = compiledMappers.size() == mappers.size();
+        Function<ReactorQLRecord, ReactorQLRecord> compiledResultMapper = record -> {
+            for (Map.Entry<String, CompiledExpression> e : compiledMappers.entrySet()) {
+                record.setResult(e.getKey(), e.getValue().evaluate(record));
+            }
+            if (!allMapper.isEmpty()) {
+                allMapper.forEach(mapper -> mapper.accept(record));
+            }
+            return record;
+        };
+        Function<ReactorQLRecord, Mono<ReactorQLRecord>> _resultMapper = allCompiled
+                ? record -> Mono.just(compiledResultMapper.apply(record))
+                : record -> Flux.fromIterable(mappers.entrySet())
                     .flatMap(e -> Mono.zip(Mono.just(e.getKey()), Mono.from(e.getValue().apply(record))))
                     .doOnNext(tp2 -> record.setResult(tp2.getT1(), tp2.getT2()))
                     .then()
                     .thenReturn(record);
 
-        if (!allMapper.isEmpty()) {
+        if (!allMapper.isEmpty() && !allCompiled) {
             _resultMapper = _resultMapper
                     .andThen(record -> record.doOnNext(r -> {
                         allMapper.forEach(mapper -> mapper.accept(r));
@@ -388,6 +451,10 @@ public class DefaultReactorQL implements ReactorQL {
         //转换结果集
         Function<ReactorQLRecord, Mono<ReactorQLRecord>> resultMapper = _resultMapper;
         boolean hasMapper = !mappers.isEmpty();
+        if (flatMappers.isEmpty() && !aggMapper.isEmpty() && accumulators.size() == aggMapper.size()) {
+            incrementalAggs = accumulators;
+            windowResultMapper = hasMapper ? resultMapper : Mono::just;
+        }
 
         Function<Flux<ReactorQLRecord>, Flux<ReactorQLRecord>> mapper;
         //聚合结果
@@ -487,6 +554,8 @@ public class DefaultReactorQL implements ReactorQL {
             //指定了分组,但是没有聚合.只获取一个结果.
             if (metadata.getSql().getGroupBy() != null) {
                 mapper = flux -> flux.takeLast(1).flatMap(resultMapper);
+            } else if (allCompiled) {
+                mapper = flux -> flux.map(compiledResultMapper);
             } else {
                 mapper = flux -> flux.flatMap(resultMapper);
             }
@@ -17,6 +17,7 @@
 package org.monkey.mmq.rule.engine;
 
 
+import net.sf.jsqlparser.statement.select.PlainSelect;
 import org.monkey.mmq.rule.engine.feature.Feature;
 import org.monkey.mmq.rule.engine.supports.DefaultReactorQLMetadata;
 
@@ -28,6 +29,8 @@ class DefaultReactorQLBuilder implements ReactorQL.Builder {
 
     private String sql;
 
+    private PlainSelect select;
+
     private final List<Feature> features = new ArrayList<>();
 
     @Override
@@ -36,6 +39,12 @@ class DefaultReactorQLBuilder implements ReactorQL.Builder {
         return this;
     }
 
+    @Override
+    public ReactorQL.Builder select(PlainSelect select) {
+        this.select = select;
+        return this;
+    }
+
     @Override
     public ReactorQL.Builder feature(Feature... features) {
         this.features.addAll(Arrays.asList(features));
@@ -44,7 +53,7 @@ class DefaultReactorQLBuilder implements ReactorQL.Builder {
 
     @Override
     public ReactorQL build() {
-        DefaultReactorQLMetadata metadata = new DefaultReactorQLMetadata(sql);
+        DefaultReactorQLMetadata metadata = select != null ? new DefaultReactorQLMetadata(select) : new DefaultReactorQLMetadata(sql);
         metadata.addFeature(features);
         return new DefaultReactorQL(metadata);
     }
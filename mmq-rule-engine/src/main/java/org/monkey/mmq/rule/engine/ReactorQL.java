@@ -16,6 +16,7 @@
 
 package org.monkey.mmq.rule.engine;
 
+import net.sf.jsqlparser.statement.select.PlainSelect;
 import org.monkey.mmq.rule.engine.feature.Feature;
 import org.monkey.mmq.rule.engine.feature.FilterFeature;
 import org.monkey.mmq.rule.engine.feature.GroupFeature;
@@ -105,6 +106,14 @@ public interface ReactorQL {
          */
         Builder sql(String... sql);
 
+        /**
+         * 指定已解析的SQL,用于构造前修改SQL的场景
+         *
+         * @param select SQL
+         * @return this
+         */
+        Builder select(PlainSelect select);
+
         /**
          * 设置特性,用于设置自定义函数等操作
          *
@@ -17,6 +17,7 @@
 package org.monkey.mmq.rule.engine.feature;
 
 import java.util.Optional;
+import java.util.function.Function;
 
 public interface PropertyFeature extends Feature {
 
@@ -27,6 +28,16 @@ public interface PropertyFeature extends Feature {
 
     Optional<Object> getProperty(Object property, Object value);
 
+    /**
+     * 创建属性获取函数,属性固定时可预先解析属性路径
+     *
+     * @param property 属性
+     * @return 获取函数
+     */
+    default Function<Object, Optional<Object>> createAccessor(Object property) {
+        return value -> getProperty(property, value);
+    }
+
     @Override
     default String getId() {
         return ID_STR;
@@ -23,6 +23,8 @@ import org.monkey.mmq.rule.engine.supports.map.CastFeature;
 import org.monkey.mmq.rule.engine.utils.CastUtils;
 import org.monkey.mmq.rule.engine.utils.SqlUtils;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
@@ -36,16 +38,21 @@ public class DefaultPropertyFeature implements PropertyFeature {
         if (value == null) {
             return Optional.empty();
         }
+        return createAccessor(property).apply(value);
+    }
+
+    @Override
+    public Function<Object, Optional<Object>> createAccessor(Object property) {
         if (property instanceof String) {
             property = SqlUtils.getCleanStr((String) property);
         }
         if ("this".equals(property) || "$".equals(property) || "*".equals(property)) {
-            return Optional.of(value);
+            return Optional::ofNullable;
         }
 
         if (property instanceof Number) {
             int index = ((Number) property).intValue();
-            return Optional.ofNullable(CastUtils.castArray(value).get(index));
+            return value -> value == null ? Optional.empty() : Optional.ofNullable(CastUtils.castArray(value).get(index));
         }
         Function<Object, Object> mapper = Function.identity();
         String strProperty = String.valueOf(property);
@@ -53,34 +60,63 @@ public class DefaultPropertyFeature implements PropertyFeature {
             String[] cast = strProperty.split("::");
 
             strProperty = cast[0];
-            mapper = v -> CastFeature.castValue(v, cast[1]);
+            if (cast.length > 1) {
+                mapper = CastFeature.createCaster(cast[1]);
+            }
         }
+        return new PropertyAccessor(strProperty, mapper);
+    }
 
-        Object direct = doGetProperty(strProperty, value);
-        if (direct != null) {
-            return Optional.of(direct).map(mapper);
-        }
-        Object tmp = value;
-        String[] props = strProperty.split("[.]", 2);
-        if (props.length <= 1) {
-            return Optional.empty();
+    /**
+     * 预先解析的属性路径,先按完整属性获取,再逐级获取,每一级都先尝试以剩余路径作为属性获取.
+     */
+    private final class PropertyAccessor implements Function<Object, Optional<Object>> {
+
+        private final String property;
+
+        private final String[] heads;
+
+        private final String[] rests;
+
+        private final Function<Object, Object> mapper;
+
+        private PropertyAccessor(String property, Function<Object, Object> mapper) {
+            this.property = property;
+            this.mapper = mapper;
+            List<String> heads = new ArrayList<>();
+            List<String> rests = new ArrayList<>();
+            String[] props = property.split("[.]", 2);
+            while (props.length > 1) {
+                heads.add(props[0]);
+                rests.add(props[1]);
+                props = props[1].split("[.]", 2);
+            }
+            this.heads = heads.toArray(new String[0]);
+            this.rests = rests.toArray(new String[0]);
         }
-        while (props.length > 1) {
-            tmp = doGetProperty(props[0], tmp);
-            if (tmp == null) {
+
+        @Override
+        public Optional<Object> apply(Object value) {
+            if (value == null) {
                 return Optional.empty();
             }
-            Object fast = doGetProperty(props[1], tmp);
-            if (fast != null) {
-                return Optional.of(fast).map(mapper);
+            Object direct = doGetProperty(property, value);
+            if (direct != null) {
+                return Optional.ofNullable(mapper.apply(direct));
             }
-            if (props[1].contains(".")) {
-                props = props[1].split("[.]", 2);
-            } else {
-                return Optional.empty();
+            Object tmp = value;
+            for (int i = 0; i < heads.length; i++) {
+                tmp = doGetProperty(heads[i], tmp);
+                if (tmp == null) {
+                    return Optional.empty();
+                }
+                Object fast = doGetProperty(rests[i], tmp);
+                if (fast != null) {
+                    return Optional.ofNullable(mapper.apply(fast));
+                }
             }
+            return Optional.empty();
         }
-        return Optional.of(tmp).map(mapper);
     }
 
     protected Object doGetProperty(String property, Object value) {
@@ -26,7 +26,9 @@ import org.monkey.mmq.rule.engine.feature.FeatureId;
 import org.monkey.mmq.rule.engine.supports.agg.CollectListAggFeature;
 import org.monkey.mmq.rule.engine.supports.agg.CollectRowAggMapFeature;
 import org.monkey.mmq.rule.engine.supports.agg.CountAggFeature;
+import org.monkey.mmq.rule.engine.supports.agg.HyperLogLog;
 import org.monkey.mmq.rule.engine.supports.agg.MapAggFeature;
+import org.monkey.mmq.rule.engine.supports.distinct.BoundedDistinctFeature;
 import org.monkey.mmq.rule.engine.supports.distinct.DefaultDistinctFeature;
 import org.monkey.mmq.rule.engine.supports.filter.*;
 import org.monkey.mmq.rule.engine.supports.fmap.ArrayValueFlatMapFeature;
@@ -62,6 +64,24 @@ public class DefaultReactorQLMetadata implements ReactorQLMetadata {
 
     private final Map<String, Object> settings = new ConcurrentHashMap<>();
 
+    // 四则运算支持原始类型计算,用于编译后的表达式
+    static BinaryCalculateMapFeature createMapCalculator(String type, BiFunction<Number, Number, Object> calculator) {
+        switch (type) {
+            case "+":
+                return new BinaryCalculateMapFeature(type, calculator, (l, r) -> l + r, (l, r) -> l + r);
+            case "-":
+                return new BinaryCalculateMapFeature(type, calculator, (l, r) -> l - r, (l, r) -> l - r);
+            case "*":
+                return new BinaryCalculateMapFeature(type, calculator, (l, r) -> l * r, (l, r) -> l * r);
+            case "/":
+                return new BinaryCalculateMapFeature(type, calculator, (l, r) -> l / r, (l, r) -> l / r);
+            case "%":
+                return new BinaryCalculateMapFeature(type, calculator, (l, r) -> l % r, (l, r) -> l % r);
+            default:
+                return new BinaryCalculateMapFeature(type, calculator);
+        }
+    }
+
     static <T> void createCalculator(BiFunction<String, BiFunction<Number, Number, Object>, T> builder, Consumer<T> consumer) {
 
         consumer.accept(builder.apply("+", CalculateUtils::add));
@@ -96,6 +116,8 @@ public class DefaultReactorQLMetadata implements ReactorQLMetadata {
 
     static {
         addGlobal(new DefaultDistinctFeature());
+        addGlobal(new BoundedDistinctFeature(BoundedDistinctFeature.BOUNDED));
+        addGlobal(new BoundedDistinctFeature(BoundedDistinctFeature.BLOOM));
         addGlobal(new SubSelectFromFeature());
         addGlobal(new FromTableFeature());
         addGlobal(new ZipSelectFeature());
@@ -161,7 +183,7 @@ public class DefaultReactorQLMetadata implements ReactorQLMetadata {
         // group by a+1
         createCalculator(GroupByCalculateBinaryFeature::new, DefaultReactorQLMetadata::addGlobal);
         // select val+10
-        createCalculator(BinaryCalculateMapFeature::new, DefaultReactorQLMetadata::addGlobal);
+        createCalculator(DefaultReactorQLMetadata::createMapCalculator, DefaultReactorQLMetadata::addGlobal);
 
         //concat
         BiFunction<Object, Object, Object> concat = (left, right) -> {
@@ -244,73 +266,33 @@ public class DefaultReactorQLMetadata implements ReactorQLMetadata {
         addGlobal(new SingleParameterFunctionMapFeature("bit_not", v -> CalculateUtils.bitNot(CastUtils.castNumber(v))));
         addGlobal(new SingleParameterFunctionMapFeature("bit_count", v -> CalculateUtils.bitCount(CastUtils.castNumber(v))));
 
-        addGlobal(new SingleParameterFunctionMapFeature("math.log", v -> Math.log(CastUtils
-                                                                                          .castNumber(v)
-                                                                                          .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.log1p", v -> Math.log1p(CastUtils
-                                                                                              .castNumber(v)
-                                                                                              .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.log10", v -> Math.log10(CastUtils
-                                                                                              .castNumber(v)
-                                                                                              .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.exp", v -> Math.exp(CastUtils
-                                                                                          .castNumber(v)
-                                                                                          .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.expm1", v -> Math.expm1(CastUtils
-                                                                                              .castNumber(v)
-                                                                                              .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.rint", v -> Math.rint(CastUtils
-                                                                                            .castNumber(v)
-                                                                                            .doubleValue())));
-
-        addGlobal(new SingleParameterFunctionMapFeature("math.sin", v -> Math.sin(CastUtils
-                                                                                          .castNumber(v)
-                                                                                          .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.asin", v -> Math.asin(CastUtils
-                                                                                            .castNumber(v)
-                                                                                            .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.sinh", v -> Math.sinh(CastUtils
-                                                                                            .castNumber(v)
-                                                                                            .doubleValue())));
-
-        addGlobal(new SingleParameterFunctionMapFeature("math.cos", v -> Math.cos(CastUtils
-                                                                                          .castNumber(v)
-                                                                                          .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.cosh", v -> Math.cosh(CastUtils
-                                                                                            .castNumber(v)
-                                                                                            .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.acos", v -> Math.acos(CastUtils
-                                                                                            .castNumber(v)
-                                                                                            .doubleValue())));
-
-        addGlobal(new SingleParameterFunctionMapFeature("math.tan", v -> Math.tan(CastUtils
-                                                                                          .castNumber(v)
-                                                                                          .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.tanh", v -> Math.tanh(CastUtils
-                                                                                            .castNumber(v)
-                                                                                            .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.atan", v -> Math.atan(CastUtils
-                                                                                            .castNumber(v)
-                                                                                            .doubleValue())));
-
-        addGlobal(new SingleParameterFunctionMapFeature("math.ceil", v -> Math.ceil(CastUtils
-                                                                                            .castNumber(v)
-                                                                                            .doubleValue())));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.log", Math::log));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.log1p", Math::log1p));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.log10", Math::log10));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.exp", Math::exp));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.expm1", Math::expm1));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.rint", Math::rint));
+
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.sin", Math::sin));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.asin", Math::asin));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.sinh", Math::sinh));
+
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.cos", Math::cos));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.cosh", Math::cosh));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.acos", Math::acos));
+
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.tan", Math::tan));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.tanh", Math::tanh));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.atan", Math::atan));
+
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.ceil", Math::ceil));
         addGlobal(new SingleParameterFunctionMapFeature("math.round", v -> Math.round(CastUtils
                                                                                               .castNumber(v)
                                                                                               .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.floor", v -> Math.floor(CastUtils
-                                                                                              .castNumber(v)
-                                                                                              .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.abs", v -> Math.abs(CastUtils
-                                                                                          .castNumber(v)
-                                                                                          .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.degrees", v -> Math.toDegrees(CastUtils
-                                                                                                    .castNumber(v)
-                                                                                                    .doubleValue())));
-        addGlobal(new SingleParameterFunctionMapFeature("math.radians", v -> Math.toRadians(CastUtils
-                                                                                                    .castNumber(v)
-                                                                                                    .doubleValue())));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.floor", Math::floor));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.abs", Math::abs));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.degrees", Math::toDegrees));
+        addGlobal(SingleParameterFunctionMapFeature.ofDouble("math.radians", Math::toRadians));
 
 
         // select take(name,1)
@@ -344,6 +326,15 @@ public class DefaultReactorQLMetadata implements ReactorQLMetadata {
 
         addGlobal(new MapAggFeature("max", flux -> MathFlux.max(flux, CompareUtils::compare).defaultIfEmpty(0D)));
         addGlobal(new MapAggFeature("min", flux -> MathFlux.min(flux, CompareUtils::compare).defaultIfEmpty(0D)));
+        addGlobal(new MapAggFeature("last", flux -> flux.takeLast(1)));
+        // select count_distinct_approx(deviceId), count_distinct_approx(deviceId,14)
+        addGlobal(new MapAggFeature("count_distinct_approx", (arg, flux) -> flux
+                .reduceWith(() -> new HyperLogLog(arg.isEmpty() ? HyperLogLog.DEFAULT_PRECISION : ((Number) arg.get(0)).intValue()),
+                            (hyperLogLog, value) -> {
+                                hyperLogLog.add(value);
+                                return hyperLogLog;
+                            })
+                .map(HyperLogLog::cardinality)));
 
         addGlobal(new FunctionMapFeature("math.max", 9999, 1,
                                          flux -> MathFlux.max(flux.as(CastUtils::flatStream), CompareUtils::compare).defaultIfEmpty(0D)));
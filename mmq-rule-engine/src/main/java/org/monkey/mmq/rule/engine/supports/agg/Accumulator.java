@@ -0,0 +1,240 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.rule.engine.supports.agg;
+
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.Function;
+import net.sf.jsqlparser.expression.LongValue;
+import org.monkey.mmq.rule.engine.ReactorQLMetadata;
+import org.monkey.mmq.rule.engine.ReactorQLRecord;
+import org.monkey.mmq.rule.engine.supports.compile.CompiledExpression;
+import org.monkey.mmq.rule.engine.supports.compile.ExpressionCompiler;
+import org.monkey.mmq.rule.engine.utils.CastUtils;
+import org.monkey.mmq.rule.engine.utils.CompareUtils;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * 增量聚合器, 逐条累加, 状态大小固定, 不保存窗口内的数据
+ * <pre>
+ *     count(1), count(col), sum(col), avg(col), min(col), max(col), last(col), count_distinct_approx(col[,precision])
+ * </pre>
+ * 结果与对应的{@link MapAggFeature}, {@link CountAggFeature}一致
+ *
+ * @author solley
+ */
+public interface Accumulator {
+
+    /**
+     * 累加一条记录
+     *
+     * @param record 记录
+     */
+    void accept(ReactorQLRecord record);
+
+    /**
+     * @return 聚合结果
+     */
+    Object result();
+
+    /**
+     * 创建聚合函数的增量聚合器
+     *
+     * @param expression 聚合函数
+     * @param metadata   元数据
+     * @return 聚合器, 不支持增量聚合或参数不能编译时为空
+     */
+    static Optional<Supplier<Accumulator>> create(Expression expression, ReactorQLMetadata metadata) {
+        if (!(expression instanceof Function)) {
+            return Optional.empty();
+        }
+        Function function = (Function) expression;
+        String name = function.getName().toLowerCase();
+        List<Expression> parameters = function.getParameters() == null ? null : function.getParameters().getExpressions();
+        if ("count".equals(name)) {
+            if (function.isAllColumns() || parameters == null || parameters.isEmpty() || parameters.get(0) instanceof LongValue) {
+                return Optional.of(() -> new Count(null));
+            }
+        }
+        if ("count_distinct_approx".equals(name) && parameters != null && parameters.size() == 2
+                && parameters.get(1) instanceof LongValue) {
+            int precision = (int) ((LongValue) parameters.get(1)).getValue();
+            return ExpressionCompiler.compile(parameters.get(0), metadata)
+                    .map(argument -> () -> new DistinctApprox(argument, precision));
+        }
+        if (parameters == null || parameters.size() != 1) {
+            return Optional.empty();
+        }
+        Optional<CompiledExpression> compiled = ExpressionCompiler.compile(parameters.get(0), metadata);
+        if (!compiled.isPresent()) {
+            return Optional.empty();
+        }
+        CompiledExpression argument = compiled.get();
+        switch (name) {
+            case "count":
+                return Optional.of(() -> new Count(argument));
+            case "sum":
+                return Optional.of(() -> new Sum(argument, false));
+            case "avg":
+                return Optional.of(() -> new Sum(argument, true));
+            case "max":
+                return Optional.of(() -> new Extreme(argument, 1));
+            case "min":
+                return Optional.of(() -> new Extreme(argument, -1));
+            case "last":
+                return Optional.of(() -> new Last(argument));
+            case "count_distinct_approx":
+                return Optional.of(() -> new DistinctApprox(argument, HyperLogLog.DEFAULT_PRECISION));
+            default:
+                return Optional.empty();
+        }
+    }
+
+    final class Count implements Accumulator {
+
+        private final CompiledExpression argument;
+
+        private long count;
+
+        Count(CompiledExpression argument) {
+            this.argument = argument;
+        }
+
+        @Override
+        public void accept(ReactorQLRecord record) {
+            if (argument == null || argument.evaluate(record) != null) {
+                count++;
+            }
+        }
+
+        @Override
+        public Object result() {
+            return count;
+        }
+    }
+
+    final class Sum implements Accumulator {
+
+        private final CompiledExpression argument;
+
+        private final boolean average;
+
+        private double sum;
+
+        private long count;
+
+        Sum(CompiledExpression argument, boolean average) {
+            this.argument = argument;
+            this.average = average;
+        }
+
+        @Override
+        public void accept(ReactorQLRecord record) {
+            Object value = argument.evaluate(record);
+            if (value != null) {
+                sum += CastUtils.castNumber(value).doubleValue();
+                count++;
+            }
+        }
+
+        @Override
+        public Object result() {
+            if (!average) {
+                return sum;
+            }
+            return count == 0 ? 0D : sum / count;
+        }
+    }
+
+    final class Extreme implements Accumulator {
+
+        private final CompiledExpression argument;
+
+        private final int sign;
+
+        private Object value;
+
+        /**
+         * @param sign 1为最大值, -1为最小值
+         */
+        Extreme(CompiledExpression argument, int sign) {
+            this.argument = argument;
+            this.sign = sign;
+        }
+
+        @Override
+        public void accept(ReactorQLRecord record) {
+            Object current = argument.evaluate(record);
+            if (current != null && (value == null || CompareUtils.compare(current, value) * sign > 0)) {
+                value = current;
+            }
+        }
+
+        @Override
+        public Object result() {
+            return value == null ? 0D : value;
+        }
+    }
+
+    final class Last implements Accumulator {
+
+        private final CompiledExpression argument;
+
+        private Object value;
+
+        Last(CompiledExpression argument) {
+            this.argument = argument;
+        }
+
+        @Override
+        public void accept(ReactorQLRecord record) {
+            Object current = argument.evaluate(record);
+            if (current != null) {
+                value = current;
+            }
+        }
+
+        @Override
+        public Object result() {
+            return value;
+        }
+    }
+
+    final class DistinctApprox implements Accumulator {
+
+        private final CompiledExpression argument;
+
+        private final HyperLogLog hyperLogLog;
+
+        DistinctApprox(CompiledExpression argument, int precision) {
+            this.argument = argument;
+            this.hyperLogLog = new HyperLogLog(precision);
+        }
+
+        @Override
+        public void accept(ReactorQLRecord record) {
+            hyperLogLog.add(argument.evaluate(record));
+        }
+
+        @Override
+        public Object result() {
+            return hyperLogLog.cardinality();
+        }
+    }
+}
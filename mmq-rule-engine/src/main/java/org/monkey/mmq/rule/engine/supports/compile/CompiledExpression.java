@@ -0,0 +1,37 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.rule.engine.supports.compile;
+
+import org.monkey.mmq.rule.engine.ReactorQLRecord;
+
+/**
+ * 编译后的表达式,同步求值,不经过{@link org.reactivestreams.Publisher}
+ *
+ * @author solley
+ * @see ExpressionCompiler
+ */
+@FunctionalInterface
+public interface CompiledExpression {
+
+    /**
+     * 求值
+     *
+     * @param record 记录
+     * @return 值, 无值时为null
+     */
+    Object evaluate(ReactorQLRecord record);
+}
@@ -0,0 +1,628 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.rule.engine.supports.compile;
+
+import net.sf.jsqlparser.expression.*;
+import net.sf.jsqlparser.expression.operators.conditional.AndExpression;
+import net.sf.jsqlparser.expression.operators.conditional.OrExpression;
+import net.sf.jsqlparser.expression.operators.relational.ComparisonOperator;
+import net.sf.jsqlparser.expression.operators.relational.IsNullExpression;
+import net.sf.jsqlparser.schema.Column;
+import org.monkey.mmq.rule.engine.ReactorQLMetadata;
+import org.monkey.mmq.rule.engine.ReactorQLRecord;
+import org.monkey.mmq.rule.engine.feature.FeatureId;
+import org.monkey.mmq.rule.engine.feature.FilterFeature;
+import org.monkey.mmq.rule.engine.feature.PropertyFeature;
+import org.monkey.mmq.rule.engine.feature.ValueMapFeature;
+import org.monkey.mmq.rule.engine.supports.filter.AndFilter;
+import org.monkey.mmq.rule.engine.supports.filter.BinaryFilterFeature;
+import org.monkey.mmq.rule.engine.supports.filter.OrFilter;
+import org.monkey.mmq.rule.engine.supports.map.BinaryCalculateMapFeature;
+import org.monkey.mmq.rule.engine.supports.map.CastFeature;
+import org.monkey.mmq.rule.engine.supports.map.PropertyMapFeature;
+import org.monkey.mmq.rule.engine.supports.map.SingleParameterFunctionMapFeature;
+import org.monkey.mmq.rule.engine.utils.CastUtils;
+
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 表达式编译器,将where条件和select列编译为同步求值的表达式树,结果与解释执行一致.
+ *
+ * <p>支持列,数字及字符串常量,类型转换,四则运算,数字函数,比较,and,or,not,is null. 数字常量,转换为long,double的值
+ * ({@code cast(a as double)},{@code a::long})及{@code math.abs}等数字函数的类型已知,其运算和比较使用long,double计算,
+ * 不进行装箱. 包含其他表达式或特性被替换时不编译,由{@link FilterFeature},{@link ValueMapFeature}解释执行.
+ *
+ * @author solley
+ */
+public final class ExpressionCompiler {
+
+    private static final int OBJECT = 0;
+
+    private static final int LONG = 1;
+
+    private static final int DOUBLE = 2;
+
+    private ExpressionCompiler() {
+    }
+
+    /**
+     * 编译条件表达式
+     *
+     * @param expression 表达式
+     * @param metadata   元数据
+     * @return 编译后的条件, 不支持编译时为空
+     */
+    public static Optional<Predicate<ReactorQLRecord>> compilePredicate(Expression expression, ReactorQLMetadata metadata) {
+        return Optional.ofNullable(predicate(expression, metadata));
+    }
+
+    /**
+     * 编译值表达式
+     *
+     * @param expression 表达式
+     * @param metadata   元数据
+     * @return 编译后的表达式, 不支持编译时为空
+     */
+    public static Optional<CompiledExpression> compile(Expression expression, ReactorQLMetadata metadata) {
+        return Optional.ofNullable(value(expression, metadata));
+    }
+
+    /**
+     * 编译后的条件是否按long,double比较
+     *
+     * @param predicate {@link #compilePredicate}编译的条件
+     * @return 两边类型都已知的比较为true
+     */
+    public static boolean isPrimitive(Predicate<ReactorQLRecord> predicate) {
+        return predicate instanceof Comparison && ((Comparison) predicate).isPrimitive();
+    }
+
+    private static Predicate<ReactorQLRecord> predicate(Expression expression, ReactorQLMetadata metadata) {
+        if (expression instanceof Parenthesis) {
+            return predicate(((Parenthesis) expression).getExpression(), metadata);
+        }
+        if (expression instanceof AndExpression) {
+            if (!(metadata.getFeature(FeatureId.Filter.and).orElse(null) instanceof AndFilter)) {
+                return null;
+            }
+            Predicate<ReactorQLRecord> left = predicate(((AndExpression) expression).getLeftExpression(), metadata);
+            Predicate<ReactorQLRecord> right = predicate(((AndExpression) expression).getRightExpression(), metadata);
+            return left == null || right == null ? null : left.and(right);
+        }
+        if (expression instanceof OrExpression) {
+            if (!(metadata.getFeature(FeatureId.Filter.or).orElse(null) instanceof OrFilter)) {
+                return null;
+            }
+            Predicate<ReactorQLRecord> left = predicate(((OrExpression) expression).getLeftExpression(), metadata);
+            Predicate<ReactorQLRecord> right = predicate(((OrExpression) expression).getRightExpression(), metadata);
+            return left == null || right == null ? null : left.or(right);
+        }
+        if (expression instanceof NotExpression) {
+            Expression not = ((NotExpression) expression).getExpression();
+            while (not instanceof Parenthesis) {
+                not = ((Parenthesis) not).getExpression();
+            }
+            // 非条件表达式的not按布尔值转换,不编译
+            if (!(not instanceof BinaryExpression)) {
+                return null;
+            }
+            Predicate<ReactorQLRecord> predicate = predicate(not, metadata);
+            return predicate == null ? null : predicate.negate();
+        }
+        if (expression instanceof IsNullExpression) {
+            Node left = value(((IsNullExpression) expression).getLeftExpression(), metadata);
+            if (left == null) {
+                return null;
+            }
+            boolean not = ((IsNullExpression) expression).isNot();
+            return record -> not == (left.evaluate(record) != null);
+        }
+        if (expression instanceof ComparisonOperator) {
+            ComparisonOperator comparison = (ComparisonOperator) expression;
+            FilterFeature feature = metadata.getFeature(FeatureId.Filter.of(comparison.getStringExpression())).orElse(null);
+            if (!(feature instanceof BinaryFilterFeature)) {
+                return null;
+            }
+            Node left = value(comparison.getLeftExpression(), metadata);
+            Node right = value(comparison.getRightExpression(), metadata);
+            if (left == null || right == null) {
+                return null;
+            }
+            return new Comparison((BinaryFilterFeature) feature, left, right);
+        }
+        return null;
+    }
+
+    private static Node value(Expression expression, ReactorQLMetadata metadata) {
+        if (expression instanceof Parenthesis) {
+            return value(((Parenthesis) expression).getExpression(), metadata);
+        }
+        if (expression instanceof LongValue) {
+            return new LongConstant(((LongValue) expression).getValue());
+        }
+        if (expression instanceof DoubleValue) {
+            return new DoubleConstant(((DoubleValue) expression).getValue());
+        }
+        if (expression instanceof StringValue) {
+            String value = ((StringValue) expression).getValue();
+            return new Node(OBJECT) {
+                @Override
+                public Object evaluate(ReactorQLRecord record) {
+                    return value;
+                }
+            };
+        }
+        if (expression instanceof Column) {
+            if (!(metadata.getFeature(FeatureId.ValueMap.property).orElse(null) instanceof PropertyMapFeature)) {
+                return null;
+            }
+            return new Property((Column) expression, metadata.getFeatureNow(PropertyFeature.ID));
+        }
+        if (expression instanceof CastExpression) {
+            CastExpression cast = (CastExpression) expression;
+            if (cast.getType() == null
+                    || !(metadata.getFeature(FeatureId.ValueMap.cast).orElse(null) instanceof CastFeature)) {
+                return null;
+            }
+            Node value = value(cast.getLeftExpression(), metadata);
+            return value == null ? null : new Cast(value, cast.getType().getDataType().toLowerCase());
+        }
+        if (expression instanceof net.sf.jsqlparser.expression.Function) {
+            net.sf.jsqlparser.expression.Function function = (net.sf.jsqlparser.expression.Function) expression;
+            ValueMapFeature feature = metadata.getFeature(FeatureId.ValueMap.of(function.getName())).orElse(null);
+            if (!(feature instanceof SingleParameterFunctionMapFeature)
+                    || !((SingleParameterFunctionMapFeature) feature).isPrimitive()
+                    || function.getParameters() == null
+                    || function.getParameters().getExpressions().size() != 1) {
+                return null;
+            }
+            Node value = value(function.getParameters().getExpressions().get(0), metadata);
+            return value == null ? null : new NumberFunction((SingleParameterFunctionMapFeature) feature, value);
+        }
+        if (expression instanceof SignedExpression) {
+            Node value = value(((SignedExpression) expression).getExpression(), metadata);
+            return value == null ? null : new Signed(((SignedExpression) expression).getSign(), value);
+        }
+        if (expression instanceof BinaryExpression) {
+            BinaryExpression binary = (BinaryExpression) expression;
+            Optional<ValueMapFeature> feature = metadata.getFeature(FeatureId.ValueMap.of(binary.getStringExpression()));
+            if (feature.isPresent()) {
+                if (!(feature.get() instanceof BinaryCalculateMapFeature)
+                        || !((BinaryCalculateMapFeature) feature.get()).isPrimitive()) {
+                    return null;
+                }
+                Node left = value(binary.getLeftExpression(), metadata);
+                Node right = value(binary.getRightExpression(), metadata);
+                if (left == null || right == null) {
+                    return null;
+                }
+                return new Calculate((BinaryCalculateMapFeature) feature.get(), left, right);
+            }
+            // 条件作为值时为布尔值
+            Predicate<ReactorQLRecord> predicate = predicate(expression, metadata);
+            if (predicate == null) {
+                return null;
+            }
+            return new Node(OBJECT) {
+                @Override
+                public Object evaluate(ReactorQLRecord record) {
+                    return predicate.test(record);
+                }
+            };
+        }
+        return null;
+    }
+
+    /**
+     * 表达式节点,类型为{@link #LONG}或{@link #DOUBLE}时值为数字,可以不装箱求值. 值可能为null时{@link #nullable}为true,
+     * 此时{@link #doubleValue}无值时为NaN, {@link #longValue}只用于不为null的节点. 每次求值每个属性只获取一次.
+     */
+    private abstract static class Node implements CompiledExpression {
+
+        final int type;
+
+        final boolean nullable;
+
+        Node(int type) {
+            this(type, false);
+        }
+
+        Node(int type, boolean nullable) {
+            this.type = type;
+            this.nullable = nullable;
+        }
+
+        long longValue(ReactorQLRecord record) {
+            return ((Number) evaluate(record)).longValue();
+        }
+
+        double doubleValue(ReactorQLRecord record) {
+            Object value = evaluate(record);
+            return value == null ? Double.NaN : ((Number) value).doubleValue();
+        }
+    }
+
+    private static final class LongConstant extends Node {
+
+        private final long value;
+
+        private final Long boxed;
+
+        LongConstant(long value) {
+            super(LONG);
+            this.value = value;
+            this.boxed = value;
+        }
+
+        @Override
+        public Object evaluate(ReactorQLRecord record) {
+            return boxed;
+        }
+
+        @Override
+        long longValue(ReactorQLRecord record) {
+            return value;
+        }
+
+        @Override
+        double doubleValue(ReactorQLRecord record) {
+            return value;
+        }
+    }
+
+    private static final class DoubleConstant extends Node {
+
+        private final double value;
+
+        private final Double boxed;
+
+        DoubleConstant(double value) {
+            super(DOUBLE);
+            this.value = value;
+            this.boxed = value;
+        }
+
+        @Override
+        public Object evaluate(ReactorQLRecord record) {
+            return boxed;
+        }
+
+        @Override
+        long longValue(ReactorQLRecord record) {
+            return (long) value;
+        }
+
+        @Override
+        double doubleValue(ReactorQLRecord record) {
+            return value;
+        }
+    }
+
+    /**
+     * 同{@link PropertyMapFeature}: 先从表记录获取,再从结果获取,最后按名称获取记录.
+     */
+    private static final class Property extends Node {
+
+        private final String name;
+
+        private final String tableName;
+
+        private final Function<Object, Optional<Object>> accessor;
+
+        Property(Column column, PropertyFeature feature) {
+            super(OBJECT);
+            String[] fullName = column.getFullyQualifiedName().split("[.]", 2);
+            this.name = fullName.length == 2 ? fullName[1] : fullName[0];
+            this.tableName = fullName.length == 1 ? "this" : fullName[0];
+            this.accessor = feature.createAccessor(name);
+        }
+
+        @Override
+        public Object evaluate(ReactorQLRecord record) {
+            Object table = record.getRecord(tableName).orElse(null);
+            if (table != null) {
+                Object value = accessor.apply(table).orElse(null);
+                if (value != null) {
+                    return value;
+                }
+            }
+            Object value = accessor.apply(record.asMap()).orElse(null);
+            if (value != null) {
+                return value;
+            }
+            return record.getRecord(name).orElse(null);
+        }
+    }
+
+    private static final class Signed extends Node {
+
+        private final char sign;
+
+        private final Node value;
+
+        Signed(char sign, Node value) {
+            super(sign == '-' ? value.type : sign == '~' && value.type != OBJECT ? LONG : OBJECT, value.nullable);
+            this.sign = sign;
+            this.value = value;
+        }
+
+        @Override
+        public Object evaluate(ReactorQLRecord record) {
+            if (type == LONG && !nullable) {
+                return longValue(record);
+            }
+            if (type == DOUBLE && !nullable) {
+                return doubleValue(record);
+            }
+            Object val = value.evaluate(record);
+            if (val == null) {
+                return null;
+            }
+            Number number = CastUtils.castNumber(val);
+            switch (sign) {
+                case '-':
+                    if (number instanceof Integer) {
+                        return -number.intValue();
+                    }
+                    if (number instanceof Long) {
+                        return -number.longValue();
+                    }
+                    if (number instanceof Float) {
+                        return -number.floatValue();
+                    }
+                    return -number.doubleValue();
+                case '~':
+                    return ~number.longValue();
+                default:
+                    return number;
+            }
+        }
+
+        @Override
+        long longValue(ReactorQLRecord record) {
+            if (sign == '~') {
+                return ~value.longValue(record);
+            }
+            return type == LONG ? -value.longValue(record) : super.longValue(record);
+        }
+
+        @Override
+        double doubleValue(ReactorQLRecord record) {
+            if (type == LONG) {
+                return nullable ? super.doubleValue(record) : longValue(record);
+            }
+            return type == DOUBLE ? -value.doubleValue(record) : super.doubleValue(record);
+        }
+    }
+
+    /**
+     * 数字参数的节点,参数类型未知时按{@link CastUtils#castNumber}转换,参数无值时无值.
+     */
+    private abstract static class Unary extends Node {
+
+        final Node value;
+
+        Unary(int type, Node value) {
+            super(type, value.type == OBJECT || value.nullable);
+            this.value = value;
+        }
+
+        /**
+         * 参数有值时的结果.
+         */
+        abstract Object calculate(Number argument);
+
+        /**
+         * 参数值, 无值时为NaN.
+         */
+        double doubleArgument(ReactorQLRecord record) {
+            if (value.type != OBJECT) {
+                return value.doubleValue(record);
+            }
+            Object val = value.evaluate(record);
+            return val == null ? Double.NaN : CastUtils.castNumber(val).doubleValue();
+        }
+
+        @Override
+        public Object evaluate(ReactorQLRecord record) {
+            if (!nullable) {
+                return type == LONG ? (Object) longValue(record) : (Object) doubleValue(record);
+            }
+            Object val = value.evaluate(record);
+            return val == null ? null : calculate(CastUtils.castNumber(val));
+        }
+    }
+
+    /**
+     * 同{@link CastFeature}: 转换为long,double时类型已知,其他类型按{@link CastFeature#createCaster}转换.
+     */
+    private static final class Cast extends Unary {
+
+        private final Function<Object, Object> caster;
+
+        Cast(Node value, String dataType) {
+            super("long".equals(dataType) ? LONG : "double".equals(dataType) ? DOUBLE : OBJECT, value);
+            this.caster = CastFeature.createCaster(dataType);
+        }
+
+        @Override
+        public Object evaluate(ReactorQLRecord record) {
+            if (type != OBJECT) {
+                return super.evaluate(record);
+            }
+            Object val = value.evaluate(record);
+            return val == null ? null : caster.apply(val);
+        }
+
+        @Override
+        Object calculate(Number argument) {
+            return type == LONG ? (Object) argument.longValue() : (Object) argument.doubleValue();
+        }
+
+        @Override
+        long longValue(ReactorQLRecord record) {
+            return type == LONG ? value.longValue(record) : type == DOUBLE ? (long) value.doubleValue(record) : super.longValue(record);
+        }
+
+        @Override
+        double doubleValue(ReactorQLRecord record) {
+            if (type == DOUBLE) {
+                return doubleArgument(record);
+            }
+            return type == LONG && !nullable ? value.longValue(record) : super.doubleValue(record);
+        }
+    }
+
+    /**
+     * 同{@link SingleParameterFunctionMapFeature}: 参数转为double计算.
+     */
+    private static final class NumberFunction extends Unary {
+
+        private final SingleParameterFunctionMapFeature feature;
+
+        NumberFunction(SingleParameterFunctionMapFeature feature, Node value) {
+            super(DOUBLE, value);
+            this.feature = feature;
+        }
+
+        @Override
+        Object calculate(Number argument) {
+            return feature.calculate(argument.doubleValue());
+        }
+
+        @Override
+        long longValue(ReactorQLRecord record) {
+            return (long) doubleValue(record);
+        }
+
+        @Override
+        double doubleValue(ReactorQLRecord record) {
+            return feature.calculate(doubleArgument(record));
+        }
+    }
+
+    /**
+     * 同{@link org.monkey.mmq.rule.engine.utils.CalculateUtils}: 左值为浮点数时按double计算,否则按long计算.
+     */
+    private static final class Calculate extends Node {
+
+        private final BinaryCalculateMapFeature feature;
+
+        private final Node left;
+
+        private final Node right;
+
+        Calculate(BinaryCalculateMapFeature feature, Node left, Node right) {
+            super(right.type == OBJECT ? OBJECT : left.type, left.nullable || right.nullable);
+            this.feature = feature;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Object evaluate(ReactorQLRecord record) {
+            if (type == LONG && !nullable) {
+                return longValue(record);
+            }
+            if (type == DOUBLE && !nullable) {
+                return doubleValue(record);
+            }
+            Object leftValue = left.evaluate(record);
+            if (leftValue == null) {
+                return null;
+            }
+            Object rightValue = right.evaluate(record);
+            if (rightValue == null) {
+                return null;
+            }
+            // 两边类型已知时值为数字
+            if (type == LONG) {
+                return feature.calculate(((Number) leftValue).longValue(), ((Number) rightValue).longValue());
+            }
+            if (type == DOUBLE) {
+                return feature.calculate(((Number) leftValue).doubleValue(), ((Number) rightValue).doubleValue());
+            }
+            return feature.calculate(CastUtils.castNumber(leftValue), CastUtils.castNumber(rightValue));
+        }
+
+        @Override
+        long longValue(ReactorQLRecord record) {
+            if (type == LONG) {
+                return feature.calculate(left.longValue(record), right.longValue(record));
+            }
+            return type == DOUBLE ? (long) doubleValue(record) : super.longValue(record);
+        }
+
+        @Override
+        double doubleValue(ReactorQLRecord record) {
+            if (type == DOUBLE) {
+                return feature.calculate(left.doubleValue(record), right.doubleValue(record));
+            }
+            return type == LONG && !nullable ? longValue(record) : super.doubleValue(record);
+        }
+    }
+
+    /**
+     * 同{@link BinaryFilterFeature#createPredicate}: 任意一边无值时为false,两边都是数字时按double比较.
+     */
+    private static final class Comparison implements Predicate<ReactorQLRecord> {
+
+        private final BinaryFilterFeature feature;
+
+        private final Node left;
+
+        private final Node right;
+
+        Comparison(BinaryFilterFeature feature, Node left, Node right) {
+            this.feature = feature;
+            this.left = left;
+            this.right = right;
+        }
+
+        boolean isPrimitive() {
+            return left.type != OBJECT && right.type != OBJECT;
+        }
+
+        @Override
+        public boolean test(ReactorQLRecord record) {
+            if (isPrimitive()) {
+                double leftValue = left.doubleValue(record);
+                double rightValue = right.doubleValue(record);
+                // 无值时为NaN, 计算结果为NaN时按值比较
+                if (Double.isNaN(leftValue) && left.nullable && left.evaluate(record) == null
+                        || Double.isNaN(rightValue) && right.nullable && right.evaluate(record) == null) {
+                    return false;
+                }
+                return feature.test(leftValue, rightValue);
+            }
+            Object leftValue = left.evaluate(record);
+            if (leftValue == null) {
+                return false;
+            }
+            Object rightValue = right.evaluate(record);
+            if (rightValue == null) {
+                return false;
+            }
+            if (leftValue instanceof Number && rightValue instanceof Number) {
+                return feature.test(((Number) leftValue).doubleValue(), ((Number) rightValue).doubleValue());
+            }
+            return feature.test(leftValue, rightValue);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.rule.engine.supports.distinct;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Objects;
+
+/**
+ * 基于两个轮换的布隆过滤器的key集合, 内存固定.
+ * 当前过滤器加满maxKeys个key或超过ttl后成为上一代, 查询同时检查两代, 因此最近maxKeys到2*maxKeys个key能被识别,
+ * key在ttl到2*ttl之后可以再次出现.
+ * 有误判时新key会被当作重复数据过滤, 误判率约为fpp.
+ *
+ * @author solley
+ */
+class BloomKeySet extends AbstractSet<Object> {
+
+    private final int maxKeys;
+
+    private final long ttlMillis;
+
+    private final int bits;
+
+    private final int hashes;
+
+    private BitSet current;
+
+    private BitSet previous;
+
+    private int count;
+
+    private long createTime;
+
+    /**
+     * @param maxKeys   每代过滤器的key数量
+     * @param fpp       误判率
+     * @param ttlMillis 每代过滤器的有效时间, 小于等于0时只按数量轮换
+     */
+    BloomKeySet(int maxKeys, double fpp, long ttlMillis) {
+        this.maxKeys = maxKeys;
+        this.ttlMillis = ttlMillis;
+        this.bits = (int) Math.max(64, Math.min(Integer.MAX_VALUE - 64, -maxKeys * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        this.hashes = Math.max(1, (int) Math.round((double) bits / maxKeys * Math.log(2)));
+        clear();
+    }
+
+    @Override
+    public boolean add(Object key) {
+        long now = System.currentTimeMillis();
+        if (count >= maxKeys || (ttlMillis > 0 && now - createTime >= ttlMillis)) {
+            previous = current;
+            current = new BitSet(bits);
+            count = 0;
+            createTime = now;
+        }
+        long h1 = mix(Objects.hashCode(key));
+        long h2 = mix(h1);
+        boolean inCurrent = true;
+        boolean inPrevious = previous != null;
+        for (int i = 0; i < hashes; i++) {
+            int index = index(h1, h2, i);
+            inCurrent &= current.get(index);
+            inPrevious &= previous != null && previous.get(index);
+        }
+        if (inCurrent || inPrevious) {
+            return false;
+        }
+        for (int i = 0; i < hashes; i++) {
+            current.set(index(h1, h2, i));
+        }
+        count++;
+        return true;
+    }
+
+    private int index(long h1, long h2, int i) {
+        return (int) (((h1 + i * h2) & Long.MAX_VALUE) % bits);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return Collections.emptyIterator();
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public void clear() {
+        current = new BitSet(bits);
+        previous = null;
+        count = 0;
+        createTime = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.rule.engine.supports.distinct;
+
+import org.monkey.mmq.rule.engine.ReactorQLMetadata;
+import org.monkey.mmq.rule.engine.feature.FeatureId;
+import org.monkey.mmq.rule.engine.utils.CastUtils;
+
+import java.util.Collection;
+import java.util.function.Supplier;
+
+/**
+ * 有界去重, 只记住最近的key, 适用于长期运行的规则
+ * <pre>
+ *     select /*+ distinctBy(bounded), distinctMaxKeys(10000), distinctTtl('10m') *{@code /} distinct deviceId from t
+ *
+ *     select /*+ distinctBy(bloom), distinctMaxKeys(1000000), distinctFpp(0.001) *{@code /} distinct deviceId from t
+ * </pre>
+ * bounded: 精确去重, 最多记住distinctMaxKeys个key, 超过distinctTtl的key过期.
+ * bloom: 布隆过滤器, 内存固定, 有distinctFpp的概率把新数据当作重复数据过滤.
+ *
+ * @author solley
+ */
+public class BoundedDistinctFeature extends DefaultDistinctFeature {
+
+    public static final String BOUNDED = "bounded";
+
+    public static final String BLOOM = "bloom";
+
+    private static final int DEFAULT_MAX_KEYS = 100000;
+
+    private static final double DEFAULT_FPP = 0.01;
+
+    private final String type;
+
+    public BoundedDistinctFeature(String type) {
+        this.type = type;
+    }
+
+    @Override
+    protected Supplier<Collection<Object>> createKeyStore(ReactorQLMetadata metadata) {
+        String maxKeys = setting(metadata, "distinctMaxKeys");
+        String ttl = setting(metadata, "distinctTtl");
+        int max = maxKeys == null ? DEFAULT_MAX_KEYS : Math.max(1, Integer.parseInt(maxKeys));
+        long ttlMillis = ttl == null ? 0 : CastUtils.parseDuration(ttl).toMillis();
+        if (BLOOM.equals(type)) {
+            String fpp = setting(metadata, "distinctFpp");
+            double probability = fpp == null ? DEFAULT_FPP : Double.parseDouble(fpp);
+            if (probability <= 0 || probability >= 1) {
+                throw new IllegalArgumentException("distinctFpp must be between 0 and 1: " + fpp);
+            }
+            return () -> new BloomKeySet(max, probability, ttlMillis);
+        }
+        return () -> new ExpiringKeySet(max, ttlMillis);
+    }
+
+    private static String setting(ReactorQLMetadata metadata, String key) {
+        return metadata.getSetting(key)
+                .map(String::valueOf)
+                .map(value -> value.replace("'", "").trim())
+                .orElse(null);
+    }
+
+    @Override
+    public String getId() {
+        return FeatureId.Distinct.of(type).getId();
+    }
+}
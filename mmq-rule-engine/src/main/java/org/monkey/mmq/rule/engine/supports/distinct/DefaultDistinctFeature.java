@@ -30,16 +30,20 @@ import reactor.util.function.Tuple2;
 import reactor.util.function.Tuples;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class DefaultDistinctFeature implements DistinctFeature {
     @Override
     public Function<Flux<ReactorQLRecord>, Flux<ReactorQLRecord>> createDistinctMapper(Distinct distinct, ReactorQLMetadata metadata) {
 
+        Supplier<Collection<Object>> store = createKeyStore(metadata);
         List<SelectItem> items = distinct.getOnSelectItems();
         if (items == null) {
-            return flux -> flux.distinct(ReactorQLRecord::getRecord);
+            return flux -> flux.distinct(ReactorQLRecord::getRecord, store);
         }
         List<Function<ReactorQLRecord, Mono<Object>>> keySelector = new ArrayList<>();
         for (SelectItem item : items) {
@@ -63,16 +67,24 @@ public class DefaultDistinctFeature implements DistinctFeature {
                 }
             });
         }
-        return createDistinct(keySelector);
+        return createDistinct(keySelector, store);
     }
 
-    protected Function<Flux<ReactorQLRecord>, Flux<ReactorQLRecord>> createDistinct(List<Function<ReactorQLRecord, Mono<Object>>> keySelector) {
+    /**
+     * 已出现的key的集合, add返回false的数据被过滤
+     */
+    protected Supplier<Collection<Object>> createKeyStore(ReactorQLMetadata metadata) {
+        return HashSet::new;
+    }
+
+    protected Function<Flux<ReactorQLRecord>, Flux<ReactorQLRecord>> createDistinct(List<Function<ReactorQLRecord, Mono<Object>>> keySelector,
+                                                                                  Supplier<Collection<Object>> store) {
         return flux -> flux
                 .flatMap(record -> Flux.fromIterable(keySelector)
                         .flatMap(mapper -> mapper.apply(record))
                         .collectList()
                         .map(list -> Tuples.of(list, record)))
-                .distinct(Tuple2::getT1)
+                .distinct(Tuple2::getT1, store)
                 .map(Tuple2::getT2);
     }
 
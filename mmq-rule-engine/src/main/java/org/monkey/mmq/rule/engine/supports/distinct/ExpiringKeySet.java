@@ -0,0 +1,94 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.rule.engine.supports.distinct;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 有界的key集合, 超过容量时移除最早加入的key, key加入超过ttl后过期, 过期后再次出现视为新key.
+ *
+ * @author solley
+ */
+class ExpiringKeySet extends AbstractSet<Object> {
+
+    private final int maxKeys;
+
+    private final long ttlMillis;
+
+    /**
+     * key -> 加入时间, 按加入顺序排列
+     */
+    private final LinkedHashMap<Object, Long> keys = new LinkedHashMap<>();
+
+    /**
+     * @param maxKeys   最大key数量
+     * @param ttlMillis key有效时间, 小于等于0时不过期
+     */
+    ExpiringKeySet(int maxKeys, long ttlMillis) {
+        this.maxKeys = maxKeys;
+        this.ttlMillis = ttlMillis;
+    }
+
+    @Override
+    public boolean add(Object key) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        if (keys.containsKey(key)) {
+            return false;
+        }
+        keys.put(key, now);
+        if (keys.size() > maxKeys) {
+            Iterator<Object> eldest = keys.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        return true;
+    }
+
+    private void expire(long now) {
+        if (ttlMillis <= 0) {
+            return;
+        }
+        Iterator<Map.Entry<Object, Long>> iterator = keys.entrySet().iterator();
+        while (iterator.hasNext() && now - iterator.next().getValue() >= ttlMillis) {
+            iterator.remove();
+        }
+    }
+
+    @Override
+    public boolean contains(Object key) {
+        return keys.containsKey(key);
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return keys.keySet().iterator();
+    }
+
+    @Override
+    public int size() {
+        return keys.size();
+    }
+
+    @Override
+    public void clear() {
+        keys.clear();
+    }
+}
@@ -59,7 +59,18 @@ public abstract class BinaryFilterFeature implements FilterFeature {
         return (row, column) -> Mono.zip(Mono.from(leftMapper.apply(row)), Mono.from(rightMapper.apply(row)), this::test).defaultIfEmpty(false);
     }
 
-    protected boolean test(Object left, Object right) {
+    /**
+     * 比较两个数字,不进行装箱
+     *
+     * @param left  左值
+     * @param right 右值
+     * @return 比较结果
+     */
+    public boolean test(double left, double right) {
+        return doTest(left, right);
+    }
+
+    public boolean test(Object left, Object right) {
         try {
             if (left instanceof Map && ((Map<?, ?>) left).size() == 1) {
                 left = ((Map<?, ?>) left).values().iterator().next();
@@ -84,6 +95,10 @@ public abstract class BinaryFilterFeature implements FilterFeature {
 
     protected abstract boolean doTest(Number left, Number right);
 
+    protected boolean doTest(double left, double right) {
+        return doTest((Number) left, (Number) right);
+    }
+
     protected abstract boolean doTest(Date left, Date right);
 
     protected abstract boolean doTest(String left, String right);
@@ -35,6 +35,11 @@ public class EqualsFilter extends BinaryFilterFeature {
         return not != CompareUtils.equals(left, right);
     }
 
+    @Override
+    protected boolean doTest(double left, double right) {
+        return not != (Double.compare(left, right) == 0);
+    }
+
     @Override
     protected boolean doTest(Date left, Date right) {
         return not != CompareUtils.equals(left, right);
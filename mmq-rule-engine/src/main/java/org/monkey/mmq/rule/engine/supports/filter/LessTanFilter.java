@@ -29,6 +29,11 @@ public class LessTanFilter extends BinaryFilterFeature {
         return left.doubleValue() < right.doubleValue();
     }
 
+    @Override
+    protected boolean doTest(double left, double right) {
+        return left < right;
+    }
+
     @Override
     protected boolean doTest(Date left, Date right) {
         return left.getTime() < right.getTime();
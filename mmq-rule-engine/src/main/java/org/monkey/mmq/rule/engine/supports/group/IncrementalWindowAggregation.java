@@ -0,0 +1,336 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.rule.engine.supports.group;
+
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.Function;
+import net.sf.jsqlparser.expression.LongValue;
+import net.sf.jsqlparser.expression.StringValue;
+import net.sf.jsqlparser.schema.Column;
+import net.sf.jsqlparser.statement.select.GroupByElement;
+import org.monkey.mmq.rule.engine.ReactorQLMetadata;
+import org.monkey.mmq.rule.engine.ReactorQLRecord;
+import org.monkey.mmq.rule.engine.supports.agg.Accumulator;
+import org.monkey.mmq.rule.engine.supports.compile.CompiledExpression;
+import org.monkey.mmq.rule.engine.supports.compile.ExpressionCompiler;
+import org.monkey.mmq.rule.engine.utils.CastUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * 增量窗口聚合, 用于按列分组的滚动窗口
+ * <pre>
+ *     select deviceId, avg(temp) from t group by deviceId, _window('1m')
+ *
+ *     select deviceId, max(temp) from t group by deviceId, _window(100)
+ * </pre>
+ * 每个分组只保存固定大小的{@link Accumulator}和最后一条记录, 不再为每个分组创建窗口.
+ * 时间窗口结束时输出有数据的分组并清空; 数量窗口在分组满n条时输出, 超过{@code windowGroupTtl}没有数据的分组
+ * 输出已有的部分结果后移除. 分组数超过{@code windowMaxGroups}时, 最久没有数据的分组提前输出并移除.
+ * <p>
+ * 可通过{@code /*+ incrementalWindow(false) *}{@code /}关闭.
+ *
+ * @author solley
+ */
+public final class IncrementalWindowAggregation {
+
+    private static final Object TICK = new Object();
+
+    private static final Object END = new Object();
+
+    private static final Duration DEFAULT_GROUP_TTL = Duration.ofMinutes(10);
+
+    private static final int DEFAULT_MAX_GROUPS = 100000;
+
+    private final List<String> groupNames;
+
+    private final List<CompiledExpression> groupKeys;
+
+    private final Map<String, Supplier<Accumulator>> accumulators;
+
+    /**
+     * 时间窗口, 数量窗口时为null
+     */
+    private final Duration window;
+
+    private final int windowSize;
+
+    private final Duration groupTtl;
+
+    private final int maxGroups;
+
+    private IncrementalWindowAggregation(List<String> groupNames, List<CompiledExpression> groupKeys,
+                                         Map<String, Supplier<Accumulator>> accumulators, Duration window,
+                                         int windowSize, Duration groupTtl, int maxGroups) {
+        this.groupNames = groupNames;
+        this.groupKeys = groupKeys;
+        this.accumulators = accumulators;
+        this.window = window;
+        this.windowSize = windowSize;
+        this.groupTtl = groupTtl;
+        this.maxGroups = maxGroups;
+    }
+
+    /**
+     * 分组为若干列加一个滚动窗口({@code _window(n)}, {@code _window('1s')}, {@code interval('1s')})时创建增量聚合
+     *
+     * @param groupBy      分组
+     * @param metadata     元数据
+     * @param accumulators 所有聚合列的增量聚合器
+     * @return 增量聚合, 不支持时为空
+     */
+    public static Optional<IncrementalWindowAggregation> create(GroupByElement groupBy,
+                                                               ReactorQLMetadata metadata,
+                                                               Map<String, Supplier<Accumulator>> accumulators) {
+        if (groupBy == null || accumulators == null || accumulators.isEmpty()
+                || "false".equals(setting(metadata, "incrementalWindow"))) {
+            return Optional.empty();
+        }
+        List<String> groupNames = new ArrayList<>();
+        List<CompiledExpression> groupKeys = new ArrayList<>();
+        Duration window = null;
+        int windowSize = 0;
+        for (Expression expression : groupBy.getGroupByExpressions()) {
+            if (expression instanceof Column) {
+                // 数量窗口按分组计数, 列必须在窗口之前
+                Optional<CompiledExpression> key = ExpressionCompiler.compile(expression, metadata);
+                if (!key.isPresent() || windowSize > 0) {
+                    return Optional.empty();
+                }
+                groupNames.add(((Column) expression).getColumnName());
+                groupKeys.add(key.get());
+                continue;
+            }
+            if (!(expression instanceof Function) || window != null || windowSize > 0) {
+                return Optional.empty();
+            }
+            Function function = (Function) expression;
+            List<Expression> parameters = function.getParameters() == null ? null : function.getParameters().getExpressions();
+            if (parameters == null || parameters.size() != 1) {
+                return Optional.empty();
+            }
+            Expression parameter = parameters.get(0);
+            String name = function.getName().toLowerCase();
+            if ("_window".equals(name) && parameter instanceof LongValue) {
+                windowSize = (int) ((LongValue) parameter).getValue();
+            } else if (("_window".equals(name) || "interval".equals(name)) && parameter instanceof StringValue) {
+                window = CastUtils.parseDuration(((StringValue) parameter).getValue());
+            } else if ("interval".equals(name) && parameter instanceof LongValue) {
+                window = Duration.ofMillis(((LongValue) parameter).getValue());
+            } else {
+                return Optional.empty();
+            }
+            if (windowSize < 0 || (window != null && window.toMillis() <= 0)) {
+                return Optional.empty();
+            }
+        }
+        if (window == null && windowSize == 0) {
+            return Optional.empty();
+        }
+        String ttl = setting(metadata, "windowGroupTtl");
+        String maxGroups = setting(metadata, "windowMaxGroups");
+        return Optional.of(new IncrementalWindowAggregation(groupNames, groupKeys, accumulators, window, windowSize,
+                ttl == null ? DEFAULT_GROUP_TTL : CastUtils.parseDuration(ttl),
+                maxGroups == null ? DEFAULT_MAX_GROUPS : Math.max(1, Integer.parseInt(maxGroups))));
+    }
+
+    private static String setting(ReactorQLMetadata metadata, String key) {
+        return metadata.getSetting(key)
+                .map(String::valueOf)
+                .map(value -> value.replace("'", "").trim())
+                .orElse(null);
+    }
+
+    /**
+     * 聚合
+     *
+     * @param flux   记录流
+     * @param output 由分组最后一条记录(可能为null)和聚合结果创建输出记录
+     * @return 每个分组每个窗口一条输出记录
+     */
+    public Flux<ReactorQLRecord> apply(Flux<ReactorQLRecord> flux,
+                                       BiFunction<ReactorQLRecord, Map<String, Object>, ReactorQLRecord> output) {
+        Duration period = window != null ? window : groupTtl;
+        return Flux.defer(() -> {
+            Groups groups = new Groups(output);
+            // merge串行发出元素, 分组状态只在一个线程上访问
+            return Flux.merge(flux.cast(Object.class).concatWith(Mono.just(END)),
+                    Flux.interval(period).onBackpressureDrop().map(tick -> TICK))
+                    .takeUntil(event -> event == END)
+                    .concatMapIterable(event -> {
+                        if (event == TICK) {
+                            return groups.tick();
+                        }
+                        if (event == END) {
+                            return groups.drain();
+                        }
+                        return groups.add((ReactorQLRecord) event);
+                    });
+        });
+    }
+
+    private final class Group {
+
+        private final List<Object> key;
+
+        private Accumulator[] values;
+
+        private ReactorQLRecord last;
+
+        private long count;
+
+        private long updateTime;
+
+        Group(List<Object> key) {
+            this.key = key;
+            reset();
+        }
+
+        void accept(ReactorQLRecord record) {
+            for (Accumulator value : values) {
+                value.accept(record);
+            }
+            last = record;
+            count++;
+            updateTime = System.currentTimeMillis();
+        }
+
+        void reset() {
+            values = new Accumulator[accumulators.size()];
+            int i = 0;
+            for (Supplier<Accumulator> supplier : accumulators.values()) {
+                values[i++] = supplier.get();
+            }
+            last = null;
+            count = 0;
+        }
+
+        Map<String, Object> result() {
+            Map<String, Object> result = new HashMap<>();
+            int i = 0;
+            for (String alias : accumulators.keySet()) {
+                Object value = values[i++].result();
+                if (value != null) {
+                    result.put(alias, value);
+                }
+            }
+            for (int j = 0; j < groupNames.size(); j++) {
+                result.put(groupNames.get(j), key.get(j));
+            }
+            return result;
+        }
+    }
+
+    private final class Groups {
+
+        private final BiFunction<ReactorQLRecord, Map<String, Object>, ReactorQLRecord> output;
+
+        /**
+         * 按访问顺序排列, 最久没有数据的分组在前
+         */
+        private final LinkedHashMap<List<Object>, Group> groups = new LinkedHashMap<>(16, 0.75F, true);
+
+        Groups(BiFunction<ReactorQLRecord, Map<String, Object>, ReactorQLRecord> output) {
+            this.output = output;
+        }
+
+        List<ReactorQLRecord> add(ReactorQLRecord record) {
+            List<Object> key = new ArrayList<>(groupKeys.size());
+            for (CompiledExpression groupKey : groupKeys) {
+                Object value = groupKey.evaluate(record);
+                // 分组值为空的记录不参与分组
+                if (value == null) {
+                    return Collections.emptyList();
+                }
+                key.add(value);
+            }
+            List<ReactorQLRecord> emitted = Collections.emptyList();
+            Group group = groups.get(key);
+            if (group == null) {
+                if (groups.size() >= maxGroups) {
+                    Iterator<Group> eldest = groups.values().iterator();
+                    emitted = new ArrayList<>(2);
+                    emit(eldest.next(), emitted);
+                    eldest.remove();
+                }
+                group = new Group(key);
+                groups.put(key, group);
+            }
+            group.accept(record);
+            if (windowSize > 0 && group.count >= windowSize) {
+                if (emitted.isEmpty()) {
+                    emitted = new ArrayList<>(1);
+                }
+                emit(group, emitted);
+                group.reset();
+            }
+            return emitted;
+        }
+
+        List<ReactorQLRecord> tick() {
+            if (window != null) {
+                return drain();
+            }
+            long deadline = System.currentTimeMillis() - groupTtl.toMillis();
+            List<ReactorQLRecord> emitted = new ArrayList<>();
+            Iterator<Group> iterator = groups.values().iterator();
+            while (iterator.hasNext()) {
+                Group group = iterator.next();
+                if (group.updateTime > deadline) {
+                    break;
+                }
+                emit(group, emitted);
+                iterator.remove();
+            }
+            return emitted;
+        }
+
+        /**
+         * 结束当前时间窗口或整个流, 输出所有分组
+         */
+        List<ReactorQLRecord> drain() {
+            List<ReactorQLRecord> emitted = new ArrayList<>(groups.size() + 1);
+            // 不分组的时间窗口没有数据时也输出
+            if (window != null && groupKeys.isEmpty() && groups.isEmpty()) {
+                emitted.add(output.apply(null, new Group(Collections.emptyList()).result()));
+            }
+            for (Group group : groups.values()) {
+                emit(group, emitted);
+            }
+            groups.clear();
+            return emitted;
+        }
+
+        private void emit(Group group, List<ReactorQLRecord> emitted) {
+            if (group.count > 0) {
+                emitted.add(output.apply(group.last, group.result()));
+            }
+        }
+    }
+}
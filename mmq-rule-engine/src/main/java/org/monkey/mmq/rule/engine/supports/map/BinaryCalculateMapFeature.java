@@ -20,11 +20,61 @@ package org.monkey.mmq.rule.engine.supports.map;
 import org.monkey.mmq.rule.engine.utils.CastUtils;
 
 import java.util.function.BiFunction;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.LongBinaryOperator;
 
 public class BinaryCalculateMapFeature extends BinaryMapFeature {
 
+    private final BiFunction<Number, Number, Object> calculator;
+
+    private final LongBinaryOperator longCalculator;
+
+    private final DoubleBinaryOperator doubleCalculator;
+
     public BinaryCalculateMapFeature(String type, BiFunction<Number, Number, Object> calculator) {
-         super(type,(left,right)-> calculator.apply(CastUtils.castNumber(left), CastUtils.castNumber(right)));
+        this(type, calculator, null, null);
+    }
+
+    /**
+     * 带有原始类型计算的运算,左值为double或float时按double计算,为整数时按long计算,其他情况使用calculator
+     *
+     * @param type             运算符
+     * @param calculator       计算
+     * @param longCalculator   long计算
+     * @param doubleCalculator double计算
+     */
+    public BinaryCalculateMapFeature(String type,
+                                     BiFunction<Number, Number, Object> calculator,
+                                     LongBinaryOperator longCalculator,
+                                     DoubleBinaryOperator doubleCalculator) {
+        super(type, (left, right) -> calculator.apply(CastUtils.castNumber(left), CastUtils.castNumber(right)));
+        this.calculator = calculator;
+        this.longCalculator = longCalculator;
+        this.doubleCalculator = doubleCalculator;
+    }
+
+    public boolean isPrimitive() {
+        return longCalculator != null && doubleCalculator != null;
+    }
+
+    public long calculate(long left, long right) {
+        return longCalculator.applyAsLong(left, right);
+    }
+
+    public double calculate(double left, double right) {
+        return doubleCalculator.applyAsDouble(left, right);
+    }
+
+    public Object calculate(Number left, Number right) {
+        if (isPrimitive()) {
+            if (left instanceof Double || left instanceof Float) {
+                return doubleCalculator.applyAsDouble(left.doubleValue(), right.doubleValue());
+            }
+            if (left instanceof Long || left instanceof Integer || left instanceof Short || left instanceof Byte) {
+                return longCalculator.applyAsLong(left.longValue(), right.longValue());
+            }
+        }
+        return calculator.apply(left, right);
     }
 
 }
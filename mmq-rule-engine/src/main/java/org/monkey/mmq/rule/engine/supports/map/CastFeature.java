@@ -41,40 +41,50 @@ public class CastFeature implements ValueMapFeature {
 
         Expression left = cast.getLeftExpression();
 
-        String type = cast.getType().getDataType().toLowerCase();
+        Function<Object, Object> caster = createCaster(cast.getType().getDataType().toLowerCase());
 
         Function<ReactorQLRecord, Publisher<?>> mapper = ValueMapFeature.createMapperNow(left, metadata);
 
-        return ctx -> Mono.from(mapper.apply(ctx)).map(value -> castValue(value, type));
+        return ctx -> Mono.from(mapper.apply(ctx)).map(caster);
     }
 
     public static Object castValue(Object val, String type) {
+        return createCaster(type).apply(val);
+    }
+
+    /**
+     * 创建类型转换函数,用于类型固定时预先解析
+     *
+     * @param type 类型
+     * @return 转换函数
+     */
+    public static Function<Object, Object> createCaster(String type) {
 
         switch (type) {
             case "string":
             case "varchar":
-                return CastUtils.castString(val);
+                return CastUtils::castString;
             case "number":
             case "decimal":
-                return new BigDecimal(CastUtils.castString(val));
+                return val -> new BigDecimal(CastUtils.castString(val));
             case "int":
             case "integer":
-                return CastUtils.castNumber(val).intValue();
+                return val -> CastUtils.castNumber(val).intValue();
             case "long":
-                return CastUtils.castNumber(val).longValue();
+                return val -> CastUtils.castNumber(val).longValue();
             case "double":
-                return CastUtils.castNumber(val).doubleValue();
+                return val -> CastUtils.castNumber(val).doubleValue();
             case "bool":
             case "boolean":
-                return CastUtils.castBoolean(val);
+                return CastUtils::castBoolean;
             case "byte":
-                return CastUtils.castNumber(val).byteValue();
+                return val -> CastUtils.castNumber(val).byteValue();
             case "float":
-                return CastUtils.castNumber(val).floatValue();
+                return val -> CastUtils.castNumber(val).floatValue();
             case "date":
-                return CastUtils.castDate(val);
+                return CastUtils::castDate;
             default:
-                return val;
+                return Function.identity();
         }
     }
 
@@ -27,6 +27,7 @@ import org.monkey.mmq.rule.engine.feature.ValueMapFeature;
 import org.reactivestreams.Publisher;
 import reactor.core.publisher.Mono;
 
+import java.util.Optional;
 import java.util.function.Function;
 
 public class PropertyMapFeature implements ValueMapFeature {
@@ -41,11 +42,11 @@ public class PropertyMapFeature implements ValueMapFeature {
         String name = fullName.length == 2 ? fullName[1] : fullName[0];
         String tableName = fullName.length == 1 ? "this" : fullName[0];
 
-        PropertyFeature feature = metadata.getFeatureNow(PropertyFeature.ID);
+        Function<Object, Optional<Object>> accessor = metadata.getFeatureNow(PropertyFeature.ID).createAccessor(name);
 
         return ctx -> Mono.justOrEmpty(ctx.getRecord(tableName))
-                .flatMap(record -> Mono.justOrEmpty(feature.getProperty(name, record)))
-                .switchIfEmpty(Mono.fromSupplier(() -> feature.getProperty(name, ctx.asMap()).orElse(null)))
+                .flatMap(record -> Mono.justOrEmpty(accessor.apply(record)))
+                .switchIfEmpty(Mono.fromSupplier(() -> accessor.apply(ctx.asMap()).orElse(null)))
                 .switchIfEmpty(Mono.justOrEmpty(ctx.getRecord(name)))
                 ;
     }
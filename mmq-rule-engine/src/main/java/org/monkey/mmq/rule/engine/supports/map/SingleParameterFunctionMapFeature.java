@@ -24,10 +24,12 @@ import org.monkey.mmq.rule.engine.ReactorQLMetadata;
 import org.monkey.mmq.rule.engine.ReactorQLRecord;
 import org.monkey.mmq.rule.engine.feature.FeatureId;
 import org.monkey.mmq.rule.engine.feature.ValueMapFeature;
+import org.monkey.mmq.rule.engine.utils.CastUtils;
 import org.reactivestreams.Publisher;
 import reactor.core.publisher.Flux;
 
 import java.util.List;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.Function;
 
 
@@ -42,9 +44,37 @@ public class SingleParameterFunctionMapFeature implements ValueMapFeature {
 
     private final Function<Object, Object> calculator;
 
+    private final DoubleUnaryOperator doubleCalculator;
+
     public SingleParameterFunctionMapFeature(String type, Function<Object, Object> calculator) {
+        this(type, calculator, null);
+    }
+
+    private SingleParameterFunctionMapFeature(String type, Function<Object, Object> calculator, DoubleUnaryOperator doubleCalculator) {
         this.id = FeatureId.ValueMap.of(type).getId();
         this.calculator = calculator;
+        this.doubleCalculator = doubleCalculator;
+    }
+
+    /**
+     * 数字函数,参数转为double计算,结果为double,支持不装箱计算
+     *
+     * @param type             函数名
+     * @param doubleCalculator double计算
+     * @return 函数
+     */
+    public static SingleParameterFunctionMapFeature ofDouble(String type, DoubleUnaryOperator doubleCalculator) {
+        return new SingleParameterFunctionMapFeature(type,
+                v -> doubleCalculator.applyAsDouble(CastUtils.castNumber(v).doubleValue()),
+                doubleCalculator);
+    }
+
+    public boolean isPrimitive() {
+        return doubleCalculator != null;
+    }
+
+    public double calculate(double value) {
+        return doubleCalculator.applyAsDouble(value);
     }
 
     @Override
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.rule.engine.utils;
+
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.ExpressionVisitorAdapter;
+import net.sf.jsqlparser.expression.Function;
+import net.sf.jsqlparser.expression.JdbcNamedParameter;
+import net.sf.jsqlparser.expression.JdbcParameter;
+import net.sf.jsqlparser.expression.Parenthesis;
+import net.sf.jsqlparser.expression.operators.conditional.AndExpression;
+import net.sf.jsqlparser.schema.Column;
+import net.sf.jsqlparser.statement.select.PlainSelect;
+import net.sf.jsqlparser.statement.select.SubSelect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * 条件下推, 将where中只引用指定函数的条件拆出, 由调用方在数据进入sql前求值
+ * <pre>
+ *     select a from t where topic(1) = 'temp' and a > 1   -> where a > 1, 拆出 topic(1) = 'temp'
+ * </pre>
+ * 只拆分顶层and连接的条件, 引用了列, 参数或子查询的条件不拆分.
+ *
+ * @author solley
+ */
+public class PredicatePushdownUtils {
+
+    /**
+     * 拆出条件, 拆出的条件从sql中移除
+     *
+     * @param select    sql
+     * @param functions 可下推的函数名, 小写
+     * @return 拆出的条件, 多个条件使用and连接, 没有可拆出的条件时为空
+     */
+    public static Optional<Expression> split(PlainSelect select, Set<String> functions) {
+        if (select.getWhere() == null) {
+            return Optional.empty();
+        }
+        List<Expression> conditions = new ArrayList<>();
+        flatten(select.getWhere(), conditions);
+        List<Expression> pushed = new ArrayList<>();
+        List<Expression> rest = new ArrayList<>();
+        for (Expression condition : conditions) {
+            (pushable(condition, functions) ? pushed : rest).add(condition);
+        }
+        if (pushed.isEmpty()) {
+            return Optional.empty();
+        }
+        select.setWhere(and(rest));
+        return Optional.of(and(pushed));
+    }
+
+    /**
+     * 是否引用了指定的函数
+     *
+     * @param expression 表达式
+     * @param functions  函数名, 小写
+     * @return 引用时为true
+     */
+    public static boolean references(Expression expression, Set<String> functions) {
+        if (expression == null) {
+            return false;
+        }
+        ConditionVisitor visitor = new ConditionVisitor(functions);
+        expression.accept(visitor);
+        return visitor.matched;
+    }
+
+    private static boolean pushable(Expression condition, Set<String> functions) {
+        ConditionVisitor visitor = new ConditionVisitor(functions);
+        condition.accept(visitor);
+        return visitor.matched && !visitor.other;
+    }
+
+    private static void flatten(Expression expression, List<Expression> conditions) {
+        while (expression instanceof Parenthesis) {
+            expression = ((Parenthesis) expression).getExpression();
+        }
+        if (expression instanceof AndExpression) {
+            flatten(((AndExpression) expression).getLeftExpression(), conditions);
+            flatten(((AndExpression) expression).getRightExpression(), conditions);
+            return;
+        }
+        conditions.add(expression);
+    }
+
+    private static Expression and(List<Expression> conditions) {
+        Expression expression = null;
+        for (Expression condition : conditions) {
+            expression = expression == null ? condition : new AndExpression(expression, condition);
+        }
+        return expression;
+    }
+
+    private static final class ConditionVisitor extends ExpressionVisitorAdapter {
+
+        private final Set<String> functions;
+
+        /**
+         * 引用了指定的函数
+         */
+        private boolean matched;
+
+        /**
+         * 引用了需要sql上下文的数据
+         */
+        private boolean other;
+
+        private ConditionVisitor(Set<String> functions) {
+            this.functions = functions;
+        }
+
+        @Override
+        public void visit(Function function) {
+            if (functions.contains(function.getName().toLowerCase())) {
+                matched = true;
+            }
+            super.visit(function);
+        }
+
+        @Override
+        public void visit(Column column) {
+            other = true;
+        }
+
+        @Override
+        public void visit(JdbcParameter parameter) {
+            other = true;
+        }
+
+        @Override
+        public void visit(JdbcNamedParameter parameter) {
+            other = true;
+        }
+
+        @Override
+        public void visit(SubSelect subSelect) {
+            other = true;
+        }
+    }
+}
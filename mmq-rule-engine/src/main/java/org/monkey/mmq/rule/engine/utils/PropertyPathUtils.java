@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021-2021 Monkey Group.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.monkey.mmq.rule.engine.utils;
+
+import net.sf.jsqlparser.expression.Expression;
+import net.sf.jsqlparser.expression.ExpressionVisitorAdapter;
+import net.sf.jsqlparser.schema.Column;
+import net.sf.jsqlparser.schema.Table;
+import net.sf.jsqlparser.statement.select.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * 计算sql引用的输入数据属性路径, 用于只解析需要的属性
+ * <pre>
+ *     select this.a.b, c from t where d > 1   -> [a.b, c, d]
+ * </pre>
+ * 与{@link org.monkey.mmq.rule.engine.supports.map.PropertyMapFeature}一致, 带表名的列去掉第一段.
+ * 引用了整条数据(this, *, t.*), 有关联或子查询时返回空.
+ *
+ * @author solley
+ */
+public class PropertyPathUtils {
+
+    private static final Set<String> WHOLE_RECORD = new HashSet<>(Arrays.asList("this", "$", "*"));
+
+    /**
+     * @param select sql
+     * @return 属性路径, 需要完整数据时为空
+     */
+    public static Optional<Set<String>> findPaths(PlainSelect select) {
+        if (!(select.getFromItem() instanceof Table) || (select.getJoins() != null && !select.getJoins().isEmpty())) {
+            return Optional.empty();
+        }
+        Table table = (Table) select.getFromItem();
+        Set<String> tables = new HashSet<>();
+        tables.add(SqlUtils.getCleanStr(table.getName()));
+        if (table.getAlias() != null) {
+            tables.add(table.getAlias().getName());
+        }
+        PathCollector collector = new PathCollector(tables);
+        collector.selectItems(select.getSelectItems());
+        if (select.getDistinct() != null && select.getDistinct().getOnSelectItems() != null) {
+            collector.selectItems(select.getDistinct().getOnSelectItems());
+        }
+        collector.expression(select.getWhere());
+        if (select.getGroupBy() != null) {
+            select.getGroupBy().getGroupByExpressions().forEach(collector::expression);
+        }
+        collector.expression(select.getHaving());
+        if (select.getOrderByElements() != null) {
+            select.getOrderByElements().forEach(order -> collector.expression(order.getExpression()));
+        }
+        return collector.whole ? Optional.empty() : Optional.of(collector.paths);
+    }
+
+    private static final class PathCollector extends ExpressionVisitorAdapter {
+
+        private final Set<String> tables;
+
+        private final Set<String> paths = new HashSet<>();
+
+        private boolean whole;
+
+        private PathCollector(Set<String> tables) {
+            this.tables = tables;
+        }
+
+        private void selectItems(List<SelectItem> items) {
+            for (SelectItem item : items) {
+                if (item instanceof SelectExpressionItem) {
+                    expression(((SelectExpressionItem) item).getExpression());
+                } else {
+                    whole = true;
+                }
+            }
+        }
+
+        private void expression(Expression expression) {
+            if (expression != null && !whole) {
+                expression.accept(this);
+            }
+        }
+
+        @Override
+        public void visit(Column column) {
+            String[] fullName = column.getFullyQualifiedName().split("[.]", 2);
+            String name = SqlUtils.getCleanStr(fullName.length == 2 ? fullName[1] : fullName[0]);
+            if (name.contains("::")) {
+                name = name.substring(0, name.indexOf("::"));
+            }
+            if (WHOLE_RECORD.contains(name) || (fullName.length == 1 && tables.contains(name))) {
+                whole = true;
+                return;
+            }
+            paths.add(name);
+        }
+
+        @Override
+        public void visit(SubSelect subSelect) {
+            whole = true;
+        }
+    }
+}
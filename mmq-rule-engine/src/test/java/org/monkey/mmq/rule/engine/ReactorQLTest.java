@@ -1,8 +1,13 @@
 package org.monkey.mmq.rule.engine;
 
+import net.sf.jsqlparser.statement.select.PlainSelect;
 import org.hswebframework.utils.time.DateFormatter;
 import org.junit.Test;
+import org.monkey.mmq.rule.engine.supports.DefaultReactorQLMetadata;
+import org.monkey.mmq.rule.engine.supports.compile.ExpressionCompiler;
 import org.monkey.mmq.rule.engine.supports.map.SingleParameterFunctionMapFeature;
+import org.monkey.mmq.rule.engine.utils.PredicatePushdownUtils;
+import org.monkey.mmq.rule.engine.utils.PropertyPathUtils;
 import reactor.core.publisher.Flux;
 import reactor.test.StepVerifier;
 
@@ -14,7 +19,9 @@ import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.*;
 
@@ -499,6 +506,76 @@ public class ReactorQLTest {
 
     }
 
+    @Test
+    public void testGroupByColumnsWindow() {
+
+        ReactorQL.builder()
+                .sql("select deviceId,avg(val) avg,last(val) last,count(1) total from test group by deviceId,_window(2)")
+                .build()
+                .start(Flux.range(0, 9).map(v ->
+                        new HashMap<String, Object>() {
+                            {
+                                put("val", v);
+                                put("deviceId", "dev-" + v % 3);
+                            }
+                        }))
+                .doOnNext(System.out::println)
+                .cast(Map.class)
+                .map(map -> map.get("total"))
+                .cast(Long.class)
+                .collectList()
+                //每个设备满2条输出一次, 结束时输出剩余的1条
+                .as(StepVerifier::create)
+                .expectNext(Arrays.asList(2L, 2L, 2L, 1L, 1L, 1L))
+                .verifyComplete();
+
+    }
+
+    @Test
+    public void testPropertyPaths() {
+        assertEquals(new HashSet<>(Arrays.asList("a.b", "c", "d", "e", "total")),
+                PropertyPathUtils.findPaths(ReactorQL.builder()
+                        .sql("select this.a.b, c, avg(d) total from \"/device/+/data\" t where t.e > 1 group by c having total > 1")
+                        .build()
+                        .metadata()
+                        .getSql())
+                        .orElse(null));
+
+        assertFalse(PropertyPathUtils.findPaths(ReactorQL.builder()
+                .sql("select this from test where a > 1")
+                .build()
+                .metadata()
+                .getSql()).isPresent());
+
+        assertFalse(PropertyPathUtils.findPaths(ReactorQL.builder()
+                .sql("select * from test")
+                .build()
+                .metadata()
+                .getSql()).isPresent());
+    }
+
+    @Test
+    public void testPredicatePushdown() {
+        Set<String> functions = new HashSet<>(Arrays.asList("topic", "qos"));
+        PlainSelect select = new DefaultReactorQLMetadata("select a from test where (topic(1) = 'room1' and a > 1) and qos() > 0").getSql();
+        assertEquals("topic(1) = 'room1' AND qos() > 0",
+                PredicatePushdownUtils.split(select, functions).map(String::valueOf).orElse(null));
+        assertEquals("a > 1", String.valueOf(select.getWhere()));
+
+        ReactorQL.builder()
+                .select(select)
+                .build()
+                .start(Flux.just(Collections.singletonMap("a", 1), Collections.singletonMap("a", 2)))
+                .as(StepVerifier::create)
+                .expectNextCount(1)
+                .verifyComplete();
+
+        // or连接, 引用列或参数的条件不拆分
+        PlainSelect notPushed = new DefaultReactorQLMetadata("select a from test where (topic() = 'a' or a > 1) and qos() > :qos and topic(0) = b").getSql();
+        assertFalse(PredicatePushdownUtils.split(notPushed, functions).isPresent());
+        assertTrue(PredicatePushdownUtils.references(notPushed.getWhere(), functions));
+    }
+
     @Test
     public void testGroupByTimeHaving() {
 
@@ -653,6 +730,85 @@ public class ReactorQLTest {
                 .verifyComplete();
     }
 
+    @Test
+    public void testCompiledCalculate() {
+        ReactorQL.builder()
+                .sql(
+                        "select ",
+                        "this + 1 a",
+                        ",1.5 * this b",
+                        ",-this c",
+                        ",10 / 4 d",
+                        ",10.0 / 4 e",
+                        ",this > 4 f",
+                        "from test where this * 2 > 5 and this % 2 = 1 and this is not null"
+                )
+                .build()
+                .start(Flux.range(1, 5))
+                .as(StepVerifier::create)
+                .expectNext(new HashMap<String, Object>() {{
+                    put("a", 4L);
+                    put("b", 4.5D);
+                    put("c", -3);
+                    put("d", 2L);
+                    put("e", 2.5D);
+                    put("f", false);
+                }})
+                .expectNext(new HashMap<String, Object>() {{
+                    put("a", 6L);
+                    put("b", 7.5D);
+                    put("c", -5);
+                    put("d", 2L);
+                    put("e", 2.5D);
+                    put("f", true);
+                }})
+                .verifyComplete();
+    }
+
+    @Test
+    public void testCompiledColumnComparison() {
+        // 转换为数字的列和数字函数按double比较
+        assertTrue(isPrimitive("temp::double > 30.5"));
+        assertTrue(isPrimitive("math.abs(cast(delta as long)) >= 2"));
+        assertTrue(isPrimitive("temp::long * 2 < delta::double + 1"));
+        assertFalse(isPrimitive("temp > 30.5"));
+
+        ReactorQL.builder()
+                .sql("select temp from test where temp::double > 30.5 and math.abs(cast(delta as long)) >= 2")
+                .build()
+                .start(Flux.just(
+                        new HashMap<String, Object>() {{
+                            put("temp", 31);
+                            put("delta", -3);
+                        }},
+                        new HashMap<String, Object>() {{
+                            put("temp", "40");
+                            put("delta", 1);
+                        }},
+                        new HashMap<String, Object>() {{
+                            put("temp", 20);
+                            put("delta", 5);
+                        }},
+                        new HashMap<String, Object>() {{
+                            put("delta", 5);
+                        }},
+                        new HashMap<String, Object>() {{
+                            put("temp", 35.5);
+                            put("delta", "-2");
+                        }}))
+                .as(StepVerifier::create)
+                .expectNext(Collections.singletonMap("temp", 31))
+                .expectNext(Collections.singletonMap("temp", 35.5))
+                .verifyComplete();
+    }
+
+    private static boolean isPrimitive(String where) {
+        DefaultReactorQLMetadata metadata = new DefaultReactorQLMetadata("select * from test where " + where);
+        return ExpressionCompiler.compilePredicate(metadata.getSql().getWhere(), metadata)
+                .map(ExpressionCompiler::isPrimitive)
+                .orElse(false);
+    }
+
     @Test
     public void testCast() {
         ReactorQL.builder()
@@ -1053,6 +1209,32 @@ public class ReactorQLTest {
                 .verifyComplete();
     }
 
+    @Test
+    public void testDistinctBounded() {
+        ReactorQL.builder()
+                .sql("select /*+ distinctBy(bounded), distinctMaxKeys(2) */ distinct this from \"table\" ")
+                .build()
+                .start(Flux.just(1, 2, 1, 3, 1))
+                .doOnNext(System.out::println)
+                .as(StepVerifier::create)
+                //加入3时1被移除, 再次出现
+                .expectNextCount(4)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testCountDistinctApprox() {
+        ReactorQL.builder()
+                .sql("select count_distinct_approx(this) total from \"table\" ")
+                .build()
+                .start(Flux.range(0, 3000).map(i -> i % 1000))
+                .cast(Map.class)
+                .map(map -> ((Number) map.get("total")).longValue())
+                .as(StepVerifier::create)
+                .expectNextMatches(total -> Math.abs(total - 1000) < 50)
+                .verifyComplete();
+    }
+
     @Test
     public void testDistinctColumn() {
         ReactorQL.builder()
@@ -46,6 +46,16 @@ public class ResourcesController {
         return mateDataMap.values();
     }
 
+    /**
+     * Get circuit state of resources.
+     *
+     * @return state, consecutive failures and last error by resource id
+     */
+    @GetMapping("/health")
+    public Object getHealth() {
+        return resourcesService.getHealth();
+    }
+
     /**
      * test connect resources.
      *
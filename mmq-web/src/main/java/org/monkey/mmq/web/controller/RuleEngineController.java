@@ -15,7 +15,10 @@
  */
 package org.monkey.mmq.web.controller;
 
+import org.monkey.mmq.config.codec.PayloadDecoders;
+import org.monkey.mmq.config.matedata.ProtobufDescriptorMateData;
 import org.monkey.mmq.config.matedata.RuleEngineMateData;
+import org.monkey.mmq.config.service.ProtobufDescriptorService;
 import org.monkey.mmq.config.service.RuleEngineService;
 import org.monkey.mmq.core.consistency.model.ResponsePage;
 import org.monkey.mmq.core.consistency.model.RestResultUtils;
@@ -37,6 +40,9 @@ public class RuleEngineController {
     @Autowired
     RuleEngineService ruleEngineService;
 
+    @Autowired
+    ProtobufDescriptorService protobufDescriptorService;
+
     /**
      * Get ruleEngines.
      *
@@ -79,10 +85,49 @@ public class RuleEngineController {
     @PostMapping
     public Object saveRuleEngines(@RequestBody RuleEngineMateData ruleEngineMateData) {
         if (StringUtils.isEmpty(ruleEngineMateData.getRuleId())) ruleEngineMateData.setRuleId(getRuleId());
+        try {
+            PayloadDecoders.get(ruleEngineMateData);
+        } catch (IllegalArgumentException e) {
+            return RestResultUtils.failed(e.getMessage());
+        }
         ruleEngineService.save(ruleEngineMateData.getRuleId(), ruleEngineMateData);
         return RestResultUtils.success("create resource ok!", null);
     }
 
+    /**
+     * Get protobuf descriptor sets.
+     *
+     * @return message types by descriptor set name
+     */
+    @GetMapping("/descriptors")
+    public Object getDescriptors() {
+        return protobufDescriptorService.getAllDescriptors();
+    }
+
+    /**
+     * Register a protobuf descriptor set for the rules with protobuf payloads.
+     *
+     * @param descriptorMateData name and base64 of the descriptor set
+     * @return message types of the descriptor set
+     */
+    @PostMapping("/descriptors")
+    public Object saveDescriptor(@RequestBody ProtobufDescriptorMateData descriptorMateData) {
+        if (StringUtils.isEmpty(descriptorMateData.getName()) || StringUtils.isEmpty(descriptorMateData.getDescriptorSet())) {
+            return RestResultUtils.failed("name and descriptorSet are required.");
+        }
+        try {
+            return RestResultUtils.success("save descriptor ok!", protobufDescriptorService.save(descriptorMateData));
+        } catch (Exception e) {
+            return RestResultUtils.failed("invalid descriptor set: " + e.getMessage());
+        }
+    }
+
+    @DeleteMapping("/descriptors")
+    public Object deleteDescriptor(@RequestParam String name) {
+        protobufDescriptorService.delete(name);
+        return RestResultUtils.success("delete descriptor ok!", null);
+    }
+
     /**
      * 获得规则id
      * @return